@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.util.Log;
+import android.webkit.JavascriptInterface;
+import android.webkit.WebView;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JavaScript bridge passing the contents of blob: downloads from the portal page to the
+ * {@link DownloadService}.
+ *
+ * <p>blob: URLs can only be read from the page that created them, so a script is injected in the
+ * page to read the blob in chunks and pass them to this bridge, which forwards them to the
+ * service. Each transfer is identified by a random token, so other scripts or frames in the page
+ * cannot write into downloads they did not start.
+ */
+class BlobDownloadBridge {
+    private static final String TAG = BlobDownloadBridge.class.getSimpleName();
+
+    /** Name of the bridge in the page, as passed to {@link WebView#addJavascriptInterface}. */
+    static final String JS_INTERFACE_NAME = "CaptivePortalLoginBlobBridge";
+
+    // Size of the chunks read from the blob, a multiple of 3 so that chunks are base64-encoded
+    // without padding.
+    private static final int CHUNK_SIZE = 192 * 1024;
+    private static final int TOKEN_BYTES = 16;
+    // Delay before passing a chunk again when the download is slower than the page
+    private static final int RETRY_DELAY_MS = 50;
+
+    // Reads the blob with the URL and token passed as parameters, and passes it to the bridge in
+    // base64-encoded chunks. Each chunk is only read once the bridge accepted the previous one.
+    // The bridge never blocks the page: chunks it cannot take yet are passed again later.
+    private static final String READ_BLOB_SCRIPT = "(function(url, token) {"
+            + "  var bridge = window." + JS_INTERFACE_NAME + ";"
+            + "  fetch(url).then(function(response) {"
+            + "    return response.blob();"
+            + "  }).then(function(blob) {"
+            + "    var offset = 0;"
+            + "    var readNext = function() {"
+            + "      if (offset >= blob.size) {"
+            + "        bridge.onBlobEnd(token, true);"
+            + "        return;"
+            + "      }"
+            + "      var reader = new FileReader();"
+            + "      var send = function(chunk) {"
+            + "        var result = bridge.onBlobChunk(token, chunk);"
+            + "        if (result == " + DownloadService.BLOB_CHUNK_RETRY + ") {"
+            + "          setTimeout(function() { send(chunk); }, " + RETRY_DELAY_MS + ");"
+            + "          return;"
+            + "        }"
+            + "        if (result != " + DownloadService.BLOB_CHUNK_WRITTEN + ") return;"
+            + "        offset += " + CHUNK_SIZE + ";"
+            + "        readNext();"
+            + "      };"
+            + "      reader.onload = function() {"
+            + "        send(reader.result.substring(reader.result.indexOf(',') + 1));"
+            + "      };"
+            + "      reader.onerror = function() {"
+            + "        bridge.onBlobEnd(token, false);"
+            + "      };"
+            + "      reader.readAsDataURL(blob.slice(offset, offset + " + CHUNK_SIZE + "));"
+            + "    };"
+            + "    readNext();"
+            + "  }).catch(function() {"
+            + "    bridge.onBlobEnd(token, false);"
+            + "  });"
+            + "})(%s, %s);";
+
+    private static final class Transfer {
+        @NonNull
+        private final DownloadService.DownloadServiceBinder mService;
+        private final int mDownloadId;
+
+        private Transfer(@NonNull DownloadService.DownloadServiceBinder service, int downloadId) {
+            mService = service;
+            mDownloadId = downloadId;
+        }
+    }
+
+    private final SecureRandom mRandom = new SecureRandom();
+    // Transfers in progress, keyed by token. Accessed from the main thread and the JavaScript
+    // bridge thread.
+    private final ConcurrentHashMap<String, Transfer> mTransfers = new ConcurrentHashMap<>();
+
+    /**
+     * Start passing the contents of a blob: URL to a download requested to the service.
+     *
+     * <p>Must be called on the main thread, as it runs a script in the WebView.
+     */
+    void startTransfer(@NonNull WebView webview,
+            @NonNull DownloadService.DownloadServiceBinder service, @NonNull String url,
+            int downloadId) {
+        final byte[] tokenBytes = new byte[TOKEN_BYTES];
+        mRandom.nextBytes(tokenBytes);
+        final String token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+        mTransfers.put(token, new Transfer(service, downloadId));
+        webview.evaluateJavascript(String.format(READ_BLOB_SCRIPT, JSONObject.quote(url),
+                JSONObject.quote(token)), null /* resultCallback */);
+    }
+
+    /**
+     * Called by the page with the next chunk of a blob.
+     * @return {@link DownloadService#BLOB_CHUNK_WRITTEN}, {@link DownloadService#BLOB_CHUNK_RETRY}
+     *         if the page should pass the chunk again later, or
+     *         {@link DownloadService#BLOB_CHUNK_ABORTED} if it should stop sending chunks.
+     */
+    @JavascriptInterface
+    public int onBlobChunk(String token, String base64Chunk) {
+        final Transfer transfer = mTransfers.get(token);
+        if (transfer == null) return DownloadService.BLOB_CHUNK_ABORTED;
+        final byte[] chunk;
+        try {
+            chunk = Base64.getDecoder().decode(base64Chunk);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid chunk for download " + transfer.mDownloadId, e);
+            onBlobEnd(token, false);
+            return DownloadService.BLOB_CHUNK_ABORTED;
+        }
+        final int result = transfer.mService.writeBlobChunk(transfer.mDownloadId, chunk);
+        // The download was cancelled or failed
+        if (result == DownloadService.BLOB_CHUNK_ABORTED) mTransfers.remove(token);
+        return result;
+    }
+
+    /** Called by the page when the blob was fully sent, or could not be read. */
+    @JavascriptInterface
+    public void onBlobEnd(String token, boolean success) {
+        final Transfer transfer = mTransfers.remove(token);
+        if (transfer == null) return;
+        if (!success) Log.e(TAG, "Could not read blob for download " + transfer.mDownloadId);
+        transfer.mService.endBlob(transfer.mDownloadId, success);
+    }
+}
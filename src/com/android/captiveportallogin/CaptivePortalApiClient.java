@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+/**
+ * Client of the captive portal API of the network, as specified in RFC 8908.
+ *
+ * <p>The API tells whether the network is still captive, and the URL of the login page, without
+ * going through the redirects of the captive portal probes. The API is polled with conditional
+ * requests while the portal is shown, and also when the user navigates, so that the end of the
+ * captivity is detected as soon as the API reports it.
+ */
+class CaptivePortalApiClient {
+    private static final String TAG = CaptivePortalApiClient.class.getSimpleName();
+
+    @VisibleForTesting
+    static final String API_CONTENT_TYPE = "application/captive+json";
+    // Interval between polls of the API while the network is captive
+    @VisibleForTesting
+    static final long POLL_INTERVAL_MS = 5_000L;
+    @VisibleForTesting
+    static final int DEFAULT_TIMEOUT_MS = 10_000;
+    // API responses are small JSON objects: larger responses are invalid
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+    /** State of the portal as reported by the API. */
+    static final class PortalState {
+        final boolean mCaptive;
+        @Nullable
+        final String mUserPortalUrl;
+        // -1 if not reported by the API
+        final long mSecondsRemaining;
+        // -1 if not reported by the API
+        final long mBytesRemaining;
+        // Time at which the state was received, in the SystemClock.elapsedRealtime base
+        final long mReceivedTimeMs;
+
+        PortalState(boolean captive, @Nullable String userPortalUrl, long secondsRemaining,
+                long bytesRemaining, long receivedTimeMs) {
+            mCaptive = captive;
+            mUserPortalUrl = userPortalUrl;
+            mSecondsRemaining = secondsRemaining;
+            mBytesRemaining = bytesRemaining;
+            mReceivedTimeMs = receivedTimeMs;
+        }
+    }
+
+    /** Receives the changes of the portal state, on a background thread. */
+    interface Callback {
+        /** The API reported that the network is not captive anymore. */
+        void onPortalOpen();
+    }
+
+    @NonNull
+    private final Network mNetwork;
+    @NonNull
+    private final URL mApiUrl;
+    @Nullable
+    private final String mUserAgent;
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Callback mCallback;
+    private final Runnable mPollRunnable = this::requestRefresh;
+
+    @GuardedBy("this")
+    @Nullable
+    private PortalState mState;
+    // Validators of the last response, for conditional requests
+    @GuardedBy("this")
+    @Nullable
+    private String mETag;
+    @GuardedBy("this")
+    @Nullable
+    private String mLastModified;
+    @GuardedBy("this")
+    private boolean mFetching = false;
+    @GuardedBy("this")
+    private boolean mFetchAgain = false;
+    @GuardedBy("this")
+    private boolean mCancelled = false;
+    @GuardedBy("this")
+    private boolean mOpenReported = false;
+    @GuardedBy("this")
+    private int mNotModifiedCount = 0;
+
+    CaptivePortalApiClient(@NonNull Network network, @NonNull URL apiUrl,
+            @Nullable String userAgent, @NonNull Handler handler, @NonNull Executor executor,
+            @NonNull Callback callback) {
+        mNetwork = network;
+        mApiUrl = apiUrl;
+        mUserAgent = userAgent;
+        mHandler = handler;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /** Get the last state reported by the API, or null if it could not be fetched yet. */
+    @Nullable
+    synchronized PortalState getState() {
+        return mState;
+    }
+
+    /**
+     * Fetch the state of the portal from the API. This blocks on network I/O.
+     * @return the current state, or null if it could not be fetched.
+     */
+    @Nullable
+    PortalState fetch(int timeoutMs) {
+        final NetworkConnectionPool pool = NetworkConnectionPool.getInstance();
+        final Network pooledNetwork = pool.acquire(mNetwork);
+        HttpURLConnection connection = null;
+        InputStream body = null;
+        final PortalState state;
+        try {
+            connection = (HttpURLConnection) pooledNetwork.openConnection(mApiUrl);
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", API_CONTENT_TYPE);
+            if (mUserAgent != null) {
+                connection.setRequestProperty("User-Agent", mUserAgent);
+            }
+            synchronized (this) {
+                if (mETag != null) connection.setRequestProperty("If-None-Match", mETag);
+                if (mLastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", mLastModified);
+                }
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                synchronized (this) {
+                    mNotModifiedCount++;
+                    return mState;
+                }
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "API returned " + responseCode);
+                return null;
+            }
+            final InputStream is = connection.getInputStream();
+            final String json = readFully(is);
+            body = is;
+            state = parseState(json, SystemClock.elapsedRealtime());
+            synchronized (this) {
+                mETag = connection.getHeaderField("ETag");
+                mLastModified = connection.getHeaderField("Last-Modified");
+                mState = state;
+            }
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Could not fetch the captive portal API: " + e.getMessage());
+            return null;
+        } finally {
+            if (connection != null) pool.release(pooledNetwork, connection, body);
+        }
+        return state;
+    }
+
+    /** Start polling the API until the network is not captive anymore. */
+    void startPolling() {
+        synchronized (this) {
+            if (mCancelled || mOpenReported) return;
+        }
+        mHandler.postDelayed(mPollRunnable, POLL_INTERVAL_MS);
+    }
+
+    /**
+     * Fetch the state of the portal soon, for example after a navigation. Requests made while a
+     * fetch is in progress are coalesced into a single fetch.
+     */
+    void requestRefresh() {
+        synchronized (this) {
+            if (mCancelled || mOpenReported) return;
+            if (mFetching) {
+                mFetchAgain = true;
+                return;
+            }
+            mFetching = true;
+        }
+        mHandler.removeCallbacks(mPollRunnable);
+        mExecutor.execute(this::runFetch);
+    }
+
+    /** Stop polling the API. */
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+        }
+        mHandler.removeCallbacks(mPollRunnable);
+    }
+
+    private void runFetch() {
+        final PortalState state = fetch(DEFAULT_TIMEOUT_MS);
+        final boolean open = state != null && !state.mCaptive;
+        final boolean fetchAgain;
+        synchronized (this) {
+            mFetching = false;
+            fetchAgain = mFetchAgain;
+            mFetchAgain = false;
+            if (mCancelled || mOpenReported) return;
+            mOpenReported = open;
+        }
+        if (open) {
+            Log.d(TAG, "API reported the network is not captive anymore");
+            mCallback.onPortalOpen();
+        } else if (fetchAgain) {
+            requestRefresh();
+        } else {
+            mHandler.postDelayed(mPollRunnable, POLL_INTERVAL_MS);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getNotModifiedCount() {
+        return mNotModifiedCount;
+    }
+
+    @NonNull
+    private static String readFully(@NonNull InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            if (out.size() + read > MAX_RESPONSE_SIZE) {
+                throw new IOException("API response larger than " + MAX_RESPONSE_SIZE);
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+    @VisibleForTesting
+    @NonNull
+    static PortalState parseState(@NonNull String json, long receivedTimeMs)
+            throws JSONException {
+        final JSONObject obj = new JSONObject(json);
+        // "captive" is the only required field
+        return new PortalState(obj.getBoolean("captive"),
+                obj.has("user-portal-url") ? obj.getString("user-portal-url") : null,
+                obj.optLong("seconds-remaining", -1L),
+                obj.optLong("bytes-remaining", -1L),
+                receivedTimeMs);
+    }
+}
@@ -21,7 +21,14 @@ import static android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED;
 
 import static androidx.browser.customtabs.CustomTabsCallback.NAVIGATION_STARTED;
 
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_API_CLIENT;
 import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_CUSTOM_TABS;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_DOWNLOAD_APK_INSTALL;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_DOWNLOAD_SPOOL;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_FAST_VALIDATION_PROBE;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_NETWORK_PREWARM;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_RELOGIN_PREWARM;
 import static com.android.captiveportallogin.DownloadService.isDirectlyOpenType;
 
 import android.app.Activity;
@@ -34,16 +41,17 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.icu.text.NumberFormat;
 import android.net.CaptivePortal;
 import android.net.CaptivePortalData;
 import android.net.ConnectivityManager;
-import android.net.ConnectivityManager.NetworkCallback;
 import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
-import android.net.NetworkRequest;
 import android.net.Proxy;
+import android.net.ProxyInfo;
 import android.net.Uri;
 import android.net.captiveportal.CaptivePortalProbeSpec;
 import android.net.http.SslCertificate;
@@ -52,16 +60,20 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -96,24 +108,33 @@ import androidx.browser.customtabs.CustomTabsServiceConnection;
 import androidx.browser.customtabs.CustomTabsSession;
 import androidx.core.content.FileProvider;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
+import androidx.webkit.ProxyConfig;
+import androidx.webkit.ProxyController;
+import androidx.webkit.WebViewFeature;
 
+import com.android.captiveportallogin.DownloadService.DownloadRequest;
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 import com.android.net.module.util.DeviceConfigUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 public class CaptivePortalLoginActivity extends Activity {
     private static final String TAG = CaptivePortalLoginActivity.class.getSimpleName();
@@ -130,7 +151,19 @@ public class CaptivePortalLoginActivity extends Activity {
     // This should match the path name in the FileProvider paths XML.
     @VisibleForTesting
     static final String FILE_PROVIDER_DOWNLOAD_PATH = "downloads";
-    private static final int NO_DIRECTLY_OPEN_TASK_ID = -1;
+    private static final int NO_SPECULATIVE_DOWNLOAD_ID = -1;
+    private static final String APK_MIME_TYPE = "application/vnd.android.package-archive";
+    // Timeout of the speculative connection made to prewarm the portal network
+    private static final int PREWARM_CONNECTION_TIMEOUT_MS = 10_000;
+    // Maximum time the portal page waits for the first state of the captive portal API
+    private static final int STARTUP_API_TIMEOUT_MS = 1_000;
+    // Runs the system queries of the activity startup concurrently, and other background work of
+    // the app such as ReloginPrewarm
+    static final ExecutorService sBackgroundExecutor = Executors.newCachedThreadPool();
+    // Activity whose proxy is set as the WebView proxy override of the process, if any. Only
+    // accessed on the main thread.
+    @Nullable
+    private static CaptivePortalLoginActivity sProxyOverrideOwner;
     private enum Result {
         DISMISSED(MetricsEvent.ACTION_CAPTIVE_PORTAL_LOGIN_RESULT_DISMISSED),
         UNWANTED(MetricsEvent.ACTION_CAPTIVE_PORTAL_LOGIN_RESULT_UNWANTED),
@@ -140,6 +173,62 @@ public class CaptivePortalLoginActivity extends Activity {
         Result(int metricsEvent) { this.metricsEvent = metricsEvent; }
     };
 
+    /** State of the network and of the system, queried in the background on startup. */
+    private static final class StartupSnapshot {
+        // Null if the network has disappeared
+        @Nullable
+        final NetworkCapabilities mNetworkCapabilities;
+        @Nullable
+        final CharSequence mVenueFriendlyName;
+        // Custom tabs provider to show the portal in, or null if WebView should be used
+        @Nullable
+        final String mCustomTabsProviderPackage;
+        final boolean mFastValidationProbeEnabled;
+        // Download feature flags, read here so that starting a download does not query them on
+        // the main thread
+        final boolean mDownloadToMediaStoreEnabled;
+        final boolean mDownloadApkInstallEnabled;
+        final boolean mDownloadSpoolEnabled;
+        // Client of the captive portal API of the network, or null if the network has no API or
+        // the API client is disabled
+        @Nullable
+        final CaptivePortalApiClient mApiClient;
+        // Initial state reported by the API, or null if it was not received in time
+        @Nullable
+        final CaptivePortalApiClient.PortalState mApiState;
+        // Completes with the initial state reported by the API, even if it is received late
+        @NonNull
+        final CompletableFuture<CaptivePortalApiClient.PortalState> mPendingApiState;
+
+        StartupSnapshot(@Nullable NetworkCapabilities nc, @Nullable LinkProperties lp,
+                @Nullable String multiNetworkCustomTabsProvider,
+                boolean fastValidationProbeEnabled, boolean downloadToMediaStoreEnabled,
+                boolean downloadApkInstallEnabled, boolean downloadSpoolEnabled,
+                @Nullable CaptivePortalApiClient apiClient,
+                @Nullable CaptivePortalApiClient.PortalState apiState,
+                @NonNull CompletableFuture<CaptivePortalApiClient.PortalState> pendingApiState) {
+            mNetworkCapabilities = nc;
+            mFastValidationProbeEnabled = fastValidationProbeEnabled;
+            mDownloadToMediaStoreEnabled = downloadToMediaStoreEnabled;
+            mDownloadApkInstallEnabled = downloadApkInstallEnabled;
+            mDownloadSpoolEnabled = downloadSpoolEnabled;
+            mApiClient = apiClient;
+            mApiState = apiState;
+            mPendingApiState = pendingApiState;
+            mVenueFriendlyName = getVenueFriendlyName(lp);
+            if (multiNetworkCustomTabsProvider != null
+                    && (lp == null || lp.getPrivateDnsServerName() != null)) {
+                Log.i(TAG, "Do not use custom tabs if private DNS (strict mode) is enabled");
+                mCustomTabsProviderPackage = null;
+            } else {
+                // TODO: b/330670424
+                // - check if privacy settings such as VPN/private DNS is bypassable, otherwise,
+                //   fallback to WebView.
+                mCustomTabsProviderPackage = multiNetworkCustomTabsProvider;
+            }
+        }
+    }
+
     private URL mUrl;
     private CaptivePortalProbeSpec mProbeSpec;
     private String mUserAgent;
@@ -147,7 +236,26 @@ public class CaptivePortalLoginActivity extends Activity {
     private CharSequence mVenueFriendlyName = null;
     @VisibleForTesting
     protected CaptivePortal mCaptivePortal;
-    private NetworkCallback mNetworkCallback;
+    @VisibleForTesting
+    PortalNetworkTracker mNetworkTracker;
+    // Coalesces the reevaluations requested by navigation events
+    @VisibleForTesting
+    ReevaluationScheduler mReevaluationScheduler;
+    // Probes the network after pages are loaded if enabled. Only accessed on the main thread.
+    @Nullable
+    private ValidationProber mValidationProber;
+    // Polls the captive portal API if the network has one. Only accessed on the main thread.
+    @Nullable
+    private CaptivePortalApiClient mApiClient;
+    // Login page reported by the captive portal API, loaded instead of mUrl if not null
+    @Nullable
+    private URL mUserPortalUrl;
+    // Completed once mNetworkTracker is registered
+    @Nullable
+    private CompletableFuture<Void> mNetworkTrackerRegistration;
+    // Completed once the startup snapshot is bound to the UI
+    @VisibleForTesting
+    final CompletableFuture<Void> mStartupComplete = new CompletableFuture<>();
     private ConnectivityManager mCm;
     private DevicePolicyManager mDpm;
     private WifiManager mWifiManager;
@@ -157,6 +265,14 @@ public class CaptivePortalLoginActivity extends Activity {
     // This member is just used in the UI thread model(e.g. onCreate and onDestroy), so non-final
     // should be fine.
     private boolean mCaptivePortalCustomTabsEnabled;
+    // Download feature flags from the startup snapshot. Downloads only start from the portal page,
+    // which is loaded after the snapshot is bound, so these are set before they are read. Only
+    // accessed on the main thread.
+    private boolean mDownloadToMediaStoreEnabled;
+    private boolean mDownloadApkInstallEnabled;
+    private boolean mDownloadSpoolEnabled;
+    // Time at which onCreate was called, to measure the delay until the portal is requested
+    private long mCreateTimeMs;
     // Ensures that done() happens once exactly, handling concurrent callers with atomic operations.
     private final AtomicBoolean isDone = new AtomicBoolean(false);
 
@@ -164,7 +280,7 @@ public class CaptivePortalLoginActivity extends Activity {
         @Override
         public void onNavigationEvent(int navigationEvent, @Nullable Bundle extras) {
             if (navigationEvent == NAVIGATION_STARTED) {
-                mCaptivePortal.reevaluateNetwork();
+                mReevaluationScheduler.request();
             }
         }
     };
@@ -194,7 +310,7 @@ public class CaptivePortalLoginActivity extends Activity {
                         customTabsIntent.intent.putExtra(Intent.EXTRA_REFERRER,
                                 Uri.parse(emptyReferrer));
                         customTabsIntent.launchUrl(CaptivePortalLoginActivity.this,
-                                Uri.parse(mUrl.toString()));
+                                Uri.parse(getPortalPageUrl().toString()));
                     }
 
                     @Override
@@ -210,10 +326,44 @@ public class CaptivePortalLoginActivity extends Activity {
     private final SparseArray<DownloadRequest> mDownloadRequests = new SparseArray<>();
     @GuardedBy("mDownloadRequests")
     private int mNextDownloadRequestId = 1;
+    // Downloads started by the DownloadService while the user is picking their destination,
+    // keyed by the requestCode of the pending request. Their download ID is used to pass the
+    // destination to the service, or to cancel them if the picker is dismissed.
+    @GuardedBy("mDownloadRequests")
+    private final SparseIntArray mSpeculativeDownloadIds = new SparseIntArray();
+    // Directly open files of this activity are downloaded in a directory named after this
+    // session, so that they are not deleted by the cleanup of files left by previous sessions.
+    private final String mDirectlyOpenSession = UUID.randomUUID().toString();
+    // Completed once the first pass of cleanup of directly open files left by previous sessions
+    // is done
+    @VisibleForTesting
+    CompletableFuture<Void> mDirectlyOpenCleanup;
+    // Passes the contents of blob: downloads from the page to the DownloadService
+    private final BlobDownloadBridge mBlobDownloadBridge = new BlobDownloadBridge();
 
-    // mDownloadService and mDirectlyOpenId must be always updated from the main thread.
+    /** Error page split around the part that depends on the VPN state. */
     @VisibleForTesting
-    int mDirectlyOpenId = NO_DIRECTLY_OPEN_TASK_ID;
+    static final class ErrorPageTemplate {
+        private final String mBeforeVpnMsg;
+        private final String mAfterVpnMsg;
+
+        private ErrorPageTemplate(String beforeVpnMsg, String afterVpnMsg) {
+            mBeforeVpnMsg = beforeVpnMsg;
+            mAfterVpnMsg = afterVpnMsg;
+        }
+    }
+
+    /** Progress of a directly open task, as shown by the spinner overlay. */
+    private static final class DirectlyOpenProgress {
+        private long mBytesRead = 0L;
+        private long mContentLength = -1L;
+    }
+
+    // Directly open tasks in progress, indexed by download ID. They run concurrently, and the
+    // spinner is shown until all of them are completed.
+    // mDownloadService and mDirectlyOpenTasks must be always updated from the main thread.
+    @VisibleForTesting
+    final SparseArray<DirectlyOpenProgress> mDirectlyOpenTasks = new SparseArray<>();
     @Nullable
     private DownloadService.DownloadServiceBinder mDownloadService = null;
     private final ServiceConnection mDownloadServiceConn = new ServiceConnection() {
@@ -230,7 +380,10 @@ public class CaptivePortalLoginActivity extends Activity {
         public void onServiceConnected(ComponentName name, IBinder binder) {
             Log.d(TAG, "Download service connected");
             mDownloadService = (DownloadService.DownloadServiceBinder) binder;
-            mDownloadService.setProgressCallback(mProgressCallback);
+            // Callbacks are delivered on the main thread. The service only keeps a weak reference
+            // to the callback, so it does not leak this activity.
+            mDownloadService.registerProgressCallback(getMainExecutor(), mProgressCallback);
+            mDownloadService.setPublishFromSpool(mDownloadSpoolEnabled);
             maybeStartPendingDownloads();
         }
     };
@@ -241,6 +394,7 @@ public class CaptivePortalLoginActivity extends Activity {
         @Override
         public void onDownloadComplete(Uri inputFile, String mimeType, int downloadId,
                 boolean success) {
+            ensureRunningOnMainThread();
             if (isDirectlyOpenType(mimeType) && success) {
                 try {
                     startActivity(makeDirectlyOpenIntent(inputFile, mimeType));
@@ -250,7 +404,7 @@ public class CaptivePortalLoginActivity extends Activity {
                     // was uninstalled while downloading, which is vanishingly rare. Try to delete
                     // it in case of the target activity being removed somehow.
                     Log.wtf(TAG, "No activity could handle " + mimeType + " file.", e);
-                    runOnUiThread(() -> tryDeleteFile(inputFile));
+                    tryDeleteFile(inputFile);
                 }
             }
 
@@ -259,27 +413,68 @@ public class CaptivePortalLoginActivity extends Activity {
 
         @Override
         public void onDownloadAborted(int downloadId, int reason) {
+            ensureRunningOnMainThread();
             if (reason == DownloadService.DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE) {
-                runOnUiThread(() -> Toast.makeText(CaptivePortalLoginActivity.this,
-                        R.string.file_too_large_cancel_download, Toast.LENGTH_LONG).show());
+                Toast.makeText(CaptivePortalLoginActivity.this,
+                        R.string.file_too_large_cancel_download, Toast.LENGTH_LONG).show();
             }
 
             verifyDownloadIdAndMaybeHideSpinner(downloadId);
         }
 
+        @Override
+        public void onDownloadProgress(int downloadId, long bytesRead, long contentLength,
+                long bytesPerSecond) {
+            ensureRunningOnMainThread();
+            // Only directly open tasks are shown in the activity, other downloads show their
+            // progress in notifications.
+            final DirectlyOpenProgress progress = mDirectlyOpenTasks.get(downloadId);
+            if (progress == null) return;
+            progress.mBytesRead = bytesRead;
+            progress.mContentLength = contentLength;
+            updateDirectlyOpenProgressText();
+        }
+
         private void verifyDownloadIdAndMaybeHideSpinner(int id) {
-            // Hide the spinner when the task completed signal for the target task is received.
+            // Hide the spinner when the task completed signal is received for the last directly
+            // open task in progress.
             //
-            // mDirectlyOpenId will not be updated until the existing directly open task is
-            // completed or the connection to the DownloadService is lost. If the id is updated to
-            // NO_DIRECTLY_OPEN_TASK_ID because of the loss of connection to DownloadService, the
-            // spinner should be already hidden. Receiving relevant callback is ignorable.
-            runOnUiThread(() -> {
-                if (mDirectlyOpenId == id) setProgressSpinnerVisibility(View.GONE);
-            });
+            // Tasks are only removed from mDirectlyOpenTasks when completed, or when the
+            // connection to the DownloadService is lost. In the latter case the spinner should be
+            // already hidden. Receiving relevant callback is ignorable.
+            if (mDirectlyOpenTasks.get(id) == null) return;
+            mDirectlyOpenTasks.remove(id);
+            if (mDirectlyOpenTasks.size() == 0) {
+                setProgressSpinnerVisibility(View.GONE);
+            } else {
+                updateDirectlyOpenProgressText();
+            }
         }
     };
 
+    /**
+     * Show the aggregate progress of the directly open tasks in progress: a percentage if the
+     * size of all of them is known, or the number of bytes downloaded otherwise.
+     */
+    private void updateDirectlyOpenProgressText() {
+        long bytesRead = 0L;
+        long contentLength = 0L;
+        for (int i = 0; i < mDirectlyOpenTasks.size(); i++) {
+            final DirectlyOpenProgress progress = mDirectlyOpenTasks.valueAt(i);
+            bytesRead += progress.mBytesRead;
+            if (contentLength < 0 || progress.mContentLength < 0) {
+                contentLength = -1L;
+            } else {
+                contentLength += progress.mContentLength;
+            }
+        }
+        final TextView progressText = getProgressText();
+        progressText.setText(contentLength > 0
+                ? NumberFormat.getPercentInstance().format((double) bytesRead / contentLength)
+                : Formatter.formatShortFileSize(this, bytesRead));
+        progressText.setVisibility(View.VISIBLE);
+    }
+
     @VisibleForTesting
     boolean isFeatureEnabled(final String name) {
         return DeviceConfigUtils.isCaptivePortalLoginFeatureEnabled(getApplicationContext(), name);
@@ -289,22 +484,81 @@ public class CaptivePortalLoginActivity extends Activity {
         ensureRunningOnMainThread();
 
         if (mDownloadService == null) return;
+        final ArrayList<DownloadRequest> newRequests = new ArrayList<>();
+        final ArrayList<Integer> newRequestCodes = new ArrayList<>();
+        // Speculative download ID -> destination picked by the user
+        final SparseArray<Uri> pickedDestinations = new SparseArray<>();
         synchronized (mDownloadRequests) {
             for (int i = 0; i < mDownloadRequests.size(); i++) {
+                final int requestCode = mDownloadRequests.keyAt(i);
                 final DownloadRequest req = mDownloadRequests.valueAt(i);
-                if (req.mOutFile == null) continue;
-
-                final int dlId = mDownloadService.requestDownload(mNetwork, mUserAgent, req.mUrl,
-                        req.mFilename, req.mOutFile, getApplicationContext(), req.mMimeType);
-                if (isDirectlyOpenType(req.mMimeType)) {
-                    mDirectlyOpenId = dlId;
-                    setProgressSpinnerVisibility(View.VISIBLE);
+                final int speculativeId = mSpeculativeDownloadIds.get(requestCode,
+                        NO_SPECULATIVE_DOWNLOAD_ID);
+                if (speculativeId != NO_SPECULATIVE_DOWNLOAD_ID) {
+                    // Already started: only the destination is missing.
+                    if (req.mOutFile == null) continue;
+                    pickedDestinations.put(speculativeId, req.mOutFile);
+                    mSpeculativeDownloadIds.delete(requestCode);
+                } else {
+                    // Requests without output file are started while the user picks the file.
+                    newRequests.add(req);
+                    newRequestCodes.add(requestCode);
+                    if (req.isAwaitingOutFile()) continue;
                 }
-
                 mDownloadRequests.removeAt(i);
                 i--;
             }
         }
+
+        for (int i = 0; i < pickedDestinations.size(); i++) {
+            if (!mDownloadService.setDownloadDestination(pickedDestinations.keyAt(i),
+                    pickedDestinations.valueAt(i))) {
+                Log.e(TAG, "Download " + pickedDestinations.keyAt(i) + " failed before its "
+                        + "destination was picked");
+            }
+        }
+        if (newRequests.isEmpty()) return;
+
+        // Flush all new requests at once, so a burst of downloads is enqueued in one step.
+        final int[] dlIds = mDownloadService.requestDownloads(mNetwork, mUserAgent, newRequests);
+        for (int i = 0; i < newRequests.size(); i++) {
+            final DownloadRequest req = newRequests.get(i);
+            if (DownloadService.isBlobUrl(req.mUrl)) startBlobTransfer(req.mUrl, dlIds[i]);
+            if (req.isAwaitingOutFile()) {
+                synchronized (mDownloadRequests) {
+                    mSpeculativeDownloadIds.put(newRequestCodes.get(i), dlIds[i]);
+                }
+            } else if (isDirectlyOpenType(req.mMimeType)) {
+                mDirectlyOpenTasks.put(dlIds[i], new DirectlyOpenProgress());
+                setProgressSpinnerVisibility(View.VISIBLE);
+            }
+        }
+    }
+
+    private void startBlobTransfer(@NonNull String url, int downloadId) {
+        final WebView webview = findViewById(R.id.webview);
+        if (webview == null) {
+            mDownloadService.endBlob(downloadId, false /* success */);
+            return;
+        }
+        mBlobDownloadBridge.startTransfer(webview, mDownloadService, url, downloadId);
+    }
+
+    /**
+     * Forget a download request whose destination will not be picked, and cancel the download
+     * if it was started speculatively.
+     */
+    private void discardPendingDownload(int requestCode) {
+        final int speculativeId;
+        synchronized (mDownloadRequests) {
+            mDownloadRequests.remove(requestCode);
+            speculativeId = mSpeculativeDownloadIds.get(requestCode, NO_SPECULATIVE_DOWNLOAD_ID);
+            mSpeculativeDownloadIds.delete(requestCode);
+        }
+        if (speculativeId != NO_SPECULATIVE_DOWNLOAD_ID && mDownloadService != null) {
+            Log.d(TAG, "Cancelling speculative download " + speculativeId);
+            mDownloadService.cancelTask(speculativeId);
+        }
     }
 
     private Intent makeDirectlyOpenIntent(Uri inputFile, String mimeType) {
@@ -324,23 +578,6 @@ public class CaptivePortalLoginActivity extends Activity {
         }
     }
 
-    private static final class DownloadRequest {
-        @NonNull final String mUrl;
-        @NonNull final String mFilename;
-        @NonNull final String mMimeType;
-        // mOutFile is null for requests where the device is currently asking the user to pick a
-        // place to put the file. When the user has picked the file name, the request will be
-        // replaced by a new one with the correct file name in onActivityResult.
-        @Nullable final Uri mOutFile;
-        DownloadRequest(@NonNull String url, @NonNull String filename, @NonNull String mimeType,
-                @Nullable Uri outFile) {
-            mUrl = url;
-            mFilename = filename;
-            mMimeType = mimeType;
-            mOutFile = outFile;
-        }
-    }
-
     @VisibleForTesting
     @Nullable
     String getDefaultCustomTabsProviderPackage() {
@@ -352,9 +589,12 @@ public class CaptivePortalLoginActivity extends Activity {
         return CustomTabsClient.isSetNetworkSupported(getApplicationContext(), defaultPackageName);
     }
 
-    private void initializeWebView() {
+    /** Inflate the WebView and its settings, before the portal can be loaded in it. */
+    private void inflateWebView() {
         // Also initializes proxy system properties.
         mCm.bindProcessToNetwork(mNetwork);
+        // Have the assets of error pages ready before any error happens
+        InternalAssetServer.getInstance(this).preload(sBackgroundExecutor);
 
         // Proxy system properties must be initialized before setContentView is called
         // because setContentView initializes the WebView logic which in turn reads the
@@ -363,7 +603,6 @@ public class CaptivePortalLoginActivity extends Activity {
 
         getActionBar().setDisplayShowHomeEnabled(false);
         getActionBar().setElevation(0); // remove shadow
-        getActionBar().setTitle(getHeaderTitle());
         getActionBar().setSubtitle("");
 
         final WebView webview = getWebview();
@@ -382,9 +621,7 @@ public class CaptivePortalLoginActivity extends Activity {
         webview.setWebViewClient(mWebViewClient);
         webview.setWebChromeClient(new MyWebChromeClient());
         webview.setDownloadListener(new PortalDownloadListener());
-        // Start initial page load so WebView finishes loading proxy settings.
-        // Actual load of mUrl is initiated by MyWebViewClient.
-        webview.loadData("", "text/html", null);
+        webview.addJavascriptInterface(mBlobDownloadBridge, BlobDownloadBridge.JS_INTERFACE_NAME);
 
         mSwipeRefreshLayout = findViewById(R.id.swipe_refresh);
         mSwipeRefreshLayout.setOnRefreshListener(() -> {
@@ -393,10 +630,36 @@ public class CaptivePortalLoginActivity extends Activity {
         });
     }
 
-    @Nullable
-    private String getCustomTabsProviderPackageIfEnabled() {
-        if (!mCaptivePortalCustomTabsEnabled) return null;
+    /** Bind the startup snapshot to the inflated WebView, and start loading the portal. */
+    private void startWebView(@NonNull StartupSnapshot snapshot) {
+        getActionBar().setTitle(getHeaderTitle(snapshot.mNetworkCapabilities));
+        if (snapshot.mFastValidationProbeEnabled) {
+            // The prober reports its result on a background thread, but done() reads the state
+            // of the activity and finishes it, so must run on the main thread.
+            mValidationProber = new ValidationProber(mNetwork, mUrl, mUserAgent, mProbeSpec,
+                    new Handler(Looper.getMainLooper()), sBackgroundExecutor,
+                    () -> getMainExecutor().execute(() -> done(Result.DISMISSED)));
+        }
+        final WebView webview = getWebview();
+        if (!maybeOverrideWebViewProxy(webview)) {
+            // The proxy of the network cannot be passed to WebView directly: start initial page
+            // load so WebView finishes loading proxy settings, once any override set by another
+            // activity of the process no longer applies.
+            // Actual load of mUrl is then initiated by MyWebViewClient.
+            clearWebViewProxyOverride(() -> {
+                mWebViewClient.mLoadingProxyPage = true;
+                webview.loadData("", "text/html", null);
+            });
+        }
+    }
 
+    /**
+     * Get the default custom tabs provider if it supports multi-network.
+     *
+     * <p>This queries the package manager, so should not be called on the main thread.
+     */
+    @Nullable
+    private String getMultiNetworkCustomTabsProviderPackage() {
         final String defaultPackageName = getDefaultCustomTabsProviderPackage();
         if (defaultPackageName == null) {
             Log.i(TAG, "Default browser doesn't support custom tabs");
@@ -408,24 +671,17 @@ public class CaptivePortalLoginActivity extends Activity {
             Log.i(TAG, "Default browser doesn't support multi-network");
             return null;
         }
-
-        final LinkProperties lp = mCm.getLinkProperties(mNetwork);
-        if (lp == null || lp.getPrivateDnsServerName() != null) {
-            Log.i(TAG, "Do not use custom tabs if private DNS (strict mode) is enabled");
-            return null;
-        }
-
-        // TODO: b/330670424
-        // - check if privacy settings such as VPN/private DNS is bypassable, otherwise, fallback
-        //   to WebView.
         return defaultPackageName;
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTimeMs = SystemClock.elapsedRealtime();
         // Initialize the feature flag after CaptivePortalLoginActivity is created, otherwise, the
         // context is still null and throw NPE when fetching the package manager from context.
+        // Unlike other startup queries this is read on the main thread, as it decides whether the
+        // WebView can be inflated while the other queries run.
         mCaptivePortalCustomTabsEnabled = isFeatureEnabled(CAPTIVE_PORTAL_CUSTOM_TABS);
         mCaptivePortal = getIntent().getParcelableExtra(ConnectivityManager.EXTRA_CAPTIVE_PORTAL);
         // Null CaptivePortal is unexpected. The following flow will need to access mCaptivePortal
@@ -435,12 +691,13 @@ public class CaptivePortalLoginActivity extends Activity {
             finish();
             return;
         }
+        mReevaluationScheduler = new ReevaluationScheduler(() -> mCaptivePortal.reevaluateNetwork(),
+                new Handler(Looper.getMainLooper()), ReevaluationScheduler.COALESCING_WINDOW_MS);
         mCm = getSystemService(ConnectivityManager.class);
         mDpm = getSystemService(DevicePolicyManager.class);
         mWifiManager = getSystemService(WifiManager.class);
         mNetwork = getIntent().getParcelableExtra(ConnectivityManager.EXTRA_NETWORK);
         mNetwork = mNetwork.getPrivateDnsBypassingCopy();
-        mVenueFriendlyName = getVenueFriendlyName();
         mUserAgent =
                 getIntent().getStringExtra(ConnectivityManager.EXTRA_CAPTIVE_PORTAL_USER_AGENT);
         mUrl = getUrl();
@@ -462,60 +719,244 @@ public class CaptivePortalLoginActivity extends Activity {
             mProbeSpec = null;
         }
 
-        mNetworkCallback = new NetworkCallback() {
-            @Override
-            public void onLost(Network lostNetwork) {
-                // If the network disappears while the app is up, exit.
-                if (mNetwork.equals(lostNetwork)) done(Result.UNWANTED);
-            }
+        mNetworkTracker = new PortalNetworkTracker(this, mCm, mNetwork,
+                new PortalNetworkTracker.Callback() {
+                    @Override
+                    public void onPortalNetworkLost() {
+                        // If the network disappears while the app is up, exit.
+                        NetworkConnectionPool.getInstance().evict(mNetwork);
+                        done(Result.UNWANTED);
+                    }
+
+                    @Override
+                    public void onPortalNetworkCapabilitiesChanged(
+                            @NonNull NetworkCapabilities nc) {
+                        handleCapabilitiesChanged(mNetwork, nc);
+                    }
+                }, this::queryAlwaysOnVpnLockdown, sBackgroundExecutor);
+
+        // The binder calls needed to set up the activity run concurrently in the background,
+        // instead of one after the other on the main thread. The WebView is inflated meanwhile,
+        // and the results are bound to it once they are all available.
+        final CompletableFuture<StartupSnapshot> snapshot = queryStartupSnapshot();
+        if (!mCaptivePortalCustomTabsEnabled) inflateWebView();
+        snapshot.whenCompleteAsync(this::onStartupSnapshot, getMainExecutor());
+
+        // Open the session of the directly open files, removing the files left by previous
+        // sessions without blocking startup.
+        mDirectlyOpenCleanup = DirectlyOpenFileStore.getInstance(this, sBackgroundExecutor)
+                .openSession(mDirectlyOpenSession);
+    }
 
-            @Override
-            public void onCapabilitiesChanged(Network network, NetworkCapabilities nc) {
-                handleCapabilitiesChanged(network, nc);
+    /**
+     * Start the system queries needed to set up the activity on background threads, and gather
+     * their results into a {@link StartupSnapshot}.
+     */
+    @NonNull
+    private CompletableFuture<StartupSnapshot> queryStartupSnapshot() {
+        final ConnectivityManager cm = mCm;
+        final Network network = mNetwork;
+        final URL url = mUrl;
+        final PortalNetworkTracker networkTracker = mNetworkTracker;
+        final Context appContext = getApplicationContext();
+        CompletableFuture.runAsync(() -> {
+            if (isFeatureEnabled(CAPTIVE_PORTAL_NETWORK_PREWARM)) prewarmNetwork(network, url);
+        }, sBackgroundExecutor);
+        CompletableFuture.runAsync(() -> {
+            if (isFeatureEnabled(CAPTIVE_PORTAL_RELOGIN_PREWARM)) {
+                ReloginPrewarm.prewarm(appContext, network, url);
             }
-        };
-        mCm.registerNetworkCallback(new NetworkRequest.Builder().build(), mNetworkCallback);
+        }, sBackgroundExecutor);
+
+        final CompletableFuture<NetworkCapabilities> nc = CompletableFuture.supplyAsync(
+                () -> cm.getNetworkCapabilities(network), sBackgroundExecutor);
+        // The tracker only listens to networks with the transports of the portal network. If the
+        // network has disappeared, the activity exits without registering it. The page is only
+        // loaded once the tracker is registered, so that its VPN state is known by error pages.
+        mNetworkTrackerRegistration = nc.thenAcceptAsync(caps -> {
+            if (caps != null) networkTracker.register(caps);
+        }, sBackgroundExecutor);
+        final CompletableFuture<LinkProperties> lp = CompletableFuture.supplyAsync(
+                () -> cm.getLinkProperties(network), sBackgroundExecutor);
+        final CompletableFuture<String> customTabsProvider = mCaptivePortalCustomTabsEnabled
+                ? CompletableFuture.supplyAsync(this::getMultiNetworkCustomTabsProviderPackage,
+                        sBackgroundExecutor)
+                : CompletableFuture.completedFuture(null);
+        final CompletableFuture<Boolean> fastValidationProbe =
+                isFeatureEnabledAsync(CAPTIVE_PORTAL_FAST_VALIDATION_PROBE);
+        final CompletableFuture<Boolean> downloadToMediaStore =
+                isFeatureEnabledAsync(CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE);
+        final CompletableFuture<Boolean> downloadApkInstall =
+                isFeatureEnabledAsync(CAPTIVE_PORTAL_DOWNLOAD_APK_INSTALL);
+        final CompletableFuture<Boolean> downloadSpool =
+                isFeatureEnabledAsync(CAPTIVE_PORTAL_DOWNLOAD_SPOOL);
+        final CompletableFuture<CaptivePortalApiClient> apiClient = lp.thenApplyAsync(
+                this::makeCaptivePortalApiClient, sBackgroundExecutor);
+        // The initial state of the API is fetched concurrently with the other queries. The
+        // connection timeouts do not bound DNS resolution, so the portal page only waits for the
+        // state for a bounded time, after which it is loaded without it.
+        final CompletableFuture<CaptivePortalApiClient.PortalState> pendingApiState =
+                apiClient.thenApplyAsync(client -> client == null
+                        ? null : client.fetch(CaptivePortalApiClient.DEFAULT_TIMEOUT_MS),
+                        sBackgroundExecutor);
+        final CompletableFuture<CaptivePortalApiClient.PortalState> apiState =
+                new CompletableFuture<>();
+        pendingApiState.whenComplete((state, e) -> apiState.complete(state));
+        new Handler(Looper.getMainLooper()).postDelayed(() -> apiState.complete(null),
+                STARTUP_API_TIMEOUT_MS);
+        return CompletableFuture.allOf(nc, mNetworkTrackerRegistration, lp, customTabsProvider,
+                fastValidationProbe, downloadToMediaStore, downloadApkInstall, downloadSpool,
+                apiClient, apiState)
+                .thenApply(v -> new StartupSnapshot(nc.join(), lp.join(),
+                        customTabsProvider.join(), fastValidationProbe.join(),
+                        downloadToMediaStore.join(), downloadApkInstall.join(),
+                        downloadSpool.join(), apiClient.join(), apiState.join(),
+                        pendingApiState));
+    }
 
-        // If the network has disappeared, exit.
-        final NetworkCapabilities networkCapabilities = mCm.getNetworkCapabilities(mNetwork);
-        if (networkCapabilities == null) {
-            finishAndRemoveTask();
-            return;
-        }
+    /** Read a feature flag on a background thread. */
+    @NonNull
+    private CompletableFuture<Boolean> isFeatureEnabledAsync(@NonNull String name) {
+        return CompletableFuture.supplyAsync(() -> isFeatureEnabled(name), sBackgroundExecutor);
+    }
 
-        final String customTabsProviderPackage = getCustomTabsProviderPackageIfEnabled();
-        if (customTabsProviderPackage == null) {
-            initializeWebView();
-        } else {
-            CustomTabsClient.bindCustomTabsService(this, customTabsProviderPackage,
-                    mCustomTabsServiceConnection);
+    /**
+     * Create a client for the captive portal API of the network if it has one.
+     *
+     * <p>This reads the feature flags, so should not be called on the main thread.
+     */
+    @Nullable
+    private CaptivePortalApiClient makeCaptivePortalApiClient(@Nullable LinkProperties lp) {
+        if (lp == null || lp.getCaptivePortalApiUrl() == null) return null;
+        if (!isFeatureEnabled(CAPTIVE_PORTAL_API_CLIENT)) return null;
+        final URL apiUrl = makeURL(lp.getCaptivePortalApiUrl().toString());
+        if (apiUrl == null) return null;
+        if (!isCaptivePortalApiSecureUrl(apiUrl)) {
+            Log.w(TAG, "Ignoring captive portal API not served over HTTPS");
+            return null;
         }
+        // The client reports state changes on a background thread: done() must run on the main
+        // thread.
+        return new CaptivePortalApiClient(mNetwork, apiUrl, mUserAgent,
+                new Handler(Looper.getMainLooper()), sBackgroundExecutor,
+                () -> getMainExecutor().execute(() -> done(Result.DISMISSED)));
+    }
 
-        maybeDeleteDirectlyOpenFile();
+    /**
+     * Whether the URL can be used for the captive portal API, or as the login page reported by
+     * the API. RFC 8908 requires both to be served over HTTPS.
+     */
+    @VisibleForTesting
+    boolean isCaptivePortalApiSecureUrl(@NonNull URL url) {
+        return "https".equals(url.getProtocol());
     }
 
-    private void maybeDeleteDirectlyOpenFile() {
-        // Try to remove the directly open files if exists.
-        final File downloadPath = new File(getFilesDir(), FILE_PROVIDER_DOWNLOAD_PATH);
+    private void onStartupSnapshot(@Nullable StartupSnapshot snapshot,
+            @Nullable Throwable error) {
         try {
-            deleteRecursively(downloadPath);
-        } catch (IOException e) {
-            Log.d(TAG, "Exception while deleting temp download files", e);
+            if (isDestroyed()) return;
+            if (error != null) {
+                Log.e(TAG, "Could not query the state of the network", error);
+                finishAndRemoveTask();
+                return;
+            }
+            mVenueFriendlyName = snapshot.mVenueFriendlyName;
+            mDownloadToMediaStoreEnabled = snapshot.mDownloadToMediaStoreEnabled;
+            mDownloadApkInstallEnabled = snapshot.mDownloadApkInstallEnabled;
+            mDownloadSpoolEnabled = snapshot.mDownloadSpoolEnabled;
+            // If the network has disappeared, exit.
+            if (snapshot.mNetworkCapabilities == null) {
+                finishAndRemoveTask();
+                return;
+            }
+
+            if (snapshot.mApiClient != null && !startCaptivePortalApiClient(snapshot.mApiClient,
+                    snapshot.mApiState, snapshot.mPendingApiState)) {
+                return;
+            }
+
+            if (snapshot.mCustomTabsProviderPackage != null) {
+                CustomTabsClient.bindCustomTabsService(this, snapshot.mCustomTabsProviderPackage,
+                        mCustomTabsServiceConnection);
+                return;
+            }
+            if (mCaptivePortalCustomTabsEnabled) {
+                // Custom tabs cannot be used: fall back to WebView.
+                inflateWebView();
+            }
+            startWebView(snapshot);
+        } finally {
+            mStartupComplete.complete(null);
         }
     }
 
-    private static boolean deleteRecursively(final File path) throws IOException {
-        if (path.isDirectory()) {
-            final File[] files = path.listFiles();
-            if (files != null) {
-                for (final File child : files) {
-                    deleteRecursively(child);
-                }
+    /**
+     * Use the state reported by the captive portal API, and start polling it.
+     * @param state The initial state reported by the API, or null if not received in time.
+     * @param pendingState Completes with the initial state, even if received after startup.
+     * @return false if the network is not captive anymore, in which case the activity is done.
+     */
+    private boolean startCaptivePortalApiClient(@NonNull CaptivePortalApiClient client,
+            @Nullable CaptivePortalApiClient.PortalState state,
+            @NonNull CompletableFuture<CaptivePortalApiClient.PortalState> pendingState) {
+        mApiClient = client;
+        if (state == null) {
+            // The portal page is loaded without waiting for the state anymore, but the network
+            // may already be open.
+            pendingState.thenAcceptAsync(lateState -> {
+                if (lateState != null && !lateState.mCaptive) done(Result.DISMISSED);
+            }, getMainExecutor());
+        } else if (!state.mCaptive) {
+            done(Result.DISMISSED);
+            return false;
+        } else if (state.mUserPortalUrl != null) {
+            // Load the login page directly instead of following the redirects of the probe.
+            final URL userPortalUrl = makeURL(state.mUserPortalUrl);
+            if (userPortalUrl != null && isCaptivePortalApiSecureUrl(userPortalUrl)) {
+                mUserPortalUrl = userPortalUrl;
             }
         }
-        final Path parsedPath = Paths.get(path.toURI());
-        Log.d(TAG, "Cleaning up " + parsedPath);
-        return Files.deleteIfExists(parsedPath);
+        client.startPolling();
+        return true;
+    }
+
+    /** Get the URL of the first page to show. */
+    @NonNull
+    private URL getPortalPageUrl() {
+        return mUserPortalUrl != null ? mUserPortalUrl : mUrl;
+    }
+
+    /**
+     * Resolve the portal host and make a speculative connection to it on the portal network.
+     *
+     * <p>High-latency portal networks make cold DNS and TLS setup expensive: while the WebView is
+     * being created, this fills the resolver cache of the network, which is used by all lookups on
+     * the network and honours the TTL of the records, and leaves a warm connection in
+     * {@link NetworkConnectionPool}, reused by {@link DownloadService}. This is also used by
+     * {@link ReloginPrewarm} for the portal of the previous login. This blocks on the network, so
+     * must not be called on the main thread.
+     */
+    static void prewarmNetwork(@NonNull Network network, @NonNull URL url) {
+        final String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) return;
+        final NetworkConnectionPool pool = NetworkConnectionPool.getInstance();
+        final Network pooledNetwork = pool.acquire(network);
+        HttpURLConnection connection = null;
+        InputStream body = null;
+        try {
+            connection = (HttpURLConnection) pooledNetwork.openConnection(url);
+            connection.setRequestMethod("HEAD");
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(PREWARM_CONNECTION_TIMEOUT_MS);
+            connection.setReadTimeout(PREWARM_CONNECTION_TIMEOUT_MS);
+            // HEAD responses have no body: this only waits for the response to be received.
+            body = connection.getInputStream();
+        } catch (IOException e) {
+            Log.d(TAG, "Could not prewarm the portal network", e);
+        } finally {
+            if (connection != null) pool.release(pooledNetwork, connection, body);
+        }
     }
 
     @VisibleForTesting
@@ -532,9 +973,71 @@ public class CaptivePortalLoginActivity extends Activity {
         }
     }
 
+    /**
+     * Apply the proxy of the network to the WebView with the proxy override API, and load the
+     * portal as soon as it is applied.
+     *
+     * <p>This avoids loading a blank page first to get WebView to read the proxy settings, which
+     * delays the first request to the portal by a full page load.
+     * @return false if the proxy could not be applied this way, in which case the caller needs to
+     *         fall back to {@link #setWebViewProxy}.
+     */
+    private boolean maybeOverrideWebViewProxy(@NonNull WebView webview) {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.PROXY_OVERRIDE)) return false;
+        // The process is bound to the network, so this is the proxy of the network.
+        final ProxyConfig config = makeWebViewProxyConfig(mCm.getDefaultProxy());
+        if (config == null) return false;
+        sProxyOverrideOwner = this;
+        getProxyController().setProxyOverride(config, getMainExecutor(),
+                () -> webview.loadUrl(getPortalPageUrl().toString()));
+        return true;
+    }
+
+    /**
+     * Clear the proxy override of the process, then run the callback on the main thread.
+     *
+     * <p>The override applies to all WebViews of the process, and stays set after the activity that
+     * set it is destroyed, so WebView would keep using the proxy of a previous network otherwise.
+     */
+    private void clearWebViewProxyOverride(@NonNull Runnable onCleared) {
+        sProxyOverrideOwner = null;
+        // Without the proxy override API, no override can have been set.
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.PROXY_OVERRIDE)) {
+            onCleared.run();
+            return;
+        }
+        getProxyController().clearProxyOverride(getMainExecutor(), onCleared);
+    }
+
+    @VisibleForTesting
+    ProxyController getProxyController() {
+        return ProxyController.getInstance();
+    }
+
+    /**
+     * Make the configuration of the proxy override API for the proxy of the network.
+     * @return null if the proxy cannot be passed to the proxy override API.
+     */
+    @VisibleForTesting
+    @Nullable
+    static ProxyConfig makeWebViewProxyConfig(@Nullable ProxyInfo proxy) {
+        final ProxyConfig.Builder config = new ProxyConfig.Builder();
+        if (proxy == null) return config.addDirect().build();
+        // PAC proxies cannot be passed to the proxy override API
+        if (!Uri.EMPTY.equals(proxy.getPacFileUrl())) return null;
+        final String host = proxy.getHost();
+        // IPv6 literals need brackets to be separated from the port
+        final boolean isIpv6Literal = host.indexOf(':') >= 0 && !host.startsWith("[");
+        config.addProxyRule((isIpv6Literal ? "[" + host + "]" : host) + ":" + proxy.getPort());
+        for (String exclusion : proxy.getExclusionList()) {
+            config.addBypassRule(exclusion);
+        }
+        return config.build();
+    }
+
     // Find WebView's proxy BroadcastReceiver and prompt it to read proxy system properties.
+    // This is only used if the proxy override API cannot be used, see maybeOverrideWebViewProxy.
     private void setWebViewProxy() {
-        // TODO: migrate to androidx WebView proxy setting API as soon as it is finalized
         try {
             final Field loadedApkField = Application.class.getDeclaredField("mLoadedApk");
             final Class<?> loadedApkClass = loadedApkField.getType();
@@ -570,6 +1073,7 @@ public class CaptivePortalLoginActivity extends Activity {
         switch (result) {
             case DISMISSED:
                 mCaptivePortal.reportCaptivePortalDismissed();
+                maybeRecordReloginPrewarm();
                 break;
             case UNWANTED:
                 mCaptivePortal.ignoreNetwork();
@@ -581,6 +1085,41 @@ public class CaptivePortalLoginActivity extends Activity {
         finishAndRemoveTask();
     }
 
+    /**
+     * Record the portal logged in to, so that it is prewarmed when the activity starts again after
+     * the session obtained by logging in expires, if its expiry is known.
+     */
+    private void maybeRecordReloginPrewarm() {
+        final Context appContext = getApplicationContext();
+        final ConnectivityManager cm = mCm;
+        final Network network = mNetwork;
+        final URL portalUrl = getLoginPageUrl();
+        final CaptivePortalApiClient.PortalState apiState =
+                mApiClient == null ? null : mApiClient.getState();
+        sBackgroundExecutor.execute(() -> {
+            if (!isFeatureEnabled(CAPTIVE_PORTAL_RELOGIN_PREWARM)) return;
+            final long expiry = ReloginPrewarm.getSessionExpiryElapsedMs(apiState,
+                    cm.getLinkProperties(network));
+            if (expiry < 0) return;
+            ReloginPrewarm.recordLogin(appContext, network, portalUrl);
+        });
+    }
+
+    /**
+     * Get the URL of the page shown when logging in. The portal URL of the activity often only
+     * redirects to it.
+     */
+    @NonNull
+    private URL getLoginPageUrl() {
+        final WebView webview = findViewById(R.id.webview);
+        final String pageUrl = webview == null ? null : webview.getUrl();
+        if (pageUrl != null && (pageUrl.startsWith("http://") || pageUrl.startsWith("https://"))) {
+            final URL url = makeURL(pageUrl);
+            if (url != null) return url;
+        }
+        return getPortalPageUrl();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.captive_portal_login, menu);
@@ -633,17 +1172,21 @@ public class CaptivePortalLoginActivity extends Activity {
 
         getProgressLayout().setVisibility(visibility);
         if (visibility != View.VISIBLE) {
-            mDirectlyOpenId = NO_DIRECTLY_OPEN_TASK_ID;
+            mDirectlyOpenTasks.clear();
+            // Progress is only known once the next directly open task starts transferring.
+            getProgressText().setVisibility(View.GONE);
         }
     }
 
     @VisibleForTesting
     void cancelPendingTask() {
         ensureRunningOnMainThread();
-        if (mDirectlyOpenId != NO_DIRECTLY_OPEN_TASK_ID) {
+        if (mDirectlyOpenTasks.size() > 0) {
             Toast.makeText(this, R.string.cancel_pending_downloads, Toast.LENGTH_SHORT).show();
-            // Remove the pending task for downloading the directly open file.
-            mDownloadService.cancelTask(mDirectlyOpenId);
+            // Remove the pending tasks for downloading the directly open files.
+            for (int i = 0; i < mDirectlyOpenTasks.size(); i++) {
+                mDownloadService.cancelTask(mDirectlyOpenTasks.keyAt(i));
+            }
         }
     }
 
@@ -654,11 +1197,38 @@ public class CaptivePortalLoginActivity extends Activity {
         }
     }
 
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // Error pages are built for the locale, layout direction and font scale
+        if (mWebViewClient != null) mWebViewClient.invalidateErrorPages();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        if (mValidationProber != null) {
+            mValidationProber.cancel();
+        }
+        if (mApiClient != null) {
+            mApiClient.cancel();
+        }
+        if (mReevaluationScheduler != null) {
+            mReevaluationScheduler.cancel();
+            Log.d(TAG, "Saved " + mReevaluationScheduler.getSavedCount()
+                    + " network reevaluations");
+        }
+
         if (mDownloadService != null) {
+            // Results of file pickers still open can no longer be received.
+            synchronized (mDownloadRequests) {
+                for (int i = 0; i < mSpeculativeDownloadIds.size(); i++) {
+                    mDownloadService.cancelTask(mSpeculativeDownloadIds.valueAt(i));
+                }
+                mSpeculativeDownloadIds.clear();
+            }
+            mDownloadService.unregisterProgressCallback(mProgressCallback);
             unbindService(mDownloadServiceConn);
         }
 
@@ -666,6 +1236,10 @@ public class CaptivePortalLoginActivity extends Activity {
             unbindService(mCustomTabsServiceConnection);
         }
 
+        // Do not clear an override set since by another activity, for its own network.
+        if (sProxyOverrideOwner == this) {
+            clearWebViewProxyOverride(() -> {});
+        }
         final WebView webview = (WebView) findViewById(R.id.webview);
         if (webview != null) {
             webview.stopLoading();
@@ -676,31 +1250,47 @@ public class CaptivePortalLoginActivity extends Activity {
             ((ViewGroup) webview.getParent()).removeView(webview);
             webview.destroy();
         }
-        if (mNetworkCallback != null) {
-            // mNetworkCallback is not null if mUrl is not null.
-            mCm.unregisterNetworkCallback(mNetworkCallback);
-        }
-        if (mLaunchBrowser) {
-            // Give time for this network to become default. After 500ms just proceed.
-            for (int i = 0; i < 5; i++) {
-                // TODO: This misses when mNetwork underlies a VPN.
-                if (mNetwork.equals(mCm.getActiveNetwork())) break;
+        // Files opened by other apps may still be in use: they are deleted by the next cleanup.
+        DirectlyOpenFileStore.getInstance(this, sBackgroundExecutor)
+                .closeSession(mDirectlyOpenSession);
+        if (mNetworkTrackerRegistration != null) {
+            // mNetworkTrackerRegistration is not null if mUrl is not null. The tracker is
+            // registered in the background, so may not be registered yet.
+            final PortalNetworkTracker networkTracker = mNetworkTracker;
+            mNetworkTrackerRegistration.thenAcceptAsync(v -> {
                 try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+                    networkTracker.unregister();
+                } catch (IllegalArgumentException e) {
+                    // The tracker was not registered, as the network had disappeared
                 }
-            }
+            }, sBackgroundExecutor);
+        }
+        if (mLaunchBrowser) {
+            // Give time for this network to become default without blocking the main thread.
             final String url = mUrl.toString();
             if (DBG) {
                 Log.d(TAG, "starting activity with intent ACTION_VIEW for " + url);
             }
-            startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
+            DefaultNetworkBrowserLauncher.launchWhenDefault(mCm, mNetwork,
+                    new Intent(Intent.ACTION_VIEW, Uri.parse(url)), this::startBrowserActivity);
         }
     }
 
+    /**
+     * Start the browser for the portal. This is called after the activity is destroyed, so the
+     * application context is used.
+     */
+    @VisibleForTesting
+    void startBrowserActivity(@NonNull Intent intent) {
+        getApplicationContext().startActivity(intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode != RESULT_OK || data == null) return;
+        if (resultCode != RESULT_OK || data == null) {
+            discardPendingDownload(requestCode);
+            return;
+        }
 
         // Start download after receiving a created file to download to
         final DownloadRequest pendingRequest;
@@ -715,6 +1305,7 @@ public class CaptivePortalLoginActivity extends Activity {
         final Uri fileUri = data.getData();
         if (fileUri == null) {
             Log.e(TAG, "No file received from download file creation result");
+            discardPendingDownload(requestCode);
             return;
         }
 
@@ -764,27 +1355,19 @@ public class CaptivePortalLoginActivity extends Activity {
         return SystemProperties.getInt("ro.debuggable", 0) == 1;
     }
 
-    private static boolean isDismissed(
-            int httpResponseCode, String locationHeader, CaptivePortalProbeSpec probeSpec) {
-        return (probeSpec != null)
-                ? probeSpec.getResult(httpResponseCode, locationHeader).isSuccessful()
-                : (httpResponseCode == 204);
-    }
-
+    // hasVpnNetwork and isAlwaysOnVpnEnabled return the state cached by mNetworkTracker, so that
+    // error pages can be built without binder calls.
     @VisibleForTesting
     boolean hasVpnNetwork() {
-        for (Network network : mCm.getAllNetworks()) {
-            final NetworkCapabilities nc = mCm.getNetworkCapabilities(network);
-            if (nc != null && nc.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
-                return true;
-            }
-        }
-
-        return false;
+        return mNetworkTracker.hasVpnNetwork();
     }
 
     @VisibleForTesting
     boolean isAlwaysOnVpnEnabled() {
+        return mNetworkTracker.isAlwaysOnVpnLockdownEnabled();
+    }
+
+    private boolean queryAlwaysOnVpnLockdown() {
         final ComponentName cn = new ComponentName(this, CaptivePortalLoginActivity.class);
         return mDpm.isAlwaysOnVpnLockdownEnabled(cn);
     }
@@ -792,21 +1375,33 @@ public class CaptivePortalLoginActivity extends Activity {
     @VisibleForTesting
     class MyWebViewClient extends WebViewClient {
         private static final String INTERNAL_ASSETS = "file:///android_asset/";
+        private static final String INTERNAL_ASSETS_PATH = "/android_asset/";
 
         private final String mBrowserBailOutToken = Long.toString(new Random().nextLong());
         private final String mCertificateOutToken = Long.toString(new Random().nextLong());
         // How many Android device-independent-pixels per scaled-pixel
         // dp/sp = (px/sp) / (px/dp) = (1/sp) / (1/dp)
-        private final float mDpPerSp = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 1,
-                    getResources().getDisplayMetrics()) /
-                    TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1,
-                    getResources().getDisplayMetrics());
+        private float mDpPerSp = computeDpPerSp();
+        // Error pages depend on the locale, layout direction and font scale, but not on the error
+        // itself beyond the strings of each kind of error. They are built once and kept split
+        // around the part that depends on the VPN state, which changes while the activity runs.
+        // Cleared when the configuration changes. Only accessed on the main thread.
+        // Error pages keyed by the resource of their warning message
+        @VisibleForTesting
+        final SparseArray<ErrorPageTemplate> mErrorPageTemplates = new SparseArray<>();
+        @Nullable
+        private String mVpnWarningFragment;
+        @Nullable
+        private String mBrowserLinkFragment;
+        // Number of pages loaded, not counting the blank page loaded to read the proxy settings
         private int mPagesLoaded;
+        // Whether the blank page used to cause the WebView to fetch the proxy settings is loading
+        private boolean mLoadingProxyPage = false;
         private final ArraySet<String> mMainFrameUrls = new ArraySet<>();
 
         // If we haven't finished cleaning up the history, don't allow going back.
         public boolean allowBack() {
-            return mPagesLoaded > 1;
+            return mPagesLoaded > 0;
         }
 
         private String mSslErrorTitle = null;
@@ -820,14 +1415,18 @@ public class CaptivePortalLoginActivity extends Activity {
                 done(Result.WANTED_AS_IS);
                 return;
             }
-            // The first page load is used only to cause the WebView to
+            // The blank page load is used only to cause the WebView to
             // fetch the proxy settings.  Don't update the URL bar, and
             // don't check if the captive portal is still there.
-            if (mPagesLoaded == 0) {
+            if (mLoadingProxyPage) {
                 return;
             }
             final URL url = makeURL(urlString);
             Log.d(TAG, "onPageStarted: " + sanitizeURL(url));
+            if (mPagesLoaded == 0) {
+                Log.d(TAG, "Portal requested " + (SystemClock.elapsedRealtime() - mCreateTimeMs)
+                        + "ms after creation");
+            }
             // For internally generated pages, leave URL bar listing prior URL as this is the URL
             // the page refers to.
             if (!urlString.startsWith(INTERNAL_ASSETS)) {
@@ -835,29 +1434,34 @@ public class CaptivePortalLoginActivity extends Activity {
                 getActionBar().setSubtitle(subtitle);
             }
             getProgressBar().setVisibility(View.VISIBLE);
-            mCaptivePortal.reevaluateNetwork();
+            mReevaluationScheduler.request();
         }
 
         @Override
         public void onPageFinished(WebView view, String url) {
-            mPagesLoaded++;
             getProgressBar().setVisibility(View.INVISIBLE);
             mSwipeRefreshLayout.setRefreshing(false);
-            if (mPagesLoaded == 1) {
+            if (mLoadingProxyPage) {
+                mLoadingProxyPage = false;
                 // Now that WebView has loaded at least one page we know it has read in the proxy
                 // settings.  Now prompt the WebView read the Network-specific proxy settings.
                 setWebViewProxy();
                 // Load the real page.
-                view.loadUrl(mUrl.toString());
+                view.loadUrl(getPortalPageUrl().toString());
                 return;
-            } else if (mPagesLoaded == 2) {
+            }
+            mPagesLoaded++;
+            if (mPagesLoaded == 1) {
                 // Prevent going back to empty first page.
                 // Fix for missing focus, see b/62449959 for details. Remove it once we get a
                 // newer version of WebView (60.x.y).
                 view.requestFocus();
                 view.clearHistory();
             }
-            mCaptivePortal.reevaluateNetwork();
+            mReevaluationScheduler.request();
+            // The page may be the result of a login: check whether the network has access.
+            if (mValidationProber != null) mValidationProber.requestProbe();
+            if (mApiClient != null) mApiClient.requestRefresh();
         }
 
         // Convert Android scaled-pixels (sp) to HTML size.
@@ -889,8 +1493,16 @@ public class CaptivePortalLoginActivity extends Activity {
         @Override
         public WebResourceResponse shouldInterceptRequest(WebView view,
                 WebResourceRequest request) {
+            final Uri url = request.getUrl();
             if (request.isForMainFrame()) {
-                mMainFrameUrls.add(request.getUrl().toString());
+                mMainFrameUrls.add(url.toString());
+            }
+            // Assets of internal pages are served from memory.
+            final String path = url.getPath();
+            if ("file".equals(url.getScheme()) && path != null
+                    && path.startsWith(INTERNAL_ASSETS_PATH)) {
+                return InternalAssetServer.getInstance(CaptivePortalLoginActivity.this)
+                        .serve(path.substring(INTERNAL_ASSETS_PATH.length()));
             }
             return null;
         }
@@ -916,6 +1528,21 @@ public class CaptivePortalLoginActivity extends Activity {
             mSslError = error;
         }
 
+        private float computeDpPerSp() {
+            return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 1,
+                    getResources().getDisplayMetrics()) /
+                    TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1,
+                    getResources().getDisplayMetrics());
+        }
+
+        /** Drop the cached error pages, as the configuration they were built for changed. */
+        void invalidateErrorPages() {
+            mDpPerSp = computeDpPerSp();
+            mErrorPageTemplates.clear();
+            mVpnWarningFragment = null;
+            mBrowserLinkFragment = null;
+        }
+
         private String makeHtmlTag() {
             if (getWebview().getLayoutDirection() == View.LAYOUT_DIRECTION_RTL) {
                 return "<html dir=\"rtl\">";
@@ -932,20 +1559,37 @@ public class CaptivePortalLoginActivity extends Activity {
             // to get the status of VPN always-on due to permission denied. So adding a version
             // check here to prevent CaptivePortalLogin crashes.
             if (hasVpnNetwork() || isAlwaysOnVpnEnabled()) {
-                final String vpnWarning = getString(R.string.no_bypass_error_vpnwarning);
-                return "  <div class=vpnwarning>" + vpnWarning + "</div><br>";
+                if (mVpnWarningFragment == null) {
+                    final String vpnWarning = getString(R.string.no_bypass_error_vpnwarning);
+                    mVpnWarningFragment = "  <div class=vpnwarning>" + vpnWarning + "</div><br>";
+                }
+                return mVpnWarningFragment;
             }
 
-            final String continueMsg = getString(R.string.error_continue_via_browser);
-            return "  <a id=continue_link href=" + mBrowserBailOutToken + ">" + continueMsg
-                    + "</a><br>";
+            if (mBrowserLinkFragment == null) {
+                final String continueMsg = getString(R.string.error_continue_via_browser);
+                mBrowserLinkFragment = "  <a id=continue_link href=" + mBrowserBailOutToken + ">"
+                        + continueMsg + "</a><br>";
+            }
+            return mBrowserLinkFragment;
         }
 
+        // The extra link is only built with the template, as it may need resources
         private String makeErrorPage(@StringRes int warningMsgRes, @StringRes int exampleMsgRes,
-                String extraLink) {
+                Supplier<String> extraLink) {
+            ErrorPageTemplate template = mErrorPageTemplates.get(warningMsgRes);
+            if (template == null) {
+                template = makeErrorPageTemplate(warningMsgRes, exampleMsgRes, extraLink.get());
+                mErrorPageTemplates.put(warningMsgRes, template);
+            }
+            return template.mBeforeVpnMsg + getVpnMsgOrLinkToBrowser() + template.mAfterVpnMsg;
+        }
+
+        private ErrorPageTemplate makeErrorPageTemplate(@StringRes int warningMsgRes,
+                @StringRes int exampleMsgRes, String extraLink) {
             final String warningMsg = getString(warningMsgRes);
             final String exampleMsg = getString(exampleMsgRes);
-            return String.join("\n",
+            final String beforeVpnMsg = String.join("\n",
                     makeHtmlTag(),
                     "<head>",
                     "  <meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">",
@@ -987,22 +1631,25 @@ public class CaptivePortalLoginActivity extends Activity {
                     "  <p><img src=quantum_ic_warning_amber_96.png><br>",
                     "  <div class=warn>" + warningMsg + "</div>",
                     "  <div class=example>" + exampleMsg + "</div>",
-                    getVpnMsgOrLinkToBrowser(),
+                    "" /* followed by the VPN message */);
+            final String afterVpnMsg = String.join("\n",
+                    "" /* preceded by the VPN message */,
                     extraLink,
                     "</body>",
                     "</html>");
+            return new ErrorPageTemplate(beforeVpnMsg, afterVpnMsg);
         }
 
         private String makeCustomSchemeErrorPage() {
             return makeErrorPage(R.string.custom_scheme_warning, R.string.custom_scheme_example,
-                    "" /* extraLink */);
+                    () -> "" /* extraLink */);
         }
 
-        private String makeSslErrorPage() {
-            final String certificateMsg = getString(R.string.ssl_error_view_certificate);
+        @VisibleForTesting
+        String makeSslErrorPage() {
             return makeErrorPage(R.string.ssl_error_warning, R.string.ssl_error_example,
-                    "<a id=cert_link href=" + mCertificateOutToken + ">" + certificateMsg
-                            + "</a>");
+                    () -> "<a id=cert_link href=" + mCertificateOutToken + ">"
+                            + getString(R.string.ssl_error_view_certificate) + "</a>");
         }
 
         @Override
@@ -1115,6 +1762,11 @@ public class CaptivePortalLoginActivity extends Activity {
             // WebView should call onDownloadStart from the UI thread, but to be extra-safe as
             // that is not documented behavior, access the download requests array with a lock.
             synchronized (mDownloadRequests) {
+                if (isAwaitingOutFile(url)) {
+                    // The link was likely tapped twice: the file picker is already open for it.
+                    Log.d(TAG, "Ignoring duplicate download request for " + url);
+                    return;
+                }
                 requestId = mNextDownloadRequestId++;
                 // Only bind the DownloadService for the first download. The request is put into
                 // array later, so size == 0 with null mDownloadService means it's the first item.
@@ -1140,11 +1792,31 @@ public class CaptivePortalLoginActivity extends Activity {
                 }
             }
 
+            // Skip the file picker if downloads are saved to the shared Downloads collection, or
+            // if the downloaded package is streamed to the installer.
+            final boolean toMediaStore = mDownloadToMediaStoreEnabled;
+            final boolean installPackage = APK_MIME_TYPE.equals(guessedMimetype)
+                    && mDownloadApkInstallEnabled;
+            if (toMediaStore || installPackage) {
+                DownloadRequest request = toMediaStore
+                        ? DownloadRequest.forMediaStore(url, displayName, guessedMimetype)
+                        : new DownloadRequest(url, displayName, guessedMimetype,
+                                null /* outFile */);
+                if (installPackage) request = request.withPackageInstall();
+                synchronized (mDownloadRequests) {
+                    mDownloadRequests.put(requestId, request);
+                }
+                maybeStartPendingDownloads();
+                return;
+            }
+
             synchronized (mDownloadRequests) {
                 // outFile will be assigned after file is created.
                 mDownloadRequests.put(requestId, new DownloadRequest(url, displayName,
                         guessedMimetype, null /* outFile */));
             }
+            // Start downloading while the user picks the file, if the service is bound already.
+            maybeStartPendingDownloads();
 
             final Intent createFileIntent = DownloadService.makeCreateFileIntent(
                     guessedMimetype, displayName);
@@ -1159,20 +1831,24 @@ public class CaptivePortalLoginActivity extends Activity {
             }
         }
 
+        @GuardedBy("mDownloadRequests")
+        private boolean isAwaitingOutFile(String url) {
+            for (int i = 0; i < mDownloadRequests.size(); i++) {
+                final DownloadRequest req = mDownloadRequests.valueAt(i);
+                if (req.isAwaitingOutFile() && req.mUrl.equals(url)) return true;
+            }
+            return false;
+        }
+
         private void startDirectlyOpenDownload(String url, String filename, String mimeType,
                 int requestId) throws ActivityNotFoundException, IOException {
             ensureRunningOnMainThread();
-            // Reject another directly open task if there is one task in progress. Using
-            // mDirectlyOpenId here is ok because mDirectlyOpenId will not be updated to
-            // non-NO_DIRECTLY_OPEN_TASK_ID until the new task is started.
-            if (mDirectlyOpenId != NO_DIRECTLY_OPEN_TASK_ID) {
-                Log.d(TAG, "Existing directly open task is in progress. Ignore this.");
-                return;
-            }
-
-            final File downloadPath = new File(getFilesDir(), FILE_PROVIDER_DOWNLOAD_PATH);
-            downloadPath.mkdirs();
-            final File file = new File(downloadPath.getPath(), filename);
+            // Directly open tasks run concurrently: each one is downloaded to its own directory,
+            // so that files with the same name do not overwrite each other.
+            final File downloadPath = DirectlyOpenFileStore.getInstance(
+                    CaptivePortalLoginActivity.this, sBackgroundExecutor)
+                    .createDownloadDirectory(mDirectlyOpenSession, requestId);
+            final File file = new File(downloadPath, filename);
 
             final Uri uri = FileProvider.getUriForFile(
                     CaptivePortalLoginActivity.this, getFileProviderAuthority(), file);
@@ -1216,8 +1892,11 @@ public class CaptivePortalLoginActivity extends Activity {
         return findViewById(R.id.downloading_panel);
     }
 
-    private String getHeaderTitle() {
-        NetworkCapabilities nc = mCm.getNetworkCapabilities(mNetwork);
+    private TextView getProgressText() {
+        return findViewById(R.id.download_progress_text);
+    }
+
+    private String getHeaderTitle(@Nullable NetworkCapabilities nc) {
         final CharSequence networkName = getNetworkName(nc);
         if (TextUtils.isEmpty(networkName)
                 || nc == null || !nc.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
@@ -1298,8 +1977,8 @@ public class CaptivePortalLoginActivity extends Activity {
         return SSL_ERROR_MSGS.get(error.getPrimaryError(), R.string.ssl_error_unknown);
     }
 
-    private CharSequence getVenueFriendlyName() {
-        final LinkProperties linkProperties = mCm.getLinkProperties(mNetwork);
+    @Nullable
+    private static CharSequence getVenueFriendlyName(@Nullable LinkProperties linkProperties) {
         if (linkProperties == null) {
             return null;
         }
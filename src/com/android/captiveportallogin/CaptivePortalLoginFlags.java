@@ -25,4 +25,50 @@ public class CaptivePortalLoginFlags {
      * captive portal when connecting to a network that presents a captive portal.
      */
     public static final String CAPTIVE_PORTAL_CUSTOM_TABS = "captive_portal_custom_tabs";
+
+    /**
+     * Experiment flag to spool downloads to app-private storage before saving them to the file
+     * picked by the user, so that slow document providers do not slow down the download.
+     */
+    public static final String CAPTIVE_PORTAL_DOWNLOAD_SPOOL = "captive_portal_download_spool";
+
+    /**
+     * Experiment flag to save downloads directly to the shared Downloads collection, instead of
+     * asking the user to pick the destination file.
+     */
+    public static final String CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE =
+            "captive_portal_download_to_mediastore";
+
+    /**
+     * Experiment flag to stream downloaded APKs directly to the package installer, so they can be
+     * installed as soon as the download completes. A copy of the APK is only kept if
+     * {@link #CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE} is also enabled.
+     */
+    public static final String CAPTIVE_PORTAL_DOWNLOAD_APK_INSTALL =
+            "captive_portal_download_apk_install";
+
+    /**
+     * Experiment flag to resolve the portal host and open a speculative connection to it on the
+     * portal network when the activity is created, in parallel with the WebView inflation.
+     */
+    public static final String CAPTIVE_PORTAL_NETWORK_PREWARM = "captive_portal_network_prewarm";
+
+    /**
+     * Experiment flag to probe the portal network from the app after portal pages are loaded, so
+     * the activity is dismissed as soon as the user has logged in.
+     */
+    public static final String CAPTIVE_PORTAL_FAST_VALIDATION_PROBE =
+            "captive_portal_fast_validation_probe";
+
+    /**
+     * Experiment flag to use the captive portal API (RFC 8908) of networks that provide one, to
+     * open the login page directly and detect when the network is not captive anymore.
+     */
+    public static final String CAPTIVE_PORTAL_API_CLIENT = "captive_portal_api_client";
+
+    /**
+     * Experiment flag to prewarm the portal of the previous login when the login activity starts
+     * again on a network, after the session obtained by logging in expired.
+     */
+    public static final String CAPTIVE_PORTAL_RELOGIN_PREWARM = "captive_portal_relogin_prewarm";
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static android.net.NetworkCapabilities.TRANSPORT_VPN;
+
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Starts a browser for the portal once the portal network becomes the default network, or
+ * underlies the default VPN, so that the browser does not load the portal on another network.
+ *
+ * <p>This outlives the activity that requested it, which is typically being destroyed. The browser
+ * is started after a timeout if the network does not become default, as the user asked for it.
+ */
+class DefaultNetworkBrowserLauncher {
+    private static final String TAG = DefaultNetworkBrowserLauncher.class.getSimpleName();
+
+    // Maximum time to wait for the network to become default before starting the browser anyway
+    @VisibleForTesting
+    static final long DEFAULT_NETWORK_TIMEOUT_MS = 500L;
+
+    @NonNull
+    private final ConnectivityManager mCm;
+    @NonNull
+    private final Network mNetwork;
+    @NonNull
+    private final Intent mIntent;
+    @NonNull
+    private final Consumer<Intent> mLauncher;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Only accessed on the main thread
+    private boolean mLaunched = false;
+
+    private final NetworkCallback mDefaultNetworkCallback = new NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network network,
+                @NonNull NetworkCapabilities nc) {
+            if (isOrUnderlies(network, nc)) launch("network is default");
+        }
+    };
+
+    private DefaultNetworkBrowserLauncher(@NonNull ConnectivityManager cm,
+            @NonNull Network network, @NonNull Intent intent,
+            @NonNull Consumer<Intent> launcher) {
+        mCm = cm;
+        mNetwork = network;
+        mIntent = intent;
+        mLauncher = launcher;
+    }
+
+    /**
+     * Start the browser with the intent once the network is default, or after a timeout.
+     *
+     * <p>Must be called on the main thread. The launcher is called on the main thread exactly once.
+     */
+    static void launchWhenDefault(@NonNull ConnectivityManager cm, @NonNull Network network,
+            @NonNull Intent intent, @NonNull Consumer<Intent> launcher) {
+        new DefaultNetworkBrowserLauncher(cm, network, intent, launcher).start();
+    }
+
+    private void start() {
+        mHandler.postDelayed(() -> launch("timed out waiting for network to be default"),
+                DEFAULT_NETWORK_TIMEOUT_MS);
+        try {
+            // If the network is already default, the callback fires immediately
+            mCm.registerDefaultNetworkCallback(mDefaultNetworkCallback, mHandler);
+        } catch (RuntimeException e) {
+            // For example if the app has too many callbacks registered
+            Log.e(TAG, "Could not register default network callback", e);
+            launch("could not track default network");
+        }
+    }
+
+    private boolean isOrUnderlies(@NonNull Network defaultNetwork,
+            @NonNull NetworkCapabilities nc) {
+        if (mNetwork.equals(defaultNetwork)) return true;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || !nc.hasTransport(TRANSPORT_VPN)) {
+            return false;
+        }
+        final List<Network> underlyingNetworks = nc.getUnderlyingNetworks();
+        return underlyingNetworks != null && underlyingNetworks.contains(mNetwork);
+    }
+
+    private void launch(@NonNull String reason) {
+        if (mLaunched) return;
+        mLaunched = true;
+        mHandler.removeCallbacksAndMessages(null);
+        try {
+            mCm.unregisterNetworkCallback(mDefaultNetworkCallback);
+        } catch (IllegalArgumentException e) {
+            // The callback was not registered
+        }
+        Log.d(TAG, "Starting browser: " + reason);
+        mLauncher.accept(mIntent);
+    }
+}
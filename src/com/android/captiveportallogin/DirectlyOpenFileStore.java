@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static com.android.captiveportallogin.CaptivePortalLoginActivity.FILE_PROVIDER_DOWNLOAD_PATH;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Storage for the files downloaded to be opened directly, and cleanup of the files left behind by
+ * previous sessions.
+ *
+ * <p>Each session, typically an instance of {@link CaptivePortalLoginActivity}, downloads its
+ * files in its own directory. Sessions are recorded in a small index when they are opened, so
+ * that leftovers of previous sessions can be deleted without walking the download directory.
+ * Cleanup deletes the directories of all sessions that are not open in this process. It runs in
+ * the background with a time budget, so a large number of leftovers does not delay the portal;
+ * whatever could not be deleted in time is deleted in later passes, started when the main thread
+ * is idle.
+ */
+class DirectlyOpenFileStore {
+    private static final String TAG = DirectlyOpenFileStore.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "directly_open_index";
+    // Maximum duration of a cleanup pass
+    @VisibleForTesting
+    static final long CLEANUP_TIME_BUDGET_MS = 100L;
+
+    @GuardedBy("DirectlyOpenFileStore.class")
+    private static DirectlyOpenFileStore sInstance;
+
+    @NonNull
+    private final File mDownloadDir;
+    @NonNull
+    private final AtomicFile mIndexFile;
+    @NonNull
+    private final Executor mExecutor;
+    private final long mTimeBudgetMs;
+    // Session directories that were created and not deleted yet, relative to mDownloadDir.
+    // Loaded from mIndexFile on first use.
+    @GuardedBy("this")
+    private LinkedHashSet<String> mIndex;
+    // Sessions opened and not closed yet in this process, whose files must not be deleted
+    @GuardedBy("this")
+    private final ArraySet<String> mOpenSessions = new ArraySet<>();
+    @GuardedBy("this")
+    private boolean mIdleCleanupScheduled = false;
+
+    @VisibleForTesting
+    DirectlyOpenFileStore(@NonNull File filesDir, @NonNull Executor executor, long timeBudgetMs) {
+        mDownloadDir = new File(filesDir, FILE_PROVIDER_DOWNLOAD_PATH);
+        mIndexFile = new AtomicFile(new File(filesDir, INDEX_FILE_NAME));
+        mExecutor = executor;
+        mTimeBudgetMs = timeBudgetMs;
+    }
+
+    /** Get the store shared by all components of the app. */
+    @NonNull
+    static synchronized DirectlyOpenFileStore getInstance(@NonNull Context context,
+            @NonNull Executor executor) {
+        if (sInstance == null) {
+            sInstance = new DirectlyOpenFileStore(context.getApplicationContext().getFilesDir(),
+                    executor, CLEANUP_TIME_BUDGET_MS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Open a session, so that its files are kept until it is closed.
+     *
+     * <p>The session is recorded in the index, and the files of sessions that are not open are
+     * deleted, in the background. If they cannot all be deleted within the time budget, the rest
+     * is deleted when the main thread becomes idle.
+     * @return a future completed when the first cleanup pass is done.
+     */
+    @NonNull
+    CompletableFuture<Void> openSession(@NonNull String session) {
+        synchronized (this) {
+            mOpenSessions.add(session);
+        }
+        return CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                final LinkedHashSet<String> index = getIndex();
+                if (index.add(session)) writeIndex(index);
+            }
+            runCleanupPass();
+        }, mExecutor);
+    }
+
+    /** Close a session, so that its files are deleted by the next cleanup. */
+    synchronized void closeSession(@NonNull String session) {
+        mOpenSessions.remove(session);
+    }
+
+    /**
+     * Create the directory to download a file in for an open session.
+     *
+     * <p>The session is recorded in the index when it is opened, so this does not read or write
+     * the index, and only does file I/O for the directory of the session.
+     */
+    @NonNull
+    File createDownloadDirectory(@NonNull String session, int requestId) throws IOException {
+        final File dir = new File(new File(mDownloadDir, session), Integer.toString(requestId));
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create download directory " + dir);
+        }
+        return dir;
+    }
+
+    private void runCleanupPass() {
+        if (!cleanUp()) scheduleIdleCleanup();
+    }
+
+    /**
+     * Delete the files of all sessions that are not open, for up to the time budget.
+     * @return whether all of them were deleted.
+     */
+    @VisibleForTesting
+    boolean cleanUp() {
+        final long deadline = SystemClock.elapsedRealtime() + mTimeBudgetMs;
+        final List<String> stale;
+        synchronized (this) {
+            stale = new ArrayList<>(getIndex());
+            stale.removeAll(mOpenSessions);
+        }
+        if (stale.isEmpty()) return true;
+
+        final List<String> deleted = new ArrayList<>();
+        for (final String session : stale) {
+            if (!deleteRecursively(new File(mDownloadDir, session), deadline)) break;
+            deleted.add(session);
+        }
+        synchronized (this) {
+            final LinkedHashSet<String> index = getIndex();
+            index.removeAll(deleted);
+            writeIndex(index);
+            // Remove the download directory once it is empty, as before sessions had their own
+            // directories. Session directories are only created for open sessions, so this cannot
+            // remove the parent of a new session directory.
+            if (index.isEmpty() && mOpenSessions.isEmpty()) mDownloadDir.delete();
+        }
+        Log.d(TAG, "Deleted files of " + deleted.size() + " previous sessions, "
+                + (stale.size() - deleted.size()) + " remaining");
+        return deleted.size() == stale.size();
+    }
+
+    private synchronized void scheduleIdleCleanup() {
+        if (mIdleCleanupScheduled) return;
+        mIdleCleanupScheduled = true;
+        Looper.getMainLooper().getQueue().addIdleHandler(() -> {
+            synchronized (this) {
+                mIdleCleanupScheduled = false;
+            }
+            mExecutor.execute(this::runCleanupPass);
+            return false /* keep */;
+        });
+    }
+
+    // Returns false if the deadline was reached before the path could be deleted
+    private static boolean deleteRecursively(@NonNull File path, long deadline) {
+        if (SystemClock.elapsedRealtime() >= deadline) return false;
+        final File[] children = path.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                if (!deleteRecursively(child, deadline)) return false;
+            }
+        }
+        if (!path.delete() && path.exists()) {
+            Log.e(TAG, "Could not delete " + path);
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    @NonNull
+    private LinkedHashSet<String> getIndex() {
+        if (mIndex != null) return mIndex;
+        mIndex = new LinkedHashSet<>();
+        if (mIndexFile.getBaseFile().exists()) {
+            try {
+                final String contents = new String(mIndexFile.readFully(), StandardCharsets.UTF_8);
+                for (final String session : contents.split("\n")) {
+                    if (!session.isEmpty()) mIndex.add(session);
+                }
+                return mIndex;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read the index of directly open files", e);
+            }
+        }
+        // No usable index, for example because the files were downloaded by a version that did
+        // not record them: consider everything in the download directory as stale.
+        final String[] leftovers = mDownloadDir.list();
+        if (leftovers != null) Collections.addAll(mIndex, leftovers);
+        return mIndex;
+    }
+
+    @GuardedBy("this")
+    private void writeIndex(@NonNull LinkedHashSet<String> index) {
+        FileOutputStream out = null;
+        try {
+            out = mIndexFile.startWrite();
+            out.write(String.join("\n", index).getBytes(StandardCharsets.UTF_8));
+            mIndexFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the index of directly open files", e);
+            if (out != null) mIndexFile.failWrite(out);
+        }
+    }
+}
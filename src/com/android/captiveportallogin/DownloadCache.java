@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static java.lang.Math.min;
+
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Short-lived cache of recently downloaded bodies, stored in app-private storage.
+ *
+ * <p>This allows {@link DownloadService} to serve identical download requests (same network and
+ * URL) without fetching the same bytes again over the captive portal network. Entries are evicted
+ * in least-recently-used order when the total size of the cache exceeds its limit.
+ *
+ * <p>Files of the cache are reference-counted: a file that is being read or written is only
+ * deleted once its last reference is released, so evicting an entry does not affect downloads
+ * still reading its body.
+ *
+ * <p>The cache does not access storage until the first body is added, so it can be created on
+ * the main thread.
+ */
+class DownloadCache {
+    private static final String TAG = DownloadCache.class.getSimpleName();
+
+    /** Identifies identical downloads. */
+    static final class Key {
+        @NonNull
+        private final Network mNetwork;
+        @NonNull
+        private final String mUrl;
+
+        Key(@NonNull Network network, @NonNull String url) {
+            mNetwork = network;
+            mUrl = url;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return mNetwork.equals(other.mNetwork) && mUrl.equals(other.mUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNetwork, mUrl);
+        }
+    }
+
+    /** A cached download body, with the validators of the response it was received in. */
+    static final class Entry {
+        @NonNull
+        final File mFile;
+        final long mSize;
+        @Nullable
+        final String mETag;
+        @Nullable
+        final String mLastModified;
+        // Time at which the body was received or last revalidated
+        final long mValidatedTimeMs;
+        // Duration after mValidatedTimeMs for which the body can be served without revalidation
+        final long mFreshnessMs;
+
+        private Entry(@NonNull File file, long size, @Nullable String etag,
+                @Nullable String lastModified, long validatedTimeMs, long freshnessMs) {
+            mFile = file;
+            mSize = size;
+            mETag = etag;
+            mLastModified = lastModified;
+            mValidatedTimeMs = validatedTimeMs;
+            mFreshnessMs = freshnessMs;
+        }
+
+        /** Whether the entry has validators allowing to revalidate it with the server. */
+        boolean hasValidators() {
+            return mETag != null || mLastModified != null;
+        }
+    }
+
+    @NonNull
+    private final File mDir;
+    private final long mMaxTotalBytes;
+    private final long mMaxEntryBytes;
+    private final long mMaxFreshnessMs;
+
+    // Access-ordered, so iteration starts with the least recently used entry
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(
+            16 /* initialCapacity */, 0.75f /* loadFactor */, true /* accessOrder */);
+    @GuardedBy("this")
+    private long mTotalBytes = 0L;
+    // Number of references to the files being read or written, by file. Files are not in this map
+    // once all their references are released.
+    @GuardedBy("this")
+    private final HashMap<File, Integer> mFileReferences = new HashMap<>();
+    // Whether files left in the directory by a previous instance were deleted
+    @GuardedBy("this")
+    private boolean mLeftoversDeleted = false;
+
+    /**
+     * Create a cache storing its files in the specified directory.
+     *
+     * <p>Any file already in the directory is deleted before the first body is added.
+     * @param maxTotalBytes Maximum total size of the cached bodies.
+     * @param maxEntryBytes Maximum size of a single cached body.
+     * @param maxFreshnessMs Maximum duration for which a body can be served without
+     *                       revalidation, even if its response allows a longer duration.
+     */
+    DownloadCache(@NonNull File dir, long maxTotalBytes, long maxEntryBytes,
+            long maxFreshnessMs) {
+        mDir = dir;
+        mMaxTotalBytes = maxTotalBytes;
+        mMaxEntryBytes = maxEntryBytes;
+        mMaxFreshnessMs = maxFreshnessMs;
+    }
+
+    /** Maximum size of a single cached body. Larger bodies are not cached. */
+    long getMaxEntryBytes() {
+        return mMaxEntryBytes;
+    }
+
+    /**
+     * Create a new file that a body can be written to, before being added with {@link #put}.
+     *
+     * <p>The file is referenced by the caller, which must release it with {@link #releaseFile}
+     * once done with it. It is then deleted unless it was added to the cache.
+     */
+    @NonNull
+    synchronized File newBodyFile() throws IOException {
+        if (!mLeftoversDeleted) {
+            final File[] leftovers = mDir.listFiles();
+            if (leftovers != null) {
+                for (File file : leftovers) {
+                    deleteFile(file);
+                }
+            }
+            mLeftoversDeleted = true;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Could not create cache directory " + mDir);
+        }
+        // Names are unique across instances, so clearing an instance that is being destroyed
+        // does not delete the files of its replacement.
+        final File file = File.createTempFile("body", null /* suffix */, mDir);
+        retainFile(file);
+        return file;
+    }
+
+    /**
+     * Get the cached entry for the key, whether it is fresh or not.
+     *
+     * <p>The file of the entry is referenced until the caller releases it with {@link #release},
+     * so it can be read even if the entry is evicted meanwhile.
+     */
+    @Nullable
+    synchronized Entry acquire(@NonNull Key key) {
+        final Entry entry = mEntries.get(key);
+        if (entry != null) retainFile(entry.mFile);
+        return entry;
+    }
+
+    /** Release the reference to the file of an entry obtained with {@link #acquire}. */
+    void release(@NonNull Entry entry) {
+        releaseFile(entry.mFile);
+    }
+
+    /**
+     * Add a reference to a file of the cache, so it is not deleted until released with
+     * {@link #releaseFile}. The file must already be referenced by the caller, or be an entry.
+     */
+    synchronized void retainFile(@NonNull File file) {
+        mFileReferences.merge(file, 1, Integer::sum);
+    }
+
+    /**
+     * Release a reference to a file of the cache. Once it has no reference, the file is deleted if
+     * it is not the file of an entry.
+     */
+    synchronized void releaseFile(@NonNull File file) {
+        final Integer references = mFileReferences.get(file);
+        if (references == null) {
+            Log.wtf(TAG, "Released unreferenced file " + file);
+            return;
+        }
+        if (references > 1) {
+            mFileReferences.put(file, references - 1);
+            return;
+        }
+        mFileReferences.remove(file);
+        if (!isEntryFile(file)) deleteFile(file);
+    }
+
+    /** Whether the entry can be served without revalidation. */
+    boolean isFresh(@NonNull Entry entry, long now) {
+        return now - entry.mValidatedTimeMs < entry.mFreshnessMs;
+    }
+
+    /**
+     * Add a body to the cache, replacing any previous entry for the key.
+     *
+     * <p>The cache takes ownership of the file, and will delete it when evicted, or once its
+     * references are released if it is too large to be cached.
+     * @param freshnessMs Duration for which the response allows serving the body without
+     *                    revalidation.
+     */
+    synchronized void put(@NonNull Key key, @NonNull File body, @Nullable String etag,
+            @Nullable String lastModified, long now, long freshnessMs) {
+        final long size = body.length();
+        if (size > mMaxEntryBytes) {
+            deleteUnreferencedFile(body);
+            return;
+        }
+        removeEntry(mEntries.remove(key), body);
+        mEntries.put(key, new Entry(body, size, etag, lastModified, now,
+                min(freshnessMs, mMaxFreshnessMs)));
+        mTotalBytes += size;
+        final Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxTotalBytes && it.hasNext()) {
+            final Entry evicted = it.next().getValue();
+            it.remove();
+            removeEntry(evicted, null /* keepFile */);
+        }
+    }
+
+    /**
+     * Mark the entry as revalidated by the server, so it is fresh again.
+     * @param freshnessMs Duration for which the revalidation response allows serving the body
+     *                    without revalidating it again.
+     */
+    synchronized void markValidated(@NonNull Key key, @NonNull Entry entry, long now,
+            long freshnessMs) {
+        if (mEntries.get(key) != entry) return;
+        mEntries.put(key, new Entry(entry.mFile, entry.mSize, entry.mETag, entry.mLastModified,
+                now, min(freshnessMs, mMaxFreshnessMs)));
+    }
+
+    /** Remove the entry for the key, if any. */
+    synchronized void remove(@NonNull Key key) {
+        removeEntry(mEntries.remove(key), null /* keepFile */);
+    }
+
+    /**
+     * Remove all entries, and delete their files. Files that are still referenced are deleted
+     * once released.
+     */
+    synchronized void clear() {
+        final ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+        mEntries.clear();
+        mTotalBytes = 0L;
+        for (Entry entry : entries) {
+            deleteUnreferencedFile(entry.mFile);
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeEntry(@Nullable Entry entry, @Nullable File keepFile) {
+        if (entry == null) return;
+        mTotalBytes -= entry.mSize;
+        if (!entry.mFile.equals(keepFile)) deleteUnreferencedFile(entry.mFile);
+    }
+
+    @GuardedBy("this")
+    private boolean isEntryFile(@NonNull File file) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mFile.equals(file)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Delete a file that is no longer an entry of the cache, unless it is referenced: it is then
+     * deleted by {@link #releaseFile}.
+     */
+    @GuardedBy("this")
+    private void deleteUnreferencedFile(@NonNull File file) {
+        if (!mFileReferences.containsKey(file)) deleteFile(file);
+    }
+
+    private static void deleteFile(@NonNull File file) {
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Could not delete cached file " + file);
+        }
+    }
+}
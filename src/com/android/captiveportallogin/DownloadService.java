@@ -16,6 +16,7 @@
 
 package com.android.captiveportallogin;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 import android.app.Notification;
@@ -23,17 +24,25 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageInstaller;
 import android.content.res.Resources;
 import android.graphics.drawable.Icon;
 import android.icu.text.NumberFormat;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
+import android.net.NetworkRequest;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.DocumentsContract;
+import android.provider.MediaStore;
 import android.util.Log;
 
 import androidx.annotation.GuardedBy;
@@ -42,20 +51,45 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Foreground {@link Service} that can be used to download files from a specific {@link Network}.
@@ -68,6 +102,10 @@ public class DownloadService extends Service {
 
     @VisibleForTesting
     static final String ARG_CANCEL = "cancel";
+    private static final String ARG_DISPLAY_NAME = "display_name";
+    // Broadcast sent by PackageInstaller with the status of the sessions of downloaded packages
+    private static final String ACTION_INSTALL_STATUS =
+            "com.android.captiveportallogin.action.INSTALL_STATUS";
 
     private static final String CHANNEL_DOWNLOADS = "downloads";
     private static final String CHANNEL_DOWNLOAD_PROGRESS = "downloads_progress";
@@ -77,25 +115,114 @@ public class DownloadService extends Service {
     private static final int CONNECTION_TIMEOUT_MS = 30_000;
     // Update download progress up to twice/sec.
     private static final long MAX_PROGRESS_UPDATE_RATE_MS = 500L;
+    // Deliver download progress to the ProgressCallback up to 5 times/sec.
+    private static final long MAX_CALLBACK_PROGRESS_RATE_MS = 200L;
     private static final long CONTENT_LENGTH_UNKNOWN = -1L;
+    // Limits of the cache of recently downloaded bodies, used to serve identical requests.
+    // Bodies are served from the cache for the freshness lifetime of their response, up to
+    // DOWNLOAD_CACHE_MAX_FRESHNESS_MS.
+    private static final String DOWNLOAD_CACHE_DIR = "download_cache";
+    private static final long DOWNLOAD_CACHE_MAX_BYTES = 20_000_000L;
+    private static final long DOWNLOAD_CACHE_MAX_ENTRY_BYTES = 10_000_000L;
+    private static final long DOWNLOAD_CACHE_MAX_FRESHNESS_MS = 5 * 60_000L;
+    // Downloads requested before the user picked their destination are spooled to app-private
+    // storage while the picker is open. Once the spool is full, the download pauses until the
+    // destination is known, or the request is abandoned after the timeout.
+    private static final String SPOOL_DIR = "download_spool";
+    private static final long MAX_SPOOL_BYTES = 10_000_000L;
+    private static final long SPOOL_DESTINATION_TIMEOUT_MS = 5 * 60_000L;
+    private static final long SPOOL_DESTINATION_POLL_MS = 100L;
+    // Downloads that are not fetched from the network
+    private static final String DATA_URL_PREFIX = "data:";
+    private static final String BLOB_URL_PREFIX = "blob:";
+    // Maximum number of chunks of a blob: download buffered in memory
+    private static final int BLOB_MAX_PENDING_CHUNKS = 8;
+    // Maximum number of concurrent tasks transferring at the same time. Further concurrent tasks
+    // wait for one of them to complete.
+    private static final int MAX_CONCURRENT_TASKS = 4;
+    private static final long CONCURRENT_THREAD_KEEP_ALIVE_MS = 10_000L;
+    // Interval at which tasks reading a body fetched by another task check for cancellation
+    private static final long SHARED_BODY_POLL_MS = 100L;
+
+    /** Result of {@link DownloadServiceBinder#writeBlobChunk}: the chunk was written. */
+    static final int BLOB_CHUNK_WRITTEN = 0;
+    /**
+     * Result of {@link DownloadServiceBinder#writeBlobChunk}: too many chunks are waiting to be
+     * written, so the chunk should be written again later.
+     */
+    static final int BLOB_CHUNK_RETRY = 1;
+    /**
+     * Result of {@link DownloadServiceBinder#writeBlobChunk}: the download is no longer in
+     * progress, so no more chunks should be written.
+     */
+    static final int BLOB_CHUNK_ABORTED = 2;
 
     static final int DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE = 1;
     @IntDef(value = { DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE })
     @Retention(RetentionPolicy.SOURCE)
     public @interface AbortedReason {}
 
-    // All download job IDs <= this value should be cancelled
+    // Cache of recently completed downloads, created in onCreate.
+    private DownloadCache mDownloadCache;
+    // All queued download job IDs <= this value should be cancelled
     private volatile int mMaxCancelDownloadId;
+    // Tasks waiting to be processed, in insertion order and indexed by download ID.
     @GuardedBy("mQueue")
-    private final Queue<DownloadTask> mQueue = new LinkedList<>();
+    private final LinkedHashMap<Integer, DownloadTask> mQueue = new LinkedHashMap<>();
     @GuardedBy("mQueue")
     private boolean mProcessing = false;
+    // ID of the task whose progress is shown in the foreground notification. Other tasks in
+    // progress show it in their own notification, tagged with their ID.
+    @GuardedBy("mQueue")
+    private int mForegroundTaskId;
+    // IDs of the concurrent tasks in progress, which are not in mQueue. See
+    // DownloadTask#mConcurrent.
+    @GuardedBy("mQueue")
+    private final HashSet<Integer> mConcurrentTaskIds = new HashSet<>();
+    // IDs of the concurrent tasks in progress that were cancelled. Concurrent tasks do not use
+    // mMaxCancelDownloadId, as cancelling one must not cancel others started before it.
+    private final Set<Integer> mCancelledConcurrentTaskIds = ConcurrentHashMap.newKeySet();
+    // Runs the concurrent tasks, up to MAX_CONCURRENT_TASKS at a time. Idle threads are stopped
+    // after CONCURRENT_THREAD_KEEP_ALIVE_MS.
+    private final ThreadPoolExecutor mConcurrentExecutor = makeConcurrentExecutor();
+    // Publishers of the tasks whose transfer is complete, but whose spool is still being copied
+    // to the destination. They complete their task in the background.
+    @GuardedBy("mQueue")
+    private final HashMap<Integer, SpoolPublisher> mPublishers = new HashMap<>();
+    // Destinations of the downloads requested without output file, completed when the user has
+    // picked the file. Entries are removed when the download completes or is cancelled.
+    private final ConcurrentHashMap<Integer, CompletableFuture<Uri>> mPendingDestinations =
+            new ConcurrentHashMap<>();
+    // Contents of blob: downloads, written by the activity through
+    // DownloadServiceBinder#writeBlobChunk. Entries are removed when the download completes or is
+    // cancelled.
+    private final ConcurrentHashMap<Integer, BlobInputStream> mBlobStreams =
+            new ConcurrentHashMap<>();
+    // Transfers of the bodies downloaded from the network, by network and URL. Tasks are
+    // registered with the transfer of their body when they are enqueued, so that tasks
+    // downloading the same body fetch it once. Entries are removed once all their tasks are done.
+    @GuardedBy("mInFlightTransfers")
+    private final HashMap<DownloadCache.Key, InFlightTransfer> mInFlightTransfers =
+            new HashMap<>();
+    // Whether new downloads are spooled to app-private storage and published to their destination
+    // separately, as set by DownloadServiceBinder#setPublishFromSpool.
+    private volatile boolean mPublishFromSpool = false;
 
-    @Nullable
-    @GuardedBy("mBinder")
-    private ProgressCallback mProgressCallback;
+    // Registered callbacks. This is copy-on-write so that download threads can dispatch events
+    // without taking any lock; registration is rare in comparison.
+    @NonNull
+    private final CopyOnWriteArrayList<CallbackRecord> mProgressCallbacks =
+            new CopyOnWriteArrayList<>();
     @NonNull
     private final DownloadServiceBinder mBinder = new DownloadServiceBinder();
+    // Drops the warm connections of lost networks
+    @NonNull
+    private final NetworkCallback mNetworkCallback = new NetworkCallback() {
+        @Override
+        public void onLost(@NonNull Network network) {
+            NetworkConnectionPool.getInstance().evict(network);
+        }
+    };
     // Tracker for the ID to assign to the next download. The service startId is not used because it
     // is not guaranteed to be monotonically increasing; increasing download IDs are convenient to
     // allow cancelling current downloads when the user tapped the cancel button, but not subsequent
@@ -110,18 +237,100 @@ public class DownloadService extends Service {
         sDirectlyOpenMimeType.put("application/x-wifi-config", 100_000);
     }
 
+    /**
+     * A request to download a file, as accepted by
+     * {@link DownloadServiceBinder#requestDownloads}.
+     */
+    static final class DownloadRequest {
+        @NonNull final String mUrl;
+        @NonNull final String mFilename;
+        @NonNull final String mMimeType;
+        // mOutFile is null for requests where the device is currently asking the user to pick a
+        // place to put the file. Such requests are downloaded speculatively by the service until
+        // the file is passed with DownloadServiceBinder#setDownloadDestination.
+        @Nullable final Uri mOutFile;
+        // Whether the file is saved to MediaStore.Downloads by the service, instead of a file
+        // picked by the user.
+        final boolean mToMediaStore;
+        // Whether the downloaded package is streamed to a PackageInstaller session, to be
+        // installed as soon as the download completes.
+        final boolean mInstallPackage;
+        DownloadRequest(@NonNull String url, @NonNull String filename, @NonNull String mimeType,
+                @Nullable Uri outFile) {
+            this(url, filename, mimeType, outFile, false /* toMediaStore */,
+                    false /* installPackage */);
+        }
+
+        private DownloadRequest(@NonNull String url, @NonNull String filename,
+                @NonNull String mimeType, @Nullable Uri outFile, boolean toMediaStore,
+                boolean installPackage) {
+            mUrl = url;
+            mFilename = filename;
+            mMimeType = mimeType;
+            mOutFile = outFile;
+            mToMediaStore = toMediaStore;
+            mInstallPackage = installPackage;
+        }
+
+        /**
+         * Create a request to download to a new file in {@link MediaStore.Downloads}, without
+         * asking the user to pick the destination.
+         */
+        static DownloadRequest forMediaStore(@NonNull String url, @NonNull String filename,
+                @NonNull String mimeType) {
+            return new DownloadRequest(url, filename, mimeType, null /* outFile */,
+                    true /* toMediaStore */, false /* installPackage */);
+        }
+
+        /**
+         * Create a copy of this request that also streams the downloaded package to a
+         * {@link PackageInstaller} session, so it can be installed without reading it again.
+         *
+         * <p>If the request has no output file and does not save to MediaStore, no copy of the
+         * package is kept.
+         */
+        DownloadRequest withPackageInstall() {
+            return new DownloadRequest(mUrl, mFilename, mMimeType, mOutFile, mToMediaStore,
+                    true /* installPackage */);
+        }
+
+        /** Whether the request is waiting for the user to pick its destination. */
+        boolean isAwaitingOutFile() {
+            return mOutFile == null && !mToMediaStore && !mInstallPackage;
+        }
+    }
+
+    /**
+     * A download task, as queued for processing.
+     *
+     * <p>Tasks are lightweight immutable records: the notification resources of a task are only
+     * created once it starts being processed, as tasks may be queued for a long time, or be
+     * cancelled before they start.
+     */
     private static class DownloadTask {
         private final int mId;
         private final Network mNetwork;
         private final String mUserAgent;
         private final String mUrl;
         private final String mDisplayName;
+        // Null if the destination was not known when the download was requested.
+        @Nullable
         private final Uri mOutFile;
         private final String mMimeType;
-        private final Notification.Builder mCachedNotificationBuilder;
+        private final boolean mPublishFromSpool;
+        private final boolean mToMediaStore;
+        private final boolean mInstallPackage;
+        // Whether the task runs on its own thread instead of being queued. Directly open files
+        // are small and the user is waiting for them, so they should not wait behind other
+        // downloads, or each other. Downloads started before their destination is picked may
+        // wait for the user for a long time, so they must not hold up the queue either. The
+        // contents of blob: downloads are sent by the page as soon as they are requested, so
+        // they must be read immediately.
+        private final boolean mConcurrent;
 
         private DownloadTask(int id, Network network, String userAgent, String url,
-                String displayName, Uri outFile, Context context, String mimeType) {
+                String displayName, @Nullable Uri outFile, String mimeType,
+                boolean publishFromSpool, boolean toMediaStore, boolean installPackage) {
             this.mId = id;
             this.mNetwork = network;
             this.mUserAgent = userAgent;
@@ -129,23 +338,16 @@ public class DownloadService extends Service {
             this.mDisplayName = displayName;
             this.mOutFile = outFile;
             this.mMimeType = mimeType;
-            final Resources res = context.getResources();
-            final Intent cancelIntent = new Intent(context, DownloadService.class)
-                    .putExtra(ARG_CANCEL, mId)
-                    .setIdentifier(String.valueOf(mId));
-
-            final PendingIntent pendingIntent = PendingIntent.getService(context,
-                    0 /* requestCode */, cancelIntent, PendingIntent.FLAG_IMMUTABLE);
-            final Notification.Action cancelAction = new Notification.Action.Builder(
-                    Icon.createWithResource(context, R.drawable.ic_close),
-                    res.getString(android.R.string.cancel),
-                    pendingIntent).build();
-            this.mCachedNotificationBuilder = new Notification.Builder(
-                    context, CHANNEL_DOWNLOAD_PROGRESS)
-                    .setContentTitle(res.getString(R.string.downloading_paramfile, mDisplayName))
-                    .setSmallIcon(R.drawable.ic_cloud_download)
-                    .setOnlyAlertOnce(true)
-                    .addAction(cancelAction);
+            this.mPublishFromSpool = publishFromSpool;
+            this.mToMediaStore = toMediaStore;
+            this.mInstallPackage = installPackage;
+            this.mConcurrent = isDirectlyOpenType(mimeType) || isBlobUrl(url)
+                    || (outFile == null && !toMediaStore && !installPackage);
+        }
+
+        /** Whether the task only installs the package, without keeping a copy of it. */
+        private boolean isInstallOnly() {
+            return mInstallPackage && mOutFile == null && !mToMediaStore;
         }
     }
 
@@ -168,6 +370,47 @@ public class DownloadService extends Service {
     @Override
     public void onCreate() {
         createNotificationChannels();
+        mDownloadCache = new DownloadCache(new File(getCacheDir(), DOWNLOAD_CACHE_DIR),
+                DOWNLOAD_CACHE_MAX_BYTES, DOWNLOAD_CACHE_MAX_ENTRY_BYTES,
+                DOWNLOAD_CACHE_MAX_FRESHNESS_MS);
+        getSystemService(ConnectivityManager.class).registerNetworkCallback(
+                new NetworkRequest.Builder().clearCapabilities().build(), mNetworkCallback);
+        // Spool files are useless once the service that was writing them is gone.
+        final File[] leftoverSpools = getSpoolDir().listFiles();
+        if (leftoverSpools != null) {
+            for (File spool : leftoverSpools) {
+                spool.delete();
+            }
+        }
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor makeConcurrentExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_TASKS,
+                MAX_CONCURRENT_TASKS, CONCURRENT_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "DownloadConcurrentTask-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @NonNull
+    private File getSpoolDir() {
+        return new File(getCacheDir(), SPOOL_DIR);
+    }
+
+    @Override
+    public void onDestroy() {
+        // Downloads are not deduplicated across service instances: the cache is only useful while
+        // the portal is being used. Its files are deleted in the background, as this runs on the
+        // main thread.
+        final DownloadCache cache = mDownloadCache;
+        new Thread(cache::clear, "DownloadCacheClear").start();
+        getSystemService(ConnectivityManager.class).unregisterNetworkCallback(mNetworkCallback);
+        // Tasks in progress still complete, but no new task can be started.
+        mConcurrentExecutor.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -178,7 +421,8 @@ public class DownloadService extends Service {
      *
      * This method may be called multiple times if the user selects multiple files to download.
      * Files will be queued to be downloaded one by one; if the user cancels the current file, this
-     * will not affect the next files that are queued.
+     * will not affect the next files that are queued. Directly open files, and files whose
+     * destination is not known yet, are not queued and are downloaded concurrently.
      */
     @Override
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
@@ -187,7 +431,9 @@ public class DownloadService extends Service {
         }
         final int cancelDownloadId = intent.getIntExtra(ARG_CANCEL, -1);
         if (cancelDownloadId != -1) {
-            mMaxCancelDownloadId = cancelDownloadId;
+            if (!cancelUnqueuedTask(cancelDownloadId)) {
+                mMaxCancelDownloadId = cancelDownloadId;
+            }
             return START_NOT_STICKY;
         }
         // If the service is killed the download is lost, which is fine because it is unlikely for a
@@ -196,21 +442,125 @@ public class DownloadService extends Service {
         return START_NOT_STICKY;
     }
 
-    private int enqueueDownloadTask(Network network, String userAgent, String url, String filename,
-            Uri outFile, Context context, String mimeType) {
-        final DownloadTask task = new DownloadTask(mNextDownloadId.getAndIncrement(),
-                network.getPrivateDnsBypassingCopy(), userAgent, url, filename, outFile,
-                context, mimeType);
+    /**
+     * Cancel a task that is not processed by the queue, without affecting the other tasks: a
+     * concurrent task, or a task whose spool is being published to its destination.
+     * @return false if there is no such task in progress.
+     */
+    private boolean cancelUnqueuedTask(int taskId) {
+        synchronized (mQueue) {
+            final SpoolPublisher publisher = mPublishers.get(taskId);
+            if (publisher != null) {
+                publisher.cancel();
+                return true;
+            }
+            if (!mConcurrentTaskIds.contains(taskId)) return false;
+            mCancelledConcurrentTaskIds.add(taskId);
+            return true;
+        }
+    }
+
+    /**
+     * Receiver of the status of the installation of downloaded packages, sent by
+     * {@link PackageInstaller}.
+     *
+     * <p>The installer may only report that the user needs to confirm the installation once the
+     * service is stopped, or even after the process died, so this is declared in the manifest
+     * instead of being registered by the service.
+     */
+    public static class InstallStatusReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!ACTION_INSTALL_STATUS.equals(intent.getAction())) return;
+            final int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS,
+                    PackageInstaller.STATUS_FAILURE);
+            final String displayName = intent.getStringExtra(ARG_DISPLAY_NAME);
+            final NotificationManager nm = context.getSystemService(NotificationManager.class);
+            switch (status) {
+                case PackageInstaller.STATUS_PENDING_USER_ACTION:
+                    final Intent confirmIntent = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                    if (confirmIntent == null) break;
+                    nm.notify(NOTE_DOWNLOAD_DONE, makeInstallReadyNotification(context,
+                            displayName, confirmIntent.setIdentifier(intent.getIdentifier())));
+                    break;
+                case PackageInstaller.STATUS_SUCCESS:
+                    Log.d(TAG, "Installed downloaded package " + displayName);
+                    break;
+                default:
+                    Log.e(TAG, "Could not install downloaded package " + displayName + ": "
+                            + intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE));
+                    nm.notify(NOTE_DOWNLOAD_DONE, makeErrorNotification(context, displayName));
+            }
+        }
+    }
+
+    /**
+     * Make the intent that {@link PackageInstaller} completes with the status of the installation
+     * of a downloaded package, and sends to {@link InstallStatusReceiver}.
+     */
+    @VisibleForTesting
+    @NonNull
+    static Intent makeInstallStatusIntent(@NonNull Context context, @NonNull String displayName,
+            int downloadId) {
+        return new Intent(ACTION_INSTALL_STATUS)
+                .setClass(context, InstallStatusReceiver.class)
+                .putExtra(ARG_DISPLAY_NAME, displayName)
+                .setIdentifier(String.valueOf(downloadId));
+    }
+
+    private int[] enqueueDownloadTasks(@NonNull Network network, String userAgent,
+            @NonNull List<DownloadRequest> requests) {
+        final int count = requests.size();
+        final int[] ids = new int[count];
+        if (count == 0) return ids;
+
+        // Allocate consecutive IDs for the whole batch, and build the tasks outside of the queue
+        // lock so that the processing thread is not blocked while they are created.
+        final int firstId = mNextDownloadId.getAndAdd(count);
+        final Network bypassNetwork = network.getPrivateDnsBypassingCopy();
+        final boolean publishFromSpool = mPublishFromSpool;
+        final ArrayList<DownloadTask> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final DownloadRequest req = requests.get(i);
+            ids[i] = firstId + i;
+            // Directly open files are small and private to the app: spooling them is pointless.
+            tasks.add(new DownloadTask(ids[i], bypassNetwork, userAgent, req.mUrl,
+                    req.mFilename, req.mOutFile, req.mMimeType,
+                    publishFromSpool && !isDirectlyOpenType(req.mMimeType), req.mToMediaStore,
+                    req.mInstallPackage));
+            if (req.isAwaitingOutFile()) {
+                mPendingDestinations.put(ids[i], new CompletableFuture<>());
+            }
+            if (isBlobUrl(req.mUrl)) {
+                mBlobStreams.put(ids[i], new BlobInputStream());
+            }
+            if (!isLocalUrl(req.mUrl)) registerTransfer(tasks.get(i));
+        }
+
+        final ArrayList<DownloadTask> concurrentTasks = new ArrayList<>();
         synchronized (mQueue) {
-            mQueue.add(task);
-            if (!mProcessing) {
-                startForeground(NOTE_DOWNLOAD_PROGRESS, makeProgressNotification(task,
-                        null /* progress */));
+            if (!mProcessing && mConcurrentTaskIds.isEmpty() && mPublishers.isEmpty()) {
+                startForeground(NOTE_DOWNLOAD_PROGRESS, makeProgressNotification(
+                        makeProgressNotificationBuilder(tasks.get(0)), null /* progress */));
+                mForegroundTaskId = tasks.get(0).mId;
+            }
+            for (DownloadTask task : tasks) {
+                if (task.mConcurrent) {
+                    mConcurrentTaskIds.add(task.mId);
+                    concurrentTasks.add(task);
+                } else {
+                    mQueue.put(task.mId, task);
+                }
+            }
+            if (!mProcessing && !mQueue.isEmpty()) {
                 new Thread(new ProcessingRunnable()).start();
+                mProcessing = true;
             }
-            mProcessing = true;
         }
-        return task.mId;
+        for (DownloadTask task : concurrentTasks) {
+            mConcurrentExecutor.execute(new ConcurrentTaskRunnable(task));
+        }
+        return ids;
     }
 
     private void createNotificationChannels() {
@@ -240,30 +590,118 @@ public class DownloadService extends Service {
     @VisibleForTesting(otherwise = VisibleForTesting.PACKAGE_PRIVATE)
     protected class DownloadServiceBinder extends Binder {
         public int requestDownload(Network network, String userAgent, String url, String filename,
-                Uri outFile, Context context, String mimeType) {
-            return enqueueDownloadTask(network, userAgent, url, filename, outFile, context,
-                    mimeType);
+                Uri outFile, String mimeType) {
+            return enqueueDownloadTasks(network, userAgent,
+                    List.of(new DownloadRequest(url, filename, mimeType, outFile)))[0];
+        }
+
+        /**
+         * Request downloading multiple files at once.
+         *
+         * <p>All requests are enqueued atomically, in order, and are assigned consecutive
+         * download IDs.
+         *
+         * <p>Requests without output file are started speculatively while the user is picking
+         * the destination: data is spooled to app-private storage until the destination is set
+         * with {@link #setDownloadDestination}, or the download is cancelled with
+         * {@link #cancelTask}.
+         * @param requests Requests to download.
+         * @return The download IDs assigned to the requests, in the same order.
+         */
+        public int[] requestDownloads(Network network, String userAgent,
+                List<DownloadRequest> requests) {
+            return enqueueDownloadTasks(network, userAgent, requests);
+        }
+
+        /**
+         * Set the destination of a download requested without output file.
+         *
+         * <p>Data already spooled is copied to the destination, and the rest of the download is
+         * written to it directly.
+         * @return false if the download is not waiting for its destination, for example because
+         *         it was cancelled or failed.
+         */
+        public boolean setDownloadDestination(int downloadId, @NonNull Uri outFile) {
+            final CompletableFuture<Uri> destination = mPendingDestinations.get(downloadId);
+            return destination != null && destination.complete(outFile);
+        }
+
+        /**
+         * Write the next chunk of the contents of a blob: download.
+         *
+         * <p>The contents of blob: URLs are only accessible from the page that created them, so
+         * they are passed in chunks by the caller instead of being fetched by the service. This
+         * never blocks, so it can be called from the JavaScript bridge thread of a WebView.
+         * @return {@link #BLOB_CHUNK_WRITTEN}, {@link #BLOB_CHUNK_RETRY} if too many chunks are
+         *         waiting to be written to the destination, or {@link #BLOB_CHUNK_ABORTED}.
+         */
+        public int writeBlobChunk(int downloadId, @NonNull byte[] chunk) {
+            final BlobInputStream stream = mBlobStreams.get(downloadId);
+            return stream == null ? BLOB_CHUNK_ABORTED : stream.offer(chunk);
+        }
+
+        /**
+         * Signal that all chunks of a blob: download were written, or that its contents could not
+         * be read.
+         */
+        public void endBlob(int downloadId, boolean success) {
+            final BlobInputStream stream = mBlobStreams.get(downloadId);
+            if (stream != null) stream.end(success);
+        }
+
+        /**
+         * Set whether downloads requested from now on are spooled to app-private storage.
+         *
+         * <p>When enabled, the network transfer is not slowed down by slow destinations: data is
+         * written to a spool file, which is published to the destination concurrently by a
+         * low-priority thread. The spool is deleted once published. Downloads of unknown size,
+         * or too large for the available app-private storage, are written to the destination
+         * directly.
+         */
+        public void setPublishFromSpool(boolean enabled) {
+            mPublishFromSpool = enabled;
         }
 
         public void cancelTask(int taskId) {
             synchronized (mQueue) {
                 // If the task is no longer in the queue, it mean the download is in progress or
-                // already completed. Set the cancel id to this requested id.
-                if (!mQueue.removeIf(e -> e.mId == taskId)) {
+                // already completed. Tasks outside of the queue are cancelled individually;
+                // otherwise set the cancel id to this requested id.
+                if (cancelUnqueuedTask(taskId)) return;
+                final DownloadTask removed = mQueue.remove(taskId);
+                if (removed == null) {
                     mMaxCancelDownloadId = taskId;
+                } else {
+                    mPendingDestinations.remove(taskId);
+                    closeQuietly(mBlobStreams.remove(taskId));
+                    if (!isLocalUrl(removed.mUrl)) unregisterTransfer(removed);
                 }
             }
         }
 
-        public void setProgressCallback(ProgressCallback callback) {
-            synchronized (mBinder) {
-                mProgressCallback = callback;
-            }
+        /**
+         * Register a callback to be notified of download events on the specified executor.
+         *
+         * <p>The callback is weakly referenced: it is dropped automatically once it is no longer
+         * referenced by its owner (for example when the activity holding it is destroyed), so
+         * registering it does not leak the owner. Callers should still unregister it when done.
+         */
+        public void registerProgressCallback(@NonNull Executor executor,
+                @NonNull ProgressCallback callback) {
+            mProgressCallbacks.removeIf(CallbackRecord::isCleared);
+            mProgressCallbacks.add(new CallbackRecord(executor, callback));
+        }
+
+        /** Unregister a callback registered with {@link #registerProgressCallback}. */
+        public void unregisterProgressCallback(@NonNull ProgressCallback callback) {
+            mProgressCallbacks.removeIf(r -> r.isCleared() || r.mCallback.get() == callback);
         }
     }
 
     /**
      * Callback for notifying the download progress change.
+     *
+     * <p>Methods are called on the executor specified when registering the callback.
      */
     interface ProgressCallback {
         /** Notify the requested download task is completed. */
@@ -271,6 +709,144 @@ public class DownloadService extends Service {
                 boolean success);
         /** Notify the requested download task is aborted. */
         void onDownloadAborted(int downloadId, @AbortedReason int reason);
+        /**
+         * Notify the progress of the requested download task.
+         *
+         * <p>Updates are rate-limited and coalesced, so intermediate values may be skipped, but
+         * the last update of a completed transfer is always delivered.
+         * @param bytesRead Number of bytes downloaded so far.
+         * @param contentLength Total size of the download, or -1 if unknown.
+         * @param bytesPerSecond Average download rate since the transfer started.
+         */
+        default void onDownloadProgress(int downloadId, long bytesRead, long contentLength,
+                long bytesPerSecond) {}
+        /**
+         * Notify the progress of saving a download published from spool to its destination,
+         * after the network transfer completed.
+         *
+         * <p>Updates are rate-limited, so intermediate values may be skipped.
+         * @param bytesSaved Number of bytes written to the destination so far.
+         * @param totalBytes Total size of the download.
+         */
+        default void onDownloadSaveProgress(int downloadId, long bytesSaved, long totalBytes) {}
+    }
+
+    private static final class ProgressUpdate {
+        private final int mDownloadId;
+        private final long mBytesRead;
+        private final long mContentLength;
+        private final long mBytesPerSecond;
+
+        private ProgressUpdate(int downloadId, long bytesRead, long contentLength,
+                long bytesPerSecond) {
+            mDownloadId = downloadId;
+            mBytesRead = bytesRead;
+            mContentLength = contentLength;
+            mBytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * A {@link ProgressCallback} registration, bound to the executor the callback runs on.
+     *
+     * <p>Callbacks never run on download threads, so a slow callback cannot stall downloads.
+     */
+    private static final class CallbackRecord {
+        @NonNull
+        private final Executor mExecutor;
+        @NonNull
+        private final WeakReference<ProgressCallback> mCallback;
+        // Latest undelivered progress for each download. At most one progress delivery per
+        // download is queued on the executor: updates arriving while one is queued replace the
+        // pending value, so a fast download cannot flood the executor.
+        private final ConcurrentHashMap<Integer, ProgressUpdate> mPendingProgress =
+                new ConcurrentHashMap<>();
+
+        private CallbackRecord(@NonNull Executor executor, @NonNull ProgressCallback callback) {
+            mExecutor = executor;
+            mCallback = new WeakReference<>(callback);
+        }
+
+        private boolean isCleared() {
+            return mCallback.get() == null;
+        }
+
+        private void dispatch(@NonNull Consumer<ProgressCallback> event) {
+            if (isCleared()) return;
+            mExecutor.execute(() -> {
+                final ProgressCallback callback = mCallback.get();
+                if (callback != null) event.accept(callback);
+            });
+        }
+
+        private void dispatchProgress(@NonNull ProgressUpdate update) {
+            if (isCleared()) return;
+            if (mPendingProgress.put(update.mDownloadId, update) != null) {
+                // A delivery is already queued, and will pick up this update.
+                return;
+            }
+            mExecutor.execute(() -> {
+                final ProgressUpdate latest = mPendingProgress.remove(update.mDownloadId);
+                final ProgressCallback callback = mCallback.get();
+                if (latest == null || callback == null) return;
+                callback.onDownloadProgress(latest.mDownloadId, latest.mBytesRead,
+                        latest.mContentLength, latest.mBytesPerSecond);
+            });
+        }
+    }
+
+    private void dispatchEvent(@NonNull Consumer<ProgressCallback> event) {
+        for (CallbackRecord record : mProgressCallbacks) {
+            record.dispatch(event);
+        }
+    }
+
+    /**
+     * Delivers the progress of a single download to the registered {@link ProgressCallback}s.
+     *
+     * <p>Updates are rate-limited to {@link #MAX_CALLBACK_PROGRESS_RATE_MS}, and coalesced by
+     * each {@link CallbackRecord}.
+     */
+    private class ProgressDispatcher {
+        private final int mDownloadId;
+        // Only accessed on the download thread
+        private final long mStartTimeMs;
+        private long mLastDispatchTimeMs = -1L;
+
+        ProgressDispatcher(int downloadId, long startTimeMs) {
+            mDownloadId = downloadId;
+            mStartTimeMs = startTimeMs;
+        }
+
+        /**
+         * Post a progress update, unless one was posted recently and {@code force} is false.
+         */
+        void maybeDispatch(long bytesRead, long contentLength, long now, boolean force) {
+            if (!force && mLastDispatchTimeMs > 0
+                    && now - mLastDispatchTimeMs < MAX_CALLBACK_PROGRESS_RATE_MS) {
+                return;
+            }
+            mLastDispatchTimeMs = now;
+            final long elapsedMs = now - mStartTimeMs;
+            final long bytesPerSecond = elapsedMs > 0 ? bytesRead * 1000 / elapsedMs : 0L;
+            final ProgressUpdate update = new ProgressUpdate(mDownloadId, bytesRead,
+                    contentLength, bytesPerSecond);
+            for (CallbackRecord record : mProgressCallbacks) {
+                record.dispatchProgress(update);
+            }
+        }
+    }
+
+    @GuardedBy("mQueue")
+    private void maybeStopForeground() {
+        if (mProcessing || !mConcurrentTaskIds.isEmpty() || !mPublishers.isEmpty()) return;
+        stopForeground(true /* removeNotification */);
+    }
+
+    private boolean isCancelled(@NonNull DownloadTask task) {
+        return task.mConcurrent
+                ? mCancelledConcurrentTaskIds.contains(task.mId)
+                : task.mId <= mMaxCancelDownloadId;
     }
 
     private class ProcessingRunnable implements Runnable {
@@ -279,197 +855,1458 @@ public class DownloadService extends Service {
             while (true) {
                 final DownloadTask task;
                 synchronized (mQueue) {
-                    task = mQueue.poll();
-                    if (task == null)  {
+                    final Iterator<DownloadTask> it = mQueue.values().iterator();
+                    if (!it.hasNext())  {
                         mProcessing = false;
-                        stopForeground(true /* removeNotification */);
+                        maybeStopForeground();
                         return;
                     }
+                    task = it.next();
+                    it.remove();
+                    mForegroundTaskId = task.mId;
                 }
 
                 processDownload(task);
             }
         }
+    }
+
+    /** Processes a single concurrent task on {@link #mConcurrentExecutor}, instead of the queue. */
+    private class ConcurrentTaskRunnable implements Runnable {
+        @NonNull
+        private final DownloadTask mTask;
+
+        ConcurrentTaskRunnable(@NonNull DownloadTask task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            processDownload(mTask);
+            synchronized (mQueue) {
+                mConcurrentTaskIds.remove(mTask.mId);
+                mCancelledConcurrentTaskIds.remove(mTask.mId);
+                maybeStopForeground();
+            }
+        }
+    }
+
+    /** Register a task downloading a body from the network with the transfer of the body. */
+    private void registerTransfer(@NonNull DownloadTask task) {
+        synchronized (mInFlightTransfers) {
+            mInFlightTransfers.computeIfAbsent(new DownloadCache.Key(task.mNetwork, task.mUrl),
+                    key -> new InFlightTransfer()).mTaskCount++;
+        }
+    }
+
+    /** Unregister a task registered with {@link #registerTransfer}, once it is done. */
+    private void unregisterTransfer(@NonNull DownloadTask task) {
+        final DownloadCache.Key key = new DownloadCache.Key(task.mNetwork, task.mUrl);
+        synchronized (mInFlightTransfers) {
+            final InFlightTransfer transfer = mInFlightTransfers.get(key);
+            if (transfer != null && --transfer.mTaskCount == 0) mInFlightTransfers.remove(key);
+        }
+    }
 
-        private void processDownload(@NonNull final DownloadTask task) {
-            final NotificationManager nm = getSystemService(NotificationManager.class);
-            // Start by showing an indeterminate progress notification
-            updateNotification(nm, NOTE_DOWNLOAD_PROGRESS, task.mMimeType,
-                    makeProgressNotification(task, null /* progress */));
-            URLConnection connection = null;
-            boolean downloadSuccess = false;
+    /**
+     * Get the body of a task from the transfer it is registered with: either the body being
+     * fetched by another task, which the task then reads, or a new body that the task fetches.
+     * @return The shared body, fetched by the task if its {@link SharedBody#mFetcherId} is the
+     *         ID of the task, or null if the task must fetch the body without sharing it.
+     */
+    @Nullable
+    private SharedBody joinTransfer(@NonNull DownloadTask task) {
+        synchronized (mInFlightTransfers) {
+            final InFlightTransfer transfer = mInFlightTransfers.get(
+                    new DownloadCache.Key(task.mNetwork, task.mUrl));
+            if (transfer == null) return null;
+            if (transfer.mBody != null) {
+                transfer.mBody.addReader();
+                return transfer.mBody;
+            }
             try {
-                final URL url = new URL(task.mUrl);
+                transfer.mBody = new SharedBody(transfer, mDownloadCache.newBodyFile(), task.mId);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not create shared body file", e);
+                return null;
+            }
+            return transfer.mBody;
+        }
+    }
 
+    private void processDownload(@NonNull final DownloadTask task) {
+        final NotificationManager nm = getSystemService(NotificationManager.class);
+        // The task is now active: create its notification resources.
+        final Notification.Builder progressBuilder = makeProgressNotificationBuilder(task);
+        // Start by showing an indeterminate progress notification
+        updateNotification(nm, NOTE_DOWNLOAD_PROGRESS, task,
+                makeProgressNotification(progressBuilder, null /* progress */));
+        // Identical requests are served from the cache when possible. Otherwise, a task
+        // processed while another is fetching the same body reads the body as it is received,
+        // instead of fetching it again; this applies to queued and concurrent tasks alike. A
+        // duplicate processed after the body was fetched is served from the cache if the response
+        // allows it. Bodies of data: and blob: URLs are not fetched from the network, so are not
+        // cached nor shared.
+        final boolean isLocalUrl = isLocalUrl(task.mUrl);
+        final DownloadCache.Key cacheKey = new DownloadCache.Key(task.mNetwork, task.mUrl);
+        final DownloadCache.Entry cached = isLocalUrl ? null : mDownloadCache.acquire(cacheKey);
+        URLConnection connection = null;
+        // Network instance the connection was opened with, shared with other downloads on
+        // the same network so they can reuse its connections.
+        Network pooledNetwork = null;
+        // Body read from the connection
+        InputStream connectionBody = null;
+        // Body that is not read from the connection, closed when the download is done
+        InputStream localBodyStream = null;
+        // Body shared with the other tasks downloading it, fetched by this task if its fetcher ID
+        // is the ID of the task, or read by it otherwise
+        SharedBody sharedBody = null;
+        boolean fetchingSharedBody = false;
+        final TaskOutputStream taskOut = new TaskOutputStream(task);
+        PackageInstallWriter installWriter = null;
+        // Publisher of the spool, once the transfer is complete
+        SpoolPublisher publisher = null;
+        boolean downloadSuccess = false;
+        // Whether the download is completed in the background by its publisher
+        boolean publishing = false;
+        try {
+            final InputStream is;
+            long contentLength = CONTENT_LENGTH_UNKNOWN;
+            String etag = null;
+            String lastModified = null;
+            long cacheFreshnessMs = 0L;
+            if (isDataUrl(task.mUrl)) {
+                localBodyStream = openDataUrl(task.mUrl);
+                is = localBodyStream;
+            } else if (isBlobUrl(task.mUrl)) {
+                // The contents of the blob are written by the page through the activity.
+                localBodyStream = mBlobStreams.get(task.mId);
+                if (localBodyStream == null) throw new IOException("Blob download cancelled");
+                is = localBodyStream;
+            } else if (cached != null
+                    && mDownloadCache.isFresh(cached, System.currentTimeMillis())) {
+                Log.d(TAG, "Serving download " + task.mId + " from cache");
+                localBodyStream = new FileInputStream(cached.mFile);
+                is = localBodyStream;
+                contentLength = cached.mSize;
+            } else if ((sharedBody = joinTransfer(task)) != null
+                    && sharedBody.mFetcherId != task.mId) {
+                Log.d(TAG, "Reading download " + task.mId + " from download "
+                        + sharedBody.mFetcherId);
+                final SharedBodyInputStream reader = new SharedBodyInputStream(sharedBody, task);
+                localBodyStream = reader;
+                is = localBodyStream;
+                contentLength = reader.awaitContentLength();
+            } else {
+                fetchingSharedBody = sharedBody != null;
+                final URL url = new URL(task.mUrl);
                 // This may fail if the network is not usable anymore, which is the expected
-                // behavior: the download should fail if it cannot be completed on the assigned
-                // network.
-                connection = task.mNetwork.openConnection(url);
+                // behavior: the download should fail if it cannot be completed on the
+                // assigned network.
+                pooledNetwork = NetworkConnectionPool.getInstance().acquire(task.mNetwork);
+                connection = pooledNetwork.openConnection(url);
                 connection.setConnectTimeout(CONNECTION_TIMEOUT_MS);
                 connection.setReadTimeout(CONNECTION_TIMEOUT_MS);
                 connection.setRequestProperty("User-Agent", task.mUserAgent);
+                if (cached != null && cached.hasValidators()) {
+                    // Only the bytes of a modified body need to be transferred again.
+                    if (cached.mETag != null) {
+                        connection.setRequestProperty("If-None-Match", cached.mETag);
+                    }
+                    if (cached.mLastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since",
+                                cached.mLastModified);
+                    }
+                }
 
-                long contentLength = CONTENT_LENGTH_UNKNOWN;
                 if (connection instanceof HttpURLConnection) {
                     final HttpURLConnection httpConn = (HttpURLConnection) connection;
                     final int responseCode = httpConn.getResponseCode();
-                    if (responseCode < 200 || responseCode > 299) {
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                            && cached != null && cached.hasValidators()) {
+                        Log.d(TAG, "Serving revalidated download " + task.mId + " from cache");
+                        mDownloadCache.markValidated(cacheKey, cached, System.currentTimeMillis(),
+                                getCacheFreshnessMs(httpConn));
+                        localBodyStream = new FileInputStream(cached.mFile);
+                        contentLength = cached.mSize;
+                    } else if (responseCode < 200 || responseCode > 299) {
                         throw new IOException("Download error: response code " + responseCode);
-                    }
-
-                    contentLength = httpConn.getContentLengthLong();
-                }
-
-                try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(
-                        task.mOutFile, "rwt");
-                     FileOutputStream fop = new FileOutputStream(pfd.getFileDescriptor())) {
-                    final InputStream is = connection.getInputStream();
-
-                    if (!downloadToFile(is, fop, contentLength, task, nm)) {
-                        Log.d(TAG, "Download cancelled, deleting " + task.mOutFile);
-                        tryDeleteFile(task.mOutFile);
-                        // Don't clear the notification: this will be done when the service stops
-                        // (foreground service notifications cannot be cleared).
-                        return;
+                    } else {
+                        contentLength = httpConn.getContentLengthLong();
+                        etag = httpConn.getHeaderField("ETag");
+                        lastModified = httpConn.getHeaderField("Last-Modified");
+                        cacheFreshnessMs = getCacheFreshnessMs(httpConn);
                     }
                 }
+                if (localBodyStream == null) connectionBody = connection.getInputStream();
+                is = localBodyStream != null ? localBodyStream : connectionBody;
+                if (fetchingSharedBody) sharedBody.setResponse(contentLength);
+            }
 
-                downloadSuccess = true;
-                updateNotification(nm, NOTE_DOWNLOAD_DONE, task.mMimeType,
-                        makeDoneNotification(task));
-            } catch (IOException e) {
-                Log.e(TAG, "Download error, deleting " + task.mOutFile, e);
-                updateNotification(nm, NOTE_DOWNLOAD_DONE, task.mMimeType,
-                        makeErrorNotification(task.mDisplayName));
-                tryDeleteFile(task.mOutFile);
-            } finally {
-                synchronized (mBinder) {
-                    if (mProgressCallback != null) {
-                        mProgressCallback.onDownloadComplete(task.mOutFile, task.mMimeType,
-                                task.mId, downloadSuccess);
+            taskOut.open(contentLength);
+            if (task.mInstallPackage) {
+                installWriter = new PackageInstallWriter(task, contentLength);
+            }
+            final OutputStream sink = installWriter == null
+                    ? taskOut : new TeeOutputStream(taskOut, installWriter.getOutputStream());
+            try (SharedBodyOutputStream out = new SharedBodyOutputStream(sink,
+                    fetchingSharedBody ? sharedBody : null)) {
+                try {
+                    if (!downloadToFile(is, out, contentLength, task, progressBuilder, nm)) {
+                        throw new DownloadCancelledException();
                     }
+                    publisher = taskOut.finish();
+                } catch (DownloadCancelledException e) {
+                    Log.d(TAG, "Download cancelled, deleting " + taskOut.getOutFile());
+                    // Stop writing to the output file before deleting it
+                    closeQuietly(taskOut);
+                    tryDeleteFile(taskOut.getOutFile());
+                    // Other tasks may still be reading the body fetched by this one.
+                    if (out.drainForReaders(is, contentLength)) out.completeBody();
+                    // Don't clear the notification: this will be done when the service stops
+                    // (foreground service notifications cannot be cleared).
+                    return;
                 }
-                if (connection instanceof HttpURLConnection) {
-                    ((HttpURLConnection) connection).disconnect();
+                if (out.completeBody() && cacheFreshnessMs > 0) {
+                    mDownloadCache.put(cacheKey, sharedBody.mFile, etag, lastModified,
+                            System.currentTimeMillis(), cacheFreshnessMs);
                 }
             }
-        }
 
-        private void updateNotification(@NonNull NotificationManager nm, int eventId,
-                String mimeType, @NonNull Notification notification) {
-            // Skip showing the download notification for the directly open mime types.
-            if (eventId == NOTE_DOWNLOAD_DONE && isDirectlyOpenType(mimeType)) {
-                return;
+            if (task.mToMediaStore) publishMediaStoreDownload(taskOut.getOutFile());
+            downloadSuccess = true;
+            if (installWriter != null) {
+                // The notification to confirm the installation is shown when the installer
+                // reports the session status.
+                installWriter.commit();
+            }
+            if (publisher != null) {
+                // Copying the spool to a slow destination must not hold up the next tasks.
+                completeWhenPublished(task, taskOut.getOutFile(), publisher,
+                        installWriter == null /* notifyDone */, progressBuilder, nm);
+                publishing = true;
+            } else if (installWriter == null) {
+                updateNotification(nm, NOTE_DOWNLOAD_DONE, task,
+                        makeDoneNotification(task, taskOut.getOutFile()));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Download error, deleting " + taskOut.getOutFile(), e);
+            updateNotification(nm, NOTE_DOWNLOAD_DONE, task,
+                    makeErrorNotification(this, task.mDisplayName));
+            // Stop writing to the output file before deleting it
+            closeQuietly(taskOut);
+            if (publisher != null) {
+                publisher.cancel();
+                publisher.awaitStopped();
+            }
+            tryDeleteFile(taskOut.getOutFile());
+        } finally {
+            final boolean success = downloadSuccess;
+            if (!publishing) {
+                // Downloads cancelled before their destination was picked have no output file.
+                final Uri outFile = Objects.requireNonNullElse(taskOut.getOutFile(), Uri.EMPTY);
+                dispatchEvent(cb -> cb.onDownloadComplete(outFile, task.mMimeType,
+                        task.mId, success));
+                // The foreground notification is removed when the service stops, but the
+                // progress notification of a task shown separately must be removed with the task.
+                nm.cancel(String.valueOf(task.mId), NOTE_DOWNLOAD_PROGRESS);
+            }
+            mPendingDestinations.remove(task.mId);
+            mBlobStreams.remove(task.mId);
+            closeQuietly(taskOut);
+            closeQuietly(installWriter);
+            if (fetchingSharedBody) {
+                // Readers waiting for the rest of the body fail if it was not fully fetched. The
+                // body file is deleted once they are done, unless it was added to the cache.
+                sharedBody.finish(false /* complete */);
+                mDownloadCache.releaseFile(sharedBody.mFile);
+            }
+            closeQuietly(localBodyStream);
+            if (cached != null) mDownloadCache.release(cached);
+            if (connection instanceof HttpURLConnection) {
+                // The connection is kept alive for the next downloads on the network if its
+                // body was fully read.
+                NetworkConnectionPool.getInstance().release(pooledNetwork,
+                        (HttpURLConnection) connection, success ? connectionBody : null);
             }
-            nm.notify(eventId, notification);
+            if (!isLocalUrl) unregisterTransfer(task);
         }
+    }
 
-        /**
-         * Download the contents of an {@link InputStream} to a {@link FileOutputStream}, and
-         * updates the progress notification.
-         * @return True if download is completed, false if cancelled
-         */
-        private boolean downloadToFile(@NonNull InputStream is, @NonNull FileOutputStream fop,
-                long contentLength, @NonNull DownloadTask task,
-                @NonNull NotificationManager nm) throws IOException {
-            final byte[] buffer = new byte[1500];
-            long allRead = 0L;
-            final long maxRead = contentLength == CONTENT_LENGTH_UNKNOWN
-                    ? Long.MAX_VALUE : contentLength;
-            final boolean isDirectlyOpenType = isDirectlyOpenType(task.mMimeType);
-            final int maxDirectlyOpenLen = Objects.requireNonNullElse(
-                    sDirectlyOpenMimeType.get(task.mMimeType), Integer.MAX_VALUE);
-            int lastProgress = -1;
-            long lastUpdateTime = -1L;
-            while (allRead < maxRead) {
-                if (task.mId <= mMaxCancelDownloadId) {
-                    return false;
-                }
-                if (isDirectlyOpenType && allRead > maxDirectlyOpenLen) {
-                    notifyDownloadAborted(task.mId, task.mMimeType,
-                            DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE);
-                    return false;
-                }
-
-                final int read = is.read(buffer, 0, (int) min(buffer.length, maxRead - allRead));
-                if (read < 0) {
-                    // End of stream
-                    break;
+    /**
+     * Complete a download once its spool is published to the destination by its publisher,
+     * which now owns the spool and the destination.
+     *
+     * <p>The completion runs on the publisher thread, so the caller can move on to other tasks.
+     */
+    private void completeWhenPublished(@NonNull DownloadTask task, @NonNull Uri outFile,
+            @NonNull SpoolPublisher publisher, boolean notifyDone,
+            @NonNull Notification.Builder progressBuilder, @NonNull NotificationManager nm) {
+        synchronized (mQueue) {
+            mPublishers.put(task.mId, publisher);
+            // Requests to cancel the task before this point did not reach the publisher.
+            if (isCancelled(task)) publisher.cancel();
+        }
+        publisher.mDone.whenComplete((result, error) -> {
+            if (error == null) {
+                if (notifyDone) {
+                    updateNotification(nm, NOTE_DOWNLOAD_DONE, task,
+                            makeDoneNotification(task, outFile));
                 }
-
-                allRead += read;
-                fop.write(buffer, 0, read);
-
-                final Integer progress = getProgress(contentLength, allRead);
-                if (progress == null || progress.equals(lastProgress)) continue;
-
-                final long now = System.currentTimeMillis();
-                if (maybeNotifyProgress(progress, lastProgress, now, lastUpdateTime, task, nm)) {
-                    lastUpdateTime = now;
+            } else {
+                Log.e(TAG, "Error publishing download, deleting " + outFile, error);
+                if (!(error instanceof DownloadCancelledException)) {
+                    updateNotification(nm, NOTE_DOWNLOAD_DONE, task,
+                            makeErrorNotification(this, task.mDisplayName));
                 }
-                lastProgress = progress;
+                tryDeleteFile(outFile);
             }
-            return true;
-        }
+            nm.cancel(String.valueOf(task.mId), NOTE_DOWNLOAD_PROGRESS);
+            dispatchEvent(cb -> cb.onDownloadComplete(outFile, task.mMimeType, task.mId,
+                    error == null));
+            synchronized (mQueue) {
+                mPublishers.remove(task.mId);
+                maybeStopForeground();
+            }
+        });
+        publisher.setInputComplete((saved, total) -> notifySaveProgress(saved, total, task,
+                progressBuilder, nm));
+    }
 
-        private void notifyDownloadAborted(int dlId, String mimeType, @AbortedReason int reason) {
-            Log.d(TAG, "Abort downloading the " + mimeType
-                    + " type file because of reason(" + reason + ")");
-            synchronized (mBinder) {
-                if (mProgressCallback != null) {
-                    mProgressCallback.onDownloadAborted(dlId, reason);
+    /**
+     * Get the duration for which the body of a response can be served from the cache without
+     * revalidation.
+     *
+     * <p>Only responses that are explicitly fresh, through Cache-Control max-age or Expires, are
+     * cached. Responses that must be revalidated, are specific to the user (private, or setting
+     * cookies), or depend on request headers other than the URL (Vary) are not.
+     * @return The freshness lifetime of the response, or 0 if it must not be cached.
+     */
+    private static long getCacheFreshnessMs(@NonNull HttpURLConnection connection) {
+        if (connection.getHeaderField("Set-Cookie") != null
+                || connection.getHeaderField("Vary") != null) {
+            return 0L;
+        }
+        long maxAgeMs = -1L;
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store") || directive.startsWith("no-cache")
+                        || directive.startsWith("private")) {
+                    return 0L;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeMs = max(0L, Long.parseLong(
+                                directive.substring("max-age=".length()))) * 1000L;
+                    } catch (NumberFormatException e) {
+                        return 0L;
+                    }
                 }
             }
         }
+        if (maxAgeMs >= 0) return maxAgeMs;
+        // Expires is ignored if max-age is present (RFC 9111 5.3), and is relative to the Date of
+        // the response.
+        final long expires = connection.getExpiration();
+        if (expires == 0) return 0L;
+        final long date = connection.getDate();
+        return max(0L, expires - (date != 0 ? date : System.currentTimeMillis()));
+    }
 
-        private void tryDeleteFile(@NonNull Uri file) {
-            try {
-                // The file was not created by the DownloadService, however because the service
-                // is only usable from this application, and the file should be created from this
-                // same application, the content resolver should be the same.
-                DocumentsContract.deleteDocument(getContentResolver(), file);
-            } catch (FileNotFoundException e) {
-                // Nothing to delete
-            }
+    private void updateNotification(@NonNull NotificationManager nm, int eventId,
+            @NonNull DownloadTask task, @NonNull Notification notification) {
+        // Skip showing the download notification for the directly open mime types. Their
+        // progress is not shown either: it is shown by the activity.
+        if (isDirectlyOpenType(task.mMimeType)) {
+            return;
         }
+        // Progress of concurrent tasks is shown in separate notifications, so that they do not
+        // overwrite the progress of each other.
+        nm.notify(eventId == NOTE_DOWNLOAD_PROGRESS ? getProgressNotificationTag(task) : null,
+                eventId, notification);
+    }
 
-        private Integer getProgress(long contentLength, long totalRead) {
-            if (contentLength == CONTENT_LENGTH_UNKNOWN || contentLength == 0) return null;
-            return (int) (totalRead * 100 / contentLength);
+    /**
+     * Get the tag of the progress notification of a task, which is null if the task is shown in
+     * the foreground notification.
+     */
+    @Nullable
+    private String getProgressNotificationTag(@NonNull DownloadTask task) {
+        synchronized (mQueue) {
+            return task.mId == mForegroundTaskId ? null : String.valueOf(task.mId);
         }
+    }
 
-        /**
-         * Update the progress notification, if it was not updated recently.
-         * @return True if progress was updated.
-         */
-        private boolean maybeNotifyProgress(int progress, int lastProgress, long now,
-                long lastProgressUpdateTimeMs, @NonNull DownloadTask task,
-                @NonNull NotificationManager nm) {
-            if (lastProgress > 0 && progress < 100
-                    && lastProgressUpdateTimeMs > 0
-                    && now - lastProgressUpdateTimeMs < MAX_PROGRESS_UPDATE_RATE_MS) {
-                // Rate-limit intermediate progress updates: NotificationManager will start ignoring
-                // notifications from the current process if too many updates are posted too fast.
-                // The shown progress will not "lag behind" much in most cases. An alternative
-                // would be to delay the progress update to rate-limit, but this would bring
-                // synchronization problems.
+    /**
+     * Download the contents of an {@link InputStream} to an {@link OutputStream}, and
+     * updates the progress notification.
+     * @return True if download is completed, false if cancelled
+     */
+    private boolean downloadToFile(@NonNull InputStream is, @NonNull OutputStream fop,
+            long contentLength, @NonNull DownloadTask task,
+            @NonNull Notification.Builder progressBuilder,
+            @NonNull NotificationManager nm) throws IOException {
+        final byte[] buffer = new byte[1500];
+        long allRead = 0L;
+        final long maxRead = contentLength == CONTENT_LENGTH_UNKNOWN
+                ? Long.MAX_VALUE : contentLength;
+        final boolean isDirectlyOpenType = isDirectlyOpenType(task.mMimeType);
+        final int maxDirectlyOpenLen = Objects.requireNonNullElse(
+                sDirectlyOpenMimeType.get(task.mMimeType), Integer.MAX_VALUE);
+        int lastProgress = -1;
+        long lastUpdateTime = -1L;
+        final ProgressDispatcher progressDispatcher =
+                new ProgressDispatcher(task.mId, System.currentTimeMillis());
+        while (allRead < maxRead) {
+            if (isCancelled(task)) {
+                return false;
+            }
+            if (isDirectlyOpenType && allRead > maxDirectlyOpenLen) {
+                notifyDownloadAborted(task.mId, task.mMimeType,
+                        DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE);
                 return false;
             }
-            final Notification note = makeProgressNotification(task, progress);
-            updateNotification(nm, NOTE_DOWNLOAD_PROGRESS, task.mMimeType, note);
 
-            return true;
+            final int read = is.read(buffer, 0, (int) min(buffer.length, maxRead - allRead));
+            if (read < 0) {
+                // End of stream
+                break;
+            }
+
+            allRead += read;
+            fop.write(buffer, 0, read);
+
+            final long now = System.currentTimeMillis();
+            progressDispatcher.maybeDispatch(allRead, contentLength, now, false /* force */);
+
+            final Integer progress = getProgress(contentLength, allRead);
+            if (progress == null || progress.equals(lastProgress)) continue;
+
+            if (maybeNotifyProgress(progress, lastProgress, now, lastUpdateTime, task,
+                    progressBuilder, nm)) {
+                lastUpdateTime = now;
+            }
+            lastProgress = progress;
         }
+        // Always deliver the final progress, even if the last update was recent.
+        progressDispatcher.maybeDispatch(allRead, contentLength, System.currentTimeMillis(),
+                true /* force */);
+        return true;
     }
 
-    static boolean isDirectlyOpenType(String type) {
-        return sDirectlyOpenMimeType.get(type) != null;
+    /** Show the progress of saving a download published from spool. */
+    private void notifySaveProgress(long bytesSaved, long totalBytes,
+            @NonNull DownloadTask task, @NonNull Notification.Builder progressBuilder,
+            @NonNull NotificationManager nm) {
+        progressBuilder.setContentTitle(
+                getResources().getString(R.string.saving_paramfile, task.mDisplayName));
+        updateNotification(nm, NOTE_DOWNLOAD_PROGRESS, task,
+                makeProgressNotification(progressBuilder, getProgress(totalBytes, bytesSaved)));
+        dispatchEvent(cb -> cb.onDownloadSaveProgress(task.mId, bytesSaved, totalBytes));
     }
 
-    @NonNull
-    private Notification makeProgressNotification(@NonNull DownloadTask task,
-            @Nullable Integer progress) {
-        return task.mCachedNotificationBuilder
+    private void notifyDownloadAborted(int dlId, String mimeType, @AbortedReason int reason) {
+        Log.d(TAG, "Abort downloading the " + mimeType
+                + " type file because of reason(" + reason + ")");
+        dispatchEvent(cb -> cb.onDownloadAborted(dlId, reason));
+    }
+
+    private void tryDeleteFile(@Nullable Uri file) {
+        if (file == null) return;
+        if (MediaStore.AUTHORITY.equals(file.getAuthority())) {
+            getContentResolver().delete(file, null /* extras */);
+            return;
+        }
+        try {
+            // The file was not created by the DownloadService, however because the service
+            // is only usable from this application, and the file should be created from this
+            // same application, the content resolver should be the same.
+            DocumentsContract.deleteDocument(getContentResolver(), file);
+        } catch (FileNotFoundException e) {
+            // Nothing to delete
+        }
+    }
+
+    private Integer getProgress(long contentLength, long totalRead) {
+        if (contentLength == CONTENT_LENGTH_UNKNOWN || contentLength == 0) return null;
+        return (int) (totalRead * 100 / contentLength);
+    }
+
+    /**
+     * Update the progress notification, if it was not updated recently.
+     * @return True if progress was updated.
+     */
+    private boolean maybeNotifyProgress(int progress, int lastProgress, long now,
+            long lastProgressUpdateTimeMs, @NonNull DownloadTask task,
+            @NonNull Notification.Builder progressBuilder, @NonNull NotificationManager nm) {
+        if (lastProgress > 0 && progress < 100
+                && lastProgressUpdateTimeMs > 0
+                && now - lastProgressUpdateTimeMs < MAX_PROGRESS_UPDATE_RATE_MS) {
+            // Rate-limit intermediate progress updates: NotificationManager will start ignoring
+            // notifications from the current process if too many updates are posted too fast.
+            // The shown progress will not "lag behind" much in most cases. An alternative
+            // would be to delay the progress update to rate-limit, but this would bring
+            // synchronization problems.
+            return false;
+        }
+        final Notification note = makeProgressNotification(progressBuilder, progress);
+        updateNotification(nm, NOTE_DOWNLOAD_PROGRESS, task, note);
+
+        return true;
+    }
+
+    /**
+     * {@link OutputStream} writing the data of a download task to its output file.
+     *
+     * <p>If the output file is not known yet because the user is still picking it, data is
+     * written to a size-capped spool file in app-private storage. Once the destination is known,
+     * the spool is copied to it and further data is written to the destination directly. If the
+     * spool is full before that, writes block until the destination is known, and throw
+     * {@link DownloadCancelledException} if the download is cancelled or the destination is not
+     * picked in time.
+     *
+     * <p>If the task publishes from spool, all data is written to the spool file instead, so the
+     * network is read at full speed even if the destination is slow (for example a cloud-backed
+     * document provider). A {@link SpoolPublisher} copies the spool to the destination
+     * concurrently, and completes the copy in the background once {@link #finish} is called.
+     */
+    private class TaskOutputStream extends OutputStream {
+        @NonNull
+        private final DownloadTask mTask;
+        private boolean mPublishFromSpool;
+        @Nullable
+        private Uri mOutFile;
+        @Nullable
+        private ParcelFileDescriptor mPfd;
+        @Nullable
+        private File mSpoolFile;
+        // The spool file or the destination
+        private OutputStream mOut;
+        @Nullable
+        private SpoolPublisher mPublisher;
+        private long mSpooledBytes = 0L;
+        private boolean mCancelled = false;
+
+        TaskOutputStream(@NonNull DownloadTask task) {
+            mTask = task;
+        }
+
+        /**
+         * Open the output file of the task, or a spool file if it is not known yet or the task
+         * publishes from spool.
+         * @param contentLength Size of the download if known, or {@link #CONTENT_LENGTH_UNKNOWN}.
+         */
+        void open(long contentLength) throws IOException {
+            if (mTask.isInstallOnly()) {
+                mOut = OutputStream.nullOutputStream();
+                return;
+            }
+            if (mTask.mToMediaStore) {
+                mOut = openDestination(insertPendingMediaStoreDownload(mTask));
+                return;
+            }
+            final File spoolDir = getSpoolDir();
+            // Spooling the whole download requires enough space in app-private storage.
+            mPublishFromSpool = mTask.mPublishFromSpool && contentLength != CONTENT_LENGTH_UNKNOWN
+                    && (spoolDir.isDirectory() || spoolDir.mkdirs())
+                    && spoolDir.getUsableSpace() > contentLength;
+            if (mTask.mOutFile != null && !mPublishFromSpool) {
+                mOut = openDestination(mTask.mOutFile);
+                return;
+            }
+            if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+                throw new IOException("Could not create spool directory " + spoolDir);
+            }
+            mSpoolFile = new File(spoolDir, "spool" + mTask.mId);
+            mOut = new FileOutputStream(mSpoolFile);
+            if (mTask.mOutFile != null) attachDestination(mTask.mOutFile);
+        }
+
+        /** The destination of the download, or null if it is not known yet. */
+        @Nullable
+        Uri getOutFile() {
+            return mOutFile;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mCancelled) throw new DownloadCancelledException();
+            if (!hasDestination() && !mPublishFromSpool
+                    && mSpooledBytes + len > MAX_SPOOL_BYTES) {
+                if (!awaitDestination()) throw new DownloadCancelledException();
+            } else if (!hasDestination()) {
+                final Uri destination = mPendingDestinations.get(mTask.mId).getNow(null);
+                if (destination != null) attachDestination(destination);
+            }
+            mOut.write(b, off, len);
+            if (mSpoolFile == null) return;
+            mSpooledBytes += len;
+            if (mPublisher != null) mPublisher.setSpooledBytes(mSpooledBytes);
+        }
+
+        /**
+         * Complete the download once all data was written, waiting until the destination is
+         * known.
+         *
+         * <p>If the data was written to the spool and is still being copied to the destination,
+         * this does not wait for the copy: its publisher is returned, and owns the spool and the
+         * destination from then on. It must be completed with
+         * {@link SpoolPublisher#setInputComplete}.
+         * @return The publisher of the download, or null if the data is in the destination.
+         * @throws DownloadCancelledException if the download was cancelled, or the destination
+         *         was not picked in time.
+         */
+        @Nullable
+        SpoolPublisher finish() throws IOException {
+            if (!awaitDestination()) throw new DownloadCancelledException();
+            final SpoolPublisher publisher = mPublisher;
+            if (publisher == null) return null;
+            mPublisher = null;
+            mSpoolFile = null;
+            mOut.close();
+            return publisher;
+        }
+
+        /**
+         * Wait until the destination of the download is known, and start writing to it.
+         * @return false if the download was cancelled, or the destination was not picked in time.
+         */
+        private boolean awaitDestination() throws IOException {
+            if (hasDestination()) return true;
+            if (mCancelled) return false;
+            final CompletableFuture<Uri> destination = mPendingDestinations.get(mTask.mId);
+            final long deadline = System.currentTimeMillis() + SPOOL_DESTINATION_TIMEOUT_MS;
+            while (!isCancelled(mTask) && System.currentTimeMillis() < deadline) {
+                try {
+                    attachDestination(destination.get(SPOOL_DESTINATION_POLL_MS,
+                            TimeUnit.MILLISECONDS));
+                    return true;
+                } catch (TimeoutException e) {
+                    // Check for cancellation and wait again
+                } catch (InterruptedException | ExecutionException e) {
+                    break;
+                }
+            }
+            Log.d(TAG, "No destination picked for download " + mTask.mId + ", discarding");
+            mCancelled = true;
+            return false;
+        }
+
+        private void attachDestination(@NonNull Uri outFile) throws IOException {
+            final FileOutputStream destination = openDestination(outFile);
+            if (mPublishFromSpool) {
+                // The publisher closes the destination once done.
+                mPublisher = new SpoolPublisher(mSpoolFile, destination, mPfd, mSpooledBytes);
+                mPfd = null;
+                mPublisher.start();
+                return;
+            }
+            mOut.close();
+            mOut = destination;
+            Log.d(TAG, "Copying " + mSpooledBytes + " spooled bytes to " + outFile);
+            try (FileInputStream spool = new FileInputStream(mSpoolFile)) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = spool.read(buffer)) >= 0) {
+                    mOut.write(buffer, 0, read);
+                }
+            }
+            deleteSpool();
+        }
+
+        private boolean hasDestination() {
+            return mOutFile != null || mTask.isInstallOnly();
+        }
+
+        @NonNull
+        private FileOutputStream openDestination(@NonNull Uri outFile) throws IOException {
+            mPfd = getContentResolver().openFileDescriptor(outFile, "rwt");
+            if (mPfd == null) throw new FileNotFoundException("Could not open " + outFile);
+            mOutFile = outFile;
+            return new FileOutputStream(mPfd.getFileDescriptor());
+        }
+
+        private void deleteSpool() {
+            if (mSpoolFile == null) return;
+            if (!mSpoolFile.delete() && mSpoolFile.exists()) {
+                Log.e(TAG, "Could not delete spool file " + mSpoolFile);
+            }
+            mSpoolFile = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mPublisher != null) {
+                    // The publisher reads the spool: wait until it stopped before deleting it.
+                    mPublisher.cancel();
+                    mPublisher.awaitStopped();
+                    mPublisher = null;
+                }
+                if (mOut != null) mOut.close();
+                if (mPfd != null) mPfd.close();
+            } finally {
+                deleteSpool();
+            }
+        }
+    }
+
+    /**
+     * Create a file in {@link MediaStore.Downloads} for the task. The file is pending, so it is not
+     * visible to other apps until {@link #publishMediaStoreDownload} is called.
+     */
+    @NonNull
+    private Uri insertPendingMediaStoreDownload(@NonNull DownloadTask task) throws IOException {
+        final ContentValues values = new ContentValues();
+        values.put(MediaStore.Downloads.DISPLAY_NAME, task.mDisplayName);
+        values.put(MediaStore.Downloads.MIME_TYPE, task.mMimeType);
+        values.put(MediaStore.Downloads.IS_PENDING, 1);
+        final Uri uri = getContentResolver().insert(
+                MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+        if (uri == null) {
+            throw new IOException("Could not create download file for " + task.mDisplayName);
+        }
+        return uri;
+    }
+
+    /** Make a completed download in {@link MediaStore.Downloads} visible to other apps. */
+    private void publishMediaStoreDownload(@NonNull Uri file) throws IOException {
+        final ContentValues values = new ContentValues();
+        values.put(MediaStore.Downloads.IS_PENDING, 0);
+        if (getContentResolver().update(file, values, null /* extras */) != 1) {
+            throw new IOException("Could not publish download " + file);
+        }
+    }
+
+    /** Thrown when a download is cancelled while its data is being written. */
+    private static class DownloadCancelledException extends IOException {
+        DownloadCancelledException() {
+            super("Download cancelled");
+        }
+    }
+
+    /** Listener for the progress of the copy of a spooled download to its destination. */
+    private interface PublishProgressListener {
+        void onPublishProgress(long publishedBytes, long totalBytes);
+    }
+
+    /**
+     * Thread copying a spool file to the destination of a download as the spool is written.
+     *
+     * <p>The thread runs with background priority, so writes to a slow destination do not compete
+     * with the network transfer. It closes the destination and deletes the spool once done, before
+     * completing {@link #mDone}.
+     */
+    private static class SpoolPublisher extends Thread {
+        @NonNull
+        private final File mSpoolFile;
+        @NonNull
+        private final OutputStream mDestination;
+        @NonNull
+        private final ParcelFileDescriptor mPfd;
+        private final CompletableFuture<Void> mDone = new CompletableFuture<>();
+        @GuardedBy("this")
+        private long mSpooledBytes;
+        @GuardedBy("this")
+        private boolean mInputComplete = false;
+        @GuardedBy("this")
+        private boolean mCancelled = false;
+        // Notified of the progress of the copy once the input is complete
+        @GuardedBy("this")
+        @Nullable
+        private PublishProgressListener mListener;
+
+        SpoolPublisher(@NonNull File spoolFile, @NonNull OutputStream destination,
+                @NonNull ParcelFileDescriptor pfd, long spooledBytes) {
+            super("SpoolPublisher");
+            mSpoolFile = spoolFile;
+            mDestination = destination;
+            mPfd = pfd;
+            mSpooledBytes = spooledBytes;
+        }
+
+        synchronized void setSpooledBytes(long spooledBytes) {
+            mSpooledBytes = spooledBytes;
+            notifyAll();
+        }
+
+        /**
+         * Signal that all data was written to the spool.
+         * @param listener Notified of the progress of the rest of the copy, at most every
+         *                 {@link #MAX_PROGRESS_UPDATE_RATE_MS}.
+         */
+        synchronized void setInputComplete(@NonNull PublishProgressListener listener) {
+            mInputComplete = true;
+            mListener = listener;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            notifyAll();
+        }
+
+        /** Wait until the thread stopped using the spool and the destination. */
+        void awaitStopped() {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final byte[] buffer = new byte[8192];
+            Exception error = null;
+            try (ParcelFileDescriptor pfd = mPfd;
+                    OutputStream destination = mDestination;
+                    FileInputStream spool = new FileInputStream(mSpoolFile)) {
+                long published = 0L;
+                long lastProgressTimeMs = -1L;
+                while (true) {
+                    final long available;
+                    final long total;
+                    final PublishProgressListener listener;
+                    synchronized (this) {
+                        while (!mCancelled && !mInputComplete && mSpooledBytes == published) {
+                            wait();
+                        }
+                        if (mCancelled) throw new DownloadCancelledException();
+                        available = mSpooledBytes - published;
+                        total = mSpooledBytes;
+                        listener = mListener;
+                    }
+                    if (available == 0) break;
+                    final int read = spool.read(buffer, 0, (int) min(buffer.length, available));
+                    if (read < 0) throw new IOException("Spool file truncated");
+                    destination.write(buffer, 0, read);
+                    published += read;
+                    final long now = System.currentTimeMillis();
+                    if (listener != null && (lastProgressTimeMs < 0
+                            || now - lastProgressTimeMs >= MAX_PROGRESS_UPDATE_RATE_MS)) {
+                        listener.onPublishProgress(published, total);
+                        lastProgressTimeMs = now;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                error = e;
+            }
+            if (!mSpoolFile.delete() && mSpoolFile.exists()) {
+                Log.e(TAG, "Could not delete spool file " + mSpoolFile);
+            }
+            if (error == null) {
+                mDone.complete(null);
+            } else {
+                mDone.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * Writes a downloaded package to a {@link PackageInstaller.Session}, so that the package can
+     * be installed as soon as the download completes, without being read again by the installer.
+     *
+     * <p>The session is abandoned if it is closed before being committed.
+     */
+    private class PackageInstallWriter implements Closeable {
+        @NonNull
+        private final DownloadTask mTask;
+        @NonNull
+        private final PackageInstaller.Session mSession;
+        @NonNull
+        private final OutputStream mOut;
+        private boolean mCommitted = false;
+
+        PackageInstallWriter(@NonNull DownloadTask task, long contentLength) throws IOException {
+            mTask = task;
+            final PackageInstaller installer = getPackageManager().getPackageInstaller();
+            final PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                    PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            if (contentLength != CONTENT_LENGTH_UNKNOWN) params.setSize(contentLength);
+            mSession = installer.openSession(installer.createSession(params));
+            try {
+                mOut = mSession.openWrite("base.apk", 0 /* offsetBytes */, contentLength);
+            } catch (IOException | RuntimeException e) {
+                mSession.abandon();
+                throw e;
+            }
+        }
+
+        @NonNull
+        OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        /** Commit the session once the whole package was written. */
+        void commit() throws IOException {
+            mSession.fsync(mOut);
+            mOut.close();
+            final Intent statusIntent = makeInstallStatusIntent(DownloadService.this,
+                    mTask.mDisplayName, mTask.mId);
+            // The installer adds the status extras to the intent, so it must be mutable.
+            final PendingIntent pendingIntent = PendingIntent.getBroadcast(DownloadService.this,
+                    0 /* requestCode */, statusIntent, PendingIntent.FLAG_MUTABLE);
+            mSession.commit(pendingIntent.getIntentSender());
+            mCommitted = true;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(mOut);
+            if (!mCommitted) mSession.abandon();
+            mSession.close();
+        }
+    }
+
+    /**
+     * {@link FilterOutputStream} also writing all data to a second stream. Closing this stream
+     * does not close the second stream.
+     */
+    private static class TeeOutputStream extends FilterOutputStream {
+        @NonNull
+        private final OutputStream mSecond;
+
+        TeeOutputStream(@NonNull OutputStream out, @NonNull OutputStream second) {
+            super(out);
+            mSecond = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mSecond.write(b, off, len);
+        }
+    }
+
+    /**
+     * {@link InputStream} of the contents of a blob: download, fed with chunks through
+     * {@link DownloadServiceBinder#writeBlobChunk}.
+     *
+     * <p>The number of chunks waiting to be read is bounded. Writers are never blocked: chunks
+     * are refused while the download is slower than the page providing the data, and the page
+     * writes them again later.
+     */
+    private static class BlobInputStream extends InputStream {
+        // Markers read after the last chunk
+        private static final byte[] END_SUCCESS = new byte[0];
+        private static final byte[] END_FAILURE = new byte[0];
+
+        private final ArrayBlockingQueue<byte[]> mChunks =
+                new ArrayBlockingQueue<>(BLOB_MAX_PENDING_CHUNKS);
+        private volatile boolean mClosed = false;
+        // One of the end markers once all chunks were offered. The marker is also queued to wake
+        // up the reader, but that may fail if the queue is full.
+        @Nullable
+        private volatile byte[] mEnd;
+        // Only accessed by the reader
+        @Nullable
+        private byte[] mCurrentChunk;
+        private int mPosition;
+        private boolean mEnded = false;
+
+        int offer(@NonNull byte[] chunk) {
+            if (mClosed || mEnd != null) return BLOB_CHUNK_ABORTED;
+            if (!mChunks.offer(chunk)) return BLOB_CHUNK_RETRY;
+            return mClosed ? BLOB_CHUNK_ABORTED : BLOB_CHUNK_WRITTEN;
+        }
+
+        void end(boolean success) {
+            if (mEnd != null) return;
+            mEnd = success ? END_SUCCESS : END_FAILURE;
+            mChunks.offer(mEnd);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (mCurrentChunk == null || mPosition >= mCurrentChunk.length) {
+                if (mEnded) return -1;
+                // All chunks are queued before the end marker is set, so if it is set and the
+                // queue is empty, all chunks were read.
+                final byte[] end = mEnd;
+                byte[] chunk = mChunks.poll();
+                if (chunk == null && end != null) chunk = end;
+                if (chunk == null) {
+                    try {
+                        chunk = mChunks.poll(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted reading blob contents");
+                    }
+                }
+                if (chunk == null) throw new IOException("Timed out reading blob contents");
+                if (chunk == END_FAILURE) throw new IOException("Blob contents could not be read");
+                if (chunk == END_SUCCESS) {
+                    mEnded = true;
+                    return -1;
+                }
+                mCurrentChunk = chunk;
+                mPosition = 0;
+            }
+            final int read = min(len, mCurrentChunk.length - mPosition);
+            System.arraycopy(mCurrentChunk, mPosition, b, off, read);
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mChunks.clear();
+        }
+    }
+
+    /** Tasks downloading the same body from the network, registered when they are enqueued. */
+    private final class InFlightTransfer {
+        // Registered tasks that are not done
+        @GuardedBy("mInFlightTransfers")
+        private int mTaskCount = 0;
+        // Body that tasks processed now read instead of fetching it, or null if they must fetch it
+        @GuardedBy("mInFlightTransfers")
+        @Nullable
+        private SharedBody mBody;
+    }
+
+    /**
+     * Body fetched by a task, and written to a file of the download cache as it is received so
+     * that the other tasks of its {@link InFlightTransfer} can read it at the same time.
+     *
+     * <p>The file is referenced in the cache by the task fetching it and by each reader, so it is
+     * deleted once all of them are done, unless it was added to the cache.
+     *
+     * <p>Once fetched, the body can only be read by tasks processed while it is still being read
+     * by others: later tasks are served from the cache if the response allows it, or fetch the
+     * body again.
+     */
+    private final class SharedBody {
+        @NonNull
+        private final InFlightTransfer mTransfer;
+        @NonNull
+        private final File mFile;
+        // ID of the task fetching the body
+        private final int mFetcherId;
+        @GuardedBy("mInFlightTransfers")
+        private boolean mResponseReceived = false;
+        @GuardedBy("mInFlightTransfers")
+        private long mContentLength = CONTENT_LENGTH_UNKNOWN;
+        @GuardedBy("mInFlightTransfers")
+        private long mWrittenBytes = 0L;
+        @GuardedBy("mInFlightTransfers")
+        private boolean mComplete = false;
+        @GuardedBy("mInFlightTransfers")
+        private boolean mFailed = false;
+        // Number of tasks reading the body, other than the task fetching it
+        @GuardedBy("mInFlightTransfers")
+        private int mReaders = 0;
+
+        SharedBody(@NonNull InFlightTransfer transfer, @NonNull File file, int fetcherId) {
+            mTransfer = transfer;
+            mFile = file;
+            mFetcherId = fetcherId;
+        }
+
+        @GuardedBy("mInFlightTransfers")
+        void addReader() {
+            mReaders++;
+            mDownloadCache.retainFile(mFile);
+        }
+
+        void removeReader() {
+            synchronized (mInFlightTransfers) {
+                mReaders--;
+                if (mReaders == 0 && mComplete) detach();
+                mDownloadCache.releaseFile(mFile);
+            }
+        }
+
+        boolean hasReaders() {
+            synchronized (mInFlightTransfers) {
+                return mReaders > 0;
+            }
+        }
+
+        /** Called by the fetching task once the length of the body is known. */
+        void setResponse(long contentLength) {
+            synchronized (mInFlightTransfers) {
+                mContentLength = contentLength;
+                mResponseReceived = true;
+                mInFlightTransfers.notifyAll();
+            }
+        }
+
+        /**
+         * Whether the fetching task should keep writing the body once it reaches the specified
+         * size. Bodies too large to be cached are only written if other tasks read them, or may
+         * read them.
+         */
+        boolean canGrowTo(long size) {
+            synchronized (mInFlightTransfers) {
+                return max(size, mContentLength) <= mDownloadCache.getMaxEntryBytes()
+                        || mReaders > 0 || mTransfer.mTaskCount > 1;
+            }
+        }
+
+        /** Called by the fetching task after writing data to the file. */
+        void setWrittenBytes(long writtenBytes) {
+            synchronized (mInFlightTransfers) {
+                mWrittenBytes = writtenBytes;
+                mInFlightTransfers.notifyAll();
+            }
+        }
+
+        /**
+         * Called by the fetching task once it stops writing the body. This does nothing if the
+         * body was already finished.
+         * @param complete Whether the whole body was written. Readers fail otherwise.
+         */
+        void finish(boolean complete) {
+            synchronized (mInFlightTransfers) {
+                if (mComplete || mFailed) return;
+                mComplete = complete;
+                mFailed = !complete;
+                if (mFailed || mReaders == 0) detach();
+                mInFlightTransfers.notifyAll();
+            }
+        }
+
+        /** Stop tasks processed from now on from reading this body. */
+        @GuardedBy("mInFlightTransfers")
+        private void detach() {
+            if (mTransfer.mBody == this) mTransfer.mBody = null;
+        }
+    }
+
+    /**
+     * {@link InputStream} reading a {@link SharedBody} as it is written by the task fetching it.
+     */
+    private final class SharedBodyInputStream extends InputStream {
+        @NonNull
+        private final SharedBody mBody;
+        @NonNull
+        private final DownloadTask mTask;
+        @NonNull
+        private final FileInputStream mIn;
+        // Only accessed by the reader
+        private long mPosition = 0L;
+        private boolean mClosed = false;
+
+        /**
+         * Create a stream reading the body for the specified task. The task must have been added
+         * as a reader of the body, and this stream removes it when closed.
+         */
+        SharedBodyInputStream(@NonNull SharedBody body, @NonNull DownloadTask task)
+                throws FileNotFoundException {
+            mBody = body;
+            mTask = task;
+            try {
+                mIn = new FileInputStream(body.mFile);
+            } catch (FileNotFoundException e) {
+                body.removeReader();
+                throw e;
+            }
+        }
+
+        /**
+         * Wait until the task fetching the body received its response, and get the length of
+         * the body. This is bounded by the timeouts of the connection of the fetching task.
+         */
+        long awaitContentLength() throws IOException {
+            synchronized (mInFlightTransfers) {
+                while (!mBody.mResponseReceived) {
+                    if (mBody.mFailed) throw new IOException("Shared download failed");
+                    waitForBody();
+                }
+                return mBody.mContentLength;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            final long available;
+            synchronized (mInFlightTransfers) {
+                while (mPosition >= mBody.mWrittenBytes && !mBody.mComplete) {
+                    if (mBody.mFailed) throw new IOException("Shared download failed");
+                    // Only the data already written can be read while the task is cancelled.
+                    if (isCancelled(mTask)) throw new DownloadCancelledException();
+                    waitForBody();
+                }
+                available = mBody.mWrittenBytes - mPosition;
+            }
+            if (available == 0) return -1;
+            final int read = mIn.read(b, off, (int) min(len, available));
+            if (read > 0) mPosition += read;
+            return read;
+        }
+
+        @GuardedBy("mInFlightTransfers")
+        private void waitForBody() throws InterruptedIOException {
+            try {
+                mInFlightTransfers.wait(SHARED_BODY_POLL_MS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted reading shared download");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            closeQuietly(mIn);
+            mBody.removeReader();
+        }
+    }
+
+    /**
+     * {@link OutputStream} writing to a destination stream, while also writing the data to a
+     * {@link SharedBody} fetched by the task.
+     *
+     * <p>The shared body is written first, so that its readers are not held up by a slow
+     * destination. Failures to write it do not affect writes to the destination.
+     */
+    private static class SharedBodyOutputStream extends FilterOutputStream {
+        @Nullable
+        private final SharedBody mBody;
+        @Nullable
+        private FileOutputStream mBodyStream;
+        private long mWrittenBytes = 0L;
+
+        SharedBodyOutputStream(@NonNull OutputStream out, @Nullable SharedBody body)
+                throws IOException {
+            super(out);
+            mBody = body;
+            mBodyStream = body == null ? null : new FileOutputStream(body.mFile);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            writeBody(b, off, len);
+            out.write(b, off, len);
+        }
+
+        private void writeBody(@NonNull byte[] b, int off, int len) {
+            if (mBodyStream == null) return;
+            if (!mBody.canGrowTo(mWrittenBytes + len)) {
+                abandonBody();
+                return;
+            }
+            try {
+                mBodyStream.write(b, off, len);
+                mWrittenBytes += len;
+                mBody.setWrittenBytes(mWrittenBytes);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing shared download body", e);
+                abandonBody();
+            }
+        }
+
+        /**
+         * Copy the rest of the input to the shared body only, as long as other tasks read it.
+         * This is used when the task fetching the body stops downloading it.
+         * @return Whether the whole input was copied.
+         */
+        boolean drainForReaders(@NonNull InputStream is, long contentLength) {
+            final byte[] buffer = new byte[1500];
+            final long maxRead = contentLength == CONTENT_LENGTH_UNKNOWN
+                    ? Long.MAX_VALUE : contentLength;
+            try {
+                while (mBodyStream != null && mBody.hasReaders()) {
+                    if (mWrittenBytes >= maxRead) return true;
+                    final int read = is.read(buffer, 0,
+                            (int) min(buffer.length, maxRead - mWrittenBytes));
+                    if (read < 0) return true;
+                    writeBody(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading download for other tasks", e);
+            }
+            return false;
+        }
+
+        /**
+         * Close the shared body and mark it complete, if all data written to this stream was
+         * also written to it.
+         * @return Whether the shared body is complete, in which case it can be added to the cache.
+         */
+        boolean completeBody() {
+            if (mBodyStream == null) return false;
+            try {
+                mBodyStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing shared download body", e);
+                abandonBody();
+                return false;
+            }
+            mBodyStream = null;
+            mBody.finish(true /* complete */);
+            return true;
+        }
+
+        private void abandonBody() {
+            closeQuietly(mBodyStream);
+            mBodyStream = null;
+            if (mBody != null) mBody.finish(false /* complete */);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeQuietly(mBodyStream);
+            super.close();
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    static boolean isDataUrl(@NonNull String url) {
+        return url.regionMatches(true /* ignoreCase */, 0, DATA_URL_PREFIX, 0,
+                DATA_URL_PREFIX.length());
+    }
+
+    static boolean isBlobUrl(@NonNull String url) {
+        return url.regionMatches(true /* ignoreCase */, 0, BLOB_URL_PREFIX, 0,
+                BLOB_URL_PREFIX.length());
+    }
+
+    /** Whether the body of the URL is obtained without fetching it from the network. */
+    private static boolean isLocalUrl(@NonNull String url) {
+        return isDataUrl(url) || isBlobUrl(url);
+    }
+
+    /**
+     * Open the contents of a data: URL (RFC 2397). The contents are read from the URL string and
+     * decoded as they are read, without copying them in memory first.
+     */
+    @NonNull
+    private static InputStream openDataUrl(@NonNull String url) throws IOException {
+        final int dataStart = url.indexOf(',');
+        if (dataStart < 0) throw new IOException("Malformed data URL");
+        final String mediaType = url.substring(DATA_URL_PREFIX.length(), dataStart);
+        if (mediaType.toLowerCase(Locale.ROOT).endsWith(";base64")) {
+            return Base64.getMimeDecoder().wrap(
+                    new DataUrlInputStream(url, dataStart + 1, false /* percentDecode */));
+        }
+        return new DataUrlInputStream(url, dataStart + 1, true /* percentDecode */);
+    }
+
+    /**
+     * {@link InputStream} of the UTF-8 encoding of the end of a String, optionally decoding
+     * percent-encoded octets, reading directly from the String.
+     */
+    private static class DataUrlInputStream extends InputStream {
+        @NonNull
+        private final String mData;
+        private final boolean mPercentDecode;
+        private int mPosition;
+        // UTF-8 encoding of the last non-ASCII character read, and the position of the next byte
+        // of it to be read
+        @Nullable
+        private byte[] mPending;
+        private int mPendingPosition;
+
+        DataUrlInputStream(@NonNull String data, int start, boolean percentDecode) {
+            mData = data;
+            mPosition = start;
+            mPercentDecode = percentDecode;
+        }
+
+        @Override
+        public int read() {
+            if (mPending != null) {
+                final byte b = mPending[mPendingPosition++];
+                if (mPendingPosition >= mPending.length) mPending = null;
+                return b & 0xff;
+            }
+            if (mPosition >= mData.length()) return -1;
+            final char c = mData.charAt(mPosition);
+            if (mPercentDecode && c == '%' && mPosition + 2 < mData.length()) {
+                final int high = Character.digit(mData.charAt(mPosition + 1), 16);
+                final int low = Character.digit(mData.charAt(mPosition + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    mPosition += 3;
+                    return (high << 4) | low;
+                }
+            }
+            if (c < 0x80) {
+                mPosition++;
+                return c;
+            }
+            final int codePoint = mData.codePointAt(mPosition);
+            mPosition += Character.charCount(codePoint);
+            final byte[] encoded =
+                    new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > 1) {
+                mPending = encoded;
+                mPendingPosition = 1;
+            }
+            return encoded[0] & 0xff;
+        }
+    }
+
+    static boolean isDirectlyOpenType(String type) {
+        return sDirectlyOpenMimeType.get(type) != null;
+    }
+
+    @NonNull
+    private Notification.Builder makeProgressNotificationBuilder(@NonNull DownloadTask task) {
+        final Resources res = getResources();
+        final Intent cancelIntent = new Intent(this, DownloadService.class)
+                .putExtra(ARG_CANCEL, task.mId)
+                .setIdentifier(String.valueOf(task.mId));
+
+        final PendingIntent pendingIntent = PendingIntent.getService(this,
+                0 /* requestCode */, cancelIntent, PendingIntent.FLAG_IMMUTABLE);
+        final Notification.Action cancelAction = new Notification.Action.Builder(
+                Icon.createWithResource(this, R.drawable.ic_close),
+                res.getString(android.R.string.cancel),
+                pendingIntent).build();
+        return new Notification.Builder(this, CHANNEL_DOWNLOAD_PROGRESS)
+                .setContentTitle(res.getString(R.string.downloading_paramfile, task.mDisplayName))
+                .setSmallIcon(R.drawable.ic_cloud_download)
+                .setOnlyAlertOnce(true)
+                .addAction(cancelAction);
+    }
+
+    @NonNull
+    private Notification makeProgressNotification(@NonNull Notification.Builder builder,
+            @Nullable Integer progress) {
+        return builder
                 .setContentText(progress == null
                         ? null
                         : NumberFormat.getPercentInstance().format(progress.floatValue() / 100))
@@ -480,11 +2317,11 @@ public class DownloadService extends Service {
     }
 
     @NonNull
-    private Notification makeDoneNotification(@NonNull DownloadTask task) {
+    private Notification makeDoneNotification(@NonNull DownloadTask task, @NonNull Uri outFile) {
         final Intent intent = new Intent(Intent.ACTION_VIEW)
                 .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
                 .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
-                .setDataAndType(task.mOutFile, task.mMimeType)
+                .setDataAndType(outFile, task.mMimeType)
                 .setIdentifier(String.valueOf(task.mId));
 
         final PendingIntent pendingIntent = PendingIntent.getActivity(
@@ -499,9 +2336,25 @@ public class DownloadService extends Service {
     }
 
     @NonNull
-    private Notification makeErrorNotification(@NonNull String filename) {
-        final Resources res = getResources();
-        return new Notification.Builder(this, CHANNEL_DOWNLOADS)
+    private static Notification makeInstallReadyNotification(@NonNull Context context,
+            @NonNull String filename, @NonNull Intent confirmIntent) {
+        final PendingIntent pendingIntent = PendingIntent.getActivity(context,
+                0 /* requestCode */, confirmIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new Notification.Builder(context, CHANNEL_DOWNLOADS)
+                .setContentTitle(context.getResources().getString(R.string.download_completed))
+                .setContentText(filename)
+                .setSmallIcon(R.drawable.ic_cloud_download)
+                .setContentIntent(pendingIntent)
+                .setAutoCancel(true)
+                .build();
+    }
+
+    @NonNull
+    private static Notification makeErrorNotification(@NonNull Context context,
+            @NonNull String filename) {
+        final Resources res = context.getResources();
+        return new Notification.Builder(context, CHANNEL_DOWNLOADS)
                 .setContentTitle(res.getString(R.string.error_downloading_paramfile, filename))
                 .setSmallIcon(R.drawable.ic_cloud_download)
                 .build();
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves the assets used by the internal pages of the app, such as error pages, from memory.
+ *
+ * <p>Assets are read once and kept in memory, so that showing internal pages in the WebView does
+ * not go through the asset loader and file I/O every time.
+ */
+class InternalAssetServer {
+    private static final String TAG = InternalAssetServer.class.getSimpleName();
+
+    // Assets referenced by internal pages, loaded ahead of their first use
+    @VisibleForTesting
+    static final String[] PRELOADED_ASSETS = { "quantum_ic_warning_amber_96.png" };
+    // Assets only change with the app, which also clears the WebView cache
+    private static final Map<String, String> RESPONSE_HEADERS =
+            Map.of("Cache-Control", "max-age=31536000, immutable");
+
+    @GuardedBy("InternalAssetServer.class")
+    private static InternalAssetServer sInstance;
+
+    @NonNull
+    private final AssetManager mAssets;
+    // Contents of assets, by path relative to the assets root
+    private final ConcurrentHashMap<String, byte[]> mContents = new ConcurrentHashMap<>();
+
+    @VisibleForTesting
+    InternalAssetServer(@NonNull AssetManager assets) {
+        mAssets = assets;
+    }
+
+    /** Get the server shared by all components of the app. */
+    @NonNull
+    static synchronized InternalAssetServer getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new InternalAssetServer(context.getApplicationContext().getAssets());
+        }
+        return sInstance;
+    }
+
+    /** Load the assets used by internal pages in the background, if not loaded yet. */
+    void preload(@NonNull Executor executor) {
+        executor.execute(() -> {
+            for (final String path : PRELOADED_ASSETS) {
+                getContents(path);
+            }
+        });
+    }
+
+    /**
+     * Get the response to a request for an asset.
+     *
+     * <p>This may read the asset if it was not preloaded, so should be called on a background
+     * thread, like {@link android.webkit.WebViewClient#shouldInterceptRequest}.
+     * @param path The path of the asset relative to the assets root.
+     * @return the response, or null if there is no such asset.
+     */
+    @Nullable
+    WebResourceResponse serve(@NonNull String path) {
+        final byte[] contents = getContents(path);
+        if (contents == null) return null;
+        final String mimeType = URLConnection.guessContentTypeFromName(path);
+        return new WebResourceResponse(
+                mimeType == null ? "application/octet-stream" : mimeType,
+                null /* encoding */, 200 /* statusCode */, "OK", RESPONSE_HEADERS,
+                new ByteArrayInputStream(contents));
+    }
+
+    @Nullable
+    private byte[] getContents(@NonNull String path) {
+        final byte[] cached = mContents.get(path);
+        if (cached != null) return cached;
+        try (InputStream is = mAssets.open(path)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            final byte[] contents = out.toByteArray();
+            mContents.put(path, contents);
+            return contents;
+        } catch (IOException e) {
+            Log.d(TAG, "No asset " + path);
+            return null;
+        }
+    }
+}
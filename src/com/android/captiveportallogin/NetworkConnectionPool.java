@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+
+/**
+ * Per-network pool of warm HTTP connections, shared by {@link CaptivePortalLoginActivity} and
+ * {@link DownloadService}.
+ *
+ * <p>Connections opened with {@link Network#openConnection} are kept alive by a connection pool
+ * owned by the {@link Network} instance they were opened with, so every new instance, like the
+ * copies returned by {@link Network#getPrivateDnsBypassingCopy}, starts cold. This hands out the
+ * same instance for a network as long as it keeps being used, so consecutive connections to the
+ * same host skip DNS, TCP and TLS setup. Instances idle for longer than the idle timeout, or
+ * whose network was lost, are dropped along with their connections.
+ *
+ * <p>Networks passed to this pool are expected to be private DNS bypassing copies, as instances
+ * are matched by network ID only.
+ */
+class NetworkConnectionPool {
+    private static final String TAG = NetworkConnectionPool.class.getSimpleName();
+
+    // Duration after which a network that was not used is not reused anymore
+    @VisibleForTesting
+    static final long IDLE_TIMEOUT_MS = 30_000L;
+
+    private static final NetworkConnectionPool sInstance =
+            new NetworkConnectionPool(IDLE_TIMEOUT_MS);
+
+    private static final class Entry {
+        @NonNull
+        private final Network mNetwork;
+        private long mLastUsedMs;
+
+        private Entry(@NonNull Network network, long lastUsedMs) {
+            mNetwork = network;
+            mLastUsedMs = lastUsedMs;
+        }
+    }
+
+    private final long mIdleTimeoutMs;
+    // Network.equals only compares network IDs, so this is indexed by network ID
+    @GuardedBy("this")
+    private final HashMap<Network, Entry> mEntries = new HashMap<>();
+    @GuardedBy("this")
+    private int mCreatedCount = 0;
+    @GuardedBy("this")
+    private int mReusedCount = 0;
+
+    @VisibleForTesting
+    NetworkConnectionPool(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /** Get the pool shared by all components of the app. */
+    @NonNull
+    static NetworkConnectionPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Get the instance of the network to open connections with, so that they can reuse warm
+     * connections. Connections must be released with {@link #release}.
+     */
+    @NonNull
+    synchronized Network acquire(@NonNull Network network) {
+        final long now = SystemClock.elapsedRealtime();
+        Entry entry = mEntries.get(network);
+        if (entry != null && now - entry.mLastUsedMs < mIdleTimeoutMs) {
+            mReusedCount++;
+        } else {
+            entry = new Entry(network, now);
+            mEntries.put(network, entry);
+            mCreatedCount++;
+        }
+        entry.mLastUsedMs = now;
+        return entry.mNetwork;
+    }
+
+    /**
+     * Release a connection opened on a network returned by {@link #acquire}.
+     * @param body The response body of the connection if it was fully read, in which case the
+     *             connection is kept alive for reuse. Otherwise the connection is closed.
+     */
+    void release(@NonNull Network network, @NonNull HttpURLConnection connection,
+            @Nullable InputStream body) {
+        if (body == null) {
+            connection.disconnect();
+            return;
+        }
+        try {
+            // Closing the fully read body returns the connection to the pool of the network
+            body.close();
+        } catch (IOException e) {
+            connection.disconnect();
+            return;
+        }
+        synchronized (this) {
+            final Entry entry = mEntries.get(network);
+            if (entry != null) entry.mLastUsedMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /** Drop the connections of the network, for example because it was lost. */
+    synchronized void evict(@NonNull Network network) {
+        if (mEntries.remove(network) == null) return;
+        Log.d(TAG, "Evicted connections of " + network + ", created " + mCreatedCount
+                + " networks, reused " + mReusedCount);
+    }
+
+    /** Number of times a network was acquired without warm connections to reuse. */
+    @VisibleForTesting
+    synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /** Number of times a network was acquired with warm connections to reuse. */
+    @VisibleForTesting
+    synchronized int getReusedCount() {
+        return mReusedCount;
+    }
+}
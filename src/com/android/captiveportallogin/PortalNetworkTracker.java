@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_VPN;
+import static android.net.NetworkCapabilities.TRANSPORT_VPN;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArraySet;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tracks the state of the portal network, and the VPN state of the device.
+ *
+ * <p>Only networks with the transports of the portal network are listened to, instead of all
+ * networks of the device, and events are only dispatched for the portal network itself. VPNs are
+ * tracked with a separate callback, so that whether one is connected is known without querying
+ * all networks. Whether always-on VPN lockdown is enabled is cached, and queried again in the
+ * background when the device policy changes, and when VPNs connect or disconnect as lockdown is
+ * typically enabled together with a VPN change. The VPN state can then be read without any binder
+ * call.
+ */
+class PortalNetworkTracker {
+    /** Receives the events of the portal network, on a ConnectivityManager thread. */
+    interface Callback {
+        /** The portal network was disconnected. */
+        void onPortalNetworkLost();
+        /** The capabilities of the portal network changed. */
+        void onPortalNetworkCapabilitiesChanged(@NonNull NetworkCapabilities nc);
+    }
+
+    @NonNull
+    private final Context mContext;
+    @NonNull
+    private final ConnectivityManager mCm;
+    @NonNull
+    private final Network mNetwork;
+    @NonNull
+    private final Callback mCallback;
+    @NonNull
+    private final BooleanSupplier mAlwaysOnVpnLockdownQuery;
+    @NonNull
+    private final Executor mBackgroundExecutor;
+    private final Object mVpnLock = new Object();
+    // Connected VPNs. Updated under mVpnLock from a ConnectivityManager thread and when
+    // registering, and read without locking.
+    private final Set<Network> mVpnNetworks = ConcurrentHashMap.newKeySet();
+    // VPNs reported lost by the callback, so that they are not added back by the initial query
+    @GuardedBy("mVpnLock")
+    private final Set<Network> mLostVpnNetworks = new ArraySet<>();
+    private volatile boolean mAlwaysOnVpnLockdown = false;
+
+    private final NetworkCallback mPortalNetworkCallback = new NetworkCallback() {
+        @Override
+        public void onLost(@NonNull Network network) {
+            if (mNetwork.equals(network)) mCallback.onPortalNetworkLost();
+        }
+
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network network,
+                @NonNull NetworkCapabilities nc) {
+            if (mNetwork.equals(network)) mCallback.onPortalNetworkCapabilitiesChanged(nc);
+        }
+    };
+
+    private final NetworkCallback mVpnNetworkCallback = new NetworkCallback() {
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            synchronized (mVpnLock) {
+                mLostVpnNetworks.remove(network);
+                mVpnNetworks.add(network);
+            }
+            mBackgroundExecutor.execute(PortalNetworkTracker.this::refreshAlwaysOnVpnLockdown);
+        }
+
+        @Override
+        public void onLost(@NonNull Network network) {
+            synchronized (mVpnLock) {
+                mVpnNetworks.remove(network);
+                mLostVpnNetworks.add(network);
+            }
+            mBackgroundExecutor.execute(PortalNetworkTracker.this::refreshAlwaysOnVpnLockdown);
+        }
+    };
+
+    // Receives the changes of the device policy, which include always-on VPN lockdown settings
+    @VisibleForTesting
+    final BroadcastReceiver mDevicePolicyReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mBackgroundExecutor.execute(PortalNetworkTracker.this::refreshAlwaysOnVpnLockdown);
+        }
+    };
+
+    /**
+     * Create a tracker for the network.
+     * @param alwaysOnVpnLockdownQuery Queries whether always-on VPN lockdown is enabled. Only
+     *                                 called on background threads.
+     * @param backgroundExecutor Executor running the queries of the tracker.
+     */
+    PortalNetworkTracker(@NonNull Context context, @NonNull ConnectivityManager cm,
+            @NonNull Network network, @NonNull Callback callback,
+            @NonNull BooleanSupplier alwaysOnVpnLockdownQuery,
+            @NonNull Executor backgroundExecutor) {
+        mContext = context;
+        mCm = cm;
+        mNetwork = network;
+        mCallback = callback;
+        mAlwaysOnVpnLockdownQuery = alwaysOnVpnLockdownQuery;
+        mBackgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * Start tracking the portal network and VPNs.
+     *
+     * <p>This does binder calls, so should not be called on the main thread.
+     * @param portalCapabilities The current capabilities of the portal network.
+     */
+    void register(@NonNull NetworkCapabilities portalCapabilities) {
+        mContext.registerReceiver(mDevicePolicyReceiver,
+                new IntentFilter(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED),
+                Context.RECEIVER_NOT_EXPORTED);
+        refreshAlwaysOnVpnLockdown();
+        final NetworkRequest.Builder portalRequest = new NetworkRequest.Builder();
+        for (final int transport : portalCapabilities.getTransportTypes()) {
+            portalRequest.addTransportType(transport);
+        }
+        mCm.registerNetworkCallback(portalRequest.build(), mPortalNetworkCallback);
+        mCm.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_VPN)
+                .removeCapability(NET_CAPABILITY_NOT_VPN)
+                .removeCapability(NET_CAPABILITY_NOT_RESTRICTED)
+                .build(), mVpnNetworkCallback);
+        // The callback reports connected VPNs asynchronously: query them so that they are known
+        // as soon as the tracker is registered.
+        for (final Network network : mCm.getAllNetworks()) {
+            final NetworkCapabilities nc = mCm.getNetworkCapabilities(network);
+            if (nc == null || !nc.hasTransport(TRANSPORT_VPN)) continue;
+            synchronized (mVpnLock) {
+                if (!mLostVpnNetworks.contains(network)) mVpnNetworks.add(network);
+            }
+        }
+        // Callbacks registered for a network that is already gone are never called: check that the
+        // network was not lost since portalCapabilities were obtained.
+        if (mCm.getNetworkCapabilities(mNetwork) == null) mCallback.onPortalNetworkLost();
+    }
+
+    /** Stop tracking. This does binder calls, so should not be called on the main thread. */
+    void unregister() {
+        mContext.unregisterReceiver(mDevicePolicyReceiver);
+        mCm.unregisterNetworkCallback(mPortalNetworkCallback);
+        mCm.unregisterNetworkCallback(mVpnNetworkCallback);
+    }
+
+    /** Whether a VPN is connected. This does not do any binder call. */
+    boolean hasVpnNetwork() {
+        return !mVpnNetworks.isEmpty();
+    }
+
+    /** Whether always-on VPN lockdown is enabled. This does not do any binder call. */
+    boolean isAlwaysOnVpnLockdownEnabled() {
+        return mAlwaysOnVpnLockdown;
+    }
+
+    /**
+     * Query again whether always-on VPN lockdown is enabled. This does a binder call.
+     *
+     * <p>Queries are serialized, so that the result of a query never overrides a more recent one.
+     */
+    @VisibleForTesting
+    synchronized void refreshAlwaysOnVpnLockdown() {
+        mAlwaysOnVpnLockdown = mAlwaysOnVpnLockdownQuery.getAsBoolean();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.os.Handler;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Coalesces requests to reevaluate the portal network.
+ *
+ * <p>Each reevaluation makes the system send a set of probes on the portal network, so the bursts
+ * of navigation events caused by redirects would otherwise trigger as many evaluations. The first
+ * request is run immediately, and further requests made within the coalescing window are merged
+ * into a single trailing reevaluation at the end of the window, so that the network is always
+ * reevaluated after the last navigation.
+ */
+class ReevaluationScheduler {
+    // Duration during which requests following a reevaluation are coalesced
+    @VisibleForTesting
+    static final long COALESCING_WINDOW_MS = 500L;
+
+    @NonNull
+    private final Runnable mReevaluation;
+    @NonNull
+    private final Handler mHandler;
+    private final long mWindowMs;
+    // Whether a reevaluation ran less than mWindowMs ago
+    @GuardedBy("this")
+    private boolean mInWindow = false;
+    // Whether a reevaluation should run at the end of the current window
+    @GuardedBy("this")
+    private boolean mTrailingPending = false;
+    @GuardedBy("this")
+    private boolean mCancelled = false;
+    @GuardedBy("this")
+    private int mSavedCount = 0;
+
+    /**
+     * Create a scheduler.
+     * @param reevaluation Reevaluates the network. Called on the thread of the first request in
+     *                     a window, or on the handler thread for trailing reevaluations.
+     */
+    ReevaluationScheduler(@NonNull Runnable reevaluation, @NonNull Handler handler,
+            long windowMs) {
+        mReevaluation = reevaluation;
+        mHandler = handler;
+        mWindowMs = windowMs;
+    }
+
+    /** Request a reevaluation of the network. This can be called on any thread. */
+    void request() {
+        synchronized (this) {
+            if (mCancelled) return;
+            if (mInWindow) {
+                if (mTrailingPending) {
+                    mSavedCount++;
+                } else {
+                    mTrailingPending = true;
+                }
+                return;
+            }
+            mInWindow = true;
+        }
+        mHandler.postDelayed(this::onWindowEnd, mWindowMs);
+        mReevaluation.run();
+    }
+
+    private void onWindowEnd() {
+        synchronized (this) {
+            if (mCancelled) return;
+            if (!mTrailingPending) {
+                mInWindow = false;
+                return;
+            }
+            // Requests made until the end of the next window are coalesced with this one
+            mTrailingPending = false;
+        }
+        mHandler.postDelayed(this::onWindowEnd, mWindowMs);
+        mReevaluation.run();
+    }
+
+    /** Drop any pending reevaluation, and ignore further requests. */
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /** Number of reevaluations that were saved by coalescing requests. */
+    synchronized int getSavedCount() {
+        return mSavedCount;
+    }
+}
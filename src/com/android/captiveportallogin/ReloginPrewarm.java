@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.CaptivePortalData;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Prewarms the portal when the login activity starts again on a network after the session
+ * obtained by logging in to it expired, so that logging in again does not start cold.
+ *
+ * <p>Portals such as hotel or in-flight networks grant sessions of limited duration, after which
+ * the network becomes captive again. When the user logs in and the expiry of the session is
+ * known, the login page is recorded for the network. When the activity starts again for the same
+ * network, its URL is usually the probe URL, which only redirects to the portal: the recorded
+ * portal host is resolved and connected to meanwhile, so the connection is warm when the redirect
+ * is followed.
+ *
+ * <p>This is not done on a timer before the expiry: the warm connection is only kept in
+ * {@link NetworkConnectionPool} for the idle timeout of the pool, which is much shorter than the
+ * time it takes for the portal to be detected again and for the user to open the login page.
+ */
+final class ReloginPrewarm {
+    private static final String TAG = ReloginPrewarm.class.getSimpleName();
+
+    @VisibleForTesting
+    static final String PREFS_NAME = "relogin_prewarm";
+    private static final String KEY_NETWORK_HANDLE = "network_handle";
+    private static final String KEY_PORTAL_URL = "portal_url";
+
+    private ReloginPrewarm() {}
+
+    /**
+     * Get the time at which the session on the network expires, in the
+     * {@link SystemClock#elapsedRealtime} base.
+     *
+     * <p>The state reported by the API client after login is preferred, as the captive portal data
+     * of the network may date from before the login.
+     * @return the expiry time, or -1 if unknown.
+     */
+    static long getSessionExpiryElapsedMs(@Nullable CaptivePortalApiClient.PortalState apiState,
+            @Nullable LinkProperties lp) {
+        if (apiState != null && !apiState.mCaptive && apiState.mSecondsRemaining >= 0) {
+            return apiState.mReceivedTimeMs + apiState.mSecondsRemaining * 1000L;
+        }
+        final CaptivePortalData data = lp == null ? null : lp.getCaptivePortalData();
+        if (data != null && data.getExpiryTimeMillis() > 0) {
+            return data.getExpiryTimeMillis() - System.currentTimeMillis()
+                    + SystemClock.elapsedRealtime();
+        }
+        return -1L;
+    }
+
+    /**
+     * Record the portal logged in to on the network, replacing any previous record.
+     *
+     * <p>This writes to disk, so should not be called on the main thread.
+     */
+    static void recordLogin(@NonNull Context context, @NonNull Network network,
+            @NonNull URL portalUrl) {
+        getPreferences(context).edit()
+                .putLong(KEY_NETWORK_HANDLE, network.getNetworkHandle())
+                .putString(KEY_PORTAL_URL, portalUrl.toString())
+                .apply();
+    }
+
+    /**
+     * Prewarm the portal recorded for the network, if it is not on the host of the URL that the
+     * activity loads first, which is prewarmed separately.
+     *
+     * <p>This blocks on the network, so must not be called on the main thread.
+     */
+    static void prewarm(@NonNull Context context, @NonNull Network network, @NonNull URL url) {
+        final URL portalUrl = getRecordedPortalUrl(context, network);
+        if (portalUrl == null || portalUrl.getHost().equalsIgnoreCase(url.getHost())) return;
+        Log.d(TAG, "Prewarming the portal of the previous login");
+        CaptivePortalLoginActivity.prewarmNetwork(network, portalUrl);
+    }
+
+    @Nullable
+    private static URL getRecordedPortalUrl(@NonNull Context context, @NonNull Network network) {
+        final SharedPreferences prefs = getPreferences(context);
+        if (prefs.getLong(KEY_NETWORK_HANDLE, 0L) != network.getNetworkHandle()) return null;
+        final String portalUrl = prefs.getString(KEY_PORTAL_URL, null);
+        if (portalUrl == null) return null;
+        try {
+            return new URL(portalUrl);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid recorded portal URL", e);
+            return null;
+        }
+    }
+
+    private static SharedPreferences getPreferences(@NonNull Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin;
+
+import android.net.Network;
+import android.net.captiveportal.CaptivePortalProbeSpec;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executor;
+
+/**
+ * Probes the portal network from the app after pages are loaded, to detect that the user logged
+ * in without waiting for the system to revalidate the network.
+ *
+ * <p>Probes are sent over the portal network to the URL of the probe spec if any, or the portal
+ * URL otherwise, and evaluated the way the system evaluates its own probes. At most one probe is
+ * in flight: probes requested meanwhile are coalesced into one, sent after the current one.
+ */
+class ValidationProber {
+    private static final String TAG = ValidationProber.class.getSimpleName();
+
+    // Delay between the request and the probe, to give time for the portal to open access after
+    // the login page is loaded
+    @VisibleForTesting
+    static final long PROBE_DELAY_MS = 500L;
+    private static final int PROBE_TIMEOUT_MS = 10_000;
+
+    /** Receives the result of the probes, on a background thread. */
+    interface Callback {
+        /** A probe showed that the portal network has access to the internet. */
+        void onValidated();
+    }
+
+    @NonNull
+    private final Network mNetwork;
+    @NonNull
+    private final URL mProbeUrl;
+    @Nullable
+    private final String mUserAgent;
+    @Nullable
+    private final CaptivePortalProbeSpec mProbeSpec;
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Callback mCallback;
+    @GuardedBy("this")
+    private boolean mScheduled = false;
+    @GuardedBy("this")
+    private boolean mRunning = false;
+    @GuardedBy("this")
+    private boolean mProbeAgain = false;
+    @GuardedBy("this")
+    private boolean mCancelled = false;
+
+    ValidationProber(@NonNull Network network, @NonNull URL portalUrl,
+            @Nullable String userAgent, @Nullable CaptivePortalProbeSpec probeSpec,
+            @NonNull Handler handler, @NonNull Executor executor, @NonNull Callback callback) {
+        mNetwork = network;
+        mProbeUrl = probeSpec != null ? probeSpec.getUrl() : portalUrl;
+        mUserAgent = userAgent;
+        mProbeSpec = probeSpec;
+        mHandler = handler;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /** Request a probe of the network, for example after a login page was loaded. */
+    void requestProbe() {
+        synchronized (this) {
+            if (mCancelled) return;
+            if (mRunning) {
+                mProbeAgain = true;
+                return;
+            }
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        mHandler.postDelayed(() -> mExecutor.execute(this::runProbe), PROBE_DELAY_MS);
+    }
+
+    /** Drop any pending probe, and ignore further requests. */
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void runProbe() {
+        synchronized (this) {
+            if (mCancelled) return;
+            mScheduled = false;
+            mRunning = true;
+        }
+        final boolean validated = probe();
+        final boolean probeAgain;
+        synchronized (this) {
+            mRunning = false;
+            probeAgain = mProbeAgain;
+            mProbeAgain = false;
+            if (mCancelled) return;
+        }
+        if (validated) {
+            mCallback.onValidated();
+        } else if (probeAgain) {
+            requestProbe();
+        }
+    }
+
+    /** Send a probe and return whether it succeeded. This blocks on network I/O. */
+    @VisibleForTesting
+    boolean probe() {
+        final NetworkConnectionPool pool = NetworkConnectionPool.getInstance();
+        final Network pooledNetwork = pool.acquire(mNetwork);
+        HttpURLConnection connection = null;
+        InputStream body = null;
+        final int httpResponseCode;
+        final String locationHeader;
+        try {
+            connection = (HttpURLConnection) pooledNetwork.openConnection(mProbeUrl);
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setUseCaches(false);
+            if (mUserAgent != null) {
+                connection.setRequestProperty("User-Agent", mUserAgent);
+            }
+            httpResponseCode = connection.getResponseCode();
+            locationHeader = connection.getHeaderField("Location");
+            // 204 responses have no body: the connection can be reused right away
+            if (httpResponseCode == 204) body = connection.getInputStream();
+        } catch (IOException e) {
+            Log.d(TAG, "Probe failed: " + e.getMessage());
+            return false;
+        } finally {
+            if (connection != null) pool.release(pooledNetwork, connection, body);
+        }
+        final boolean validated = isDismissed(httpResponseCode, locationHeader, mProbeSpec);
+        Log.d(TAG, "Probe returned " + httpResponseCode + ", validated: " + validated);
+        return validated;
+    }
+
+    @VisibleForTesting
+    static boolean isDismissed(
+            int httpResponseCode, String locationHeader, CaptivePortalProbeSpec probeSpec) {
+        return (probeSpec != null)
+                ? probeSpec.getResult(httpResponseCode, locationHeader).isSuccessful()
+                : (httpResponseCode == 204);
+    }
+}
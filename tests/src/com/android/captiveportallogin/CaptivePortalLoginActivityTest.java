@@ -42,14 +42,19 @@ import static androidx.test.espresso.web.webdriver.DriverAtoms.findElement;
 import static androidx.test.espresso.web.webdriver.DriverAtoms.webClick;
 import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
 
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_API_CLIENT;
 import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_CUSTOM_TABS;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_DOWNLOAD_APK_INSTALL;
+import static com.android.captiveportallogin.CaptivePortalLoginFlags.CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE;
 import static com.android.captiveportallogin.DownloadService.DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE;
 import static com.android.testutils.TestNetworkTrackerKt.initTestNetwork;
 import static com.android.testutils.TestPermissionUtil.runAsShell;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.core.AllOf.allOf;
@@ -60,6 +65,7 @@ import static org.junit.Assume.assumeTrue;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -80,20 +86,26 @@ import android.content.ServiceConnection;
 import android.net.CaptivePortal;
 import android.net.CaptivePortalData;
 import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
 import android.net.InetAddresses;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.ProxyInfo;
 import android.net.Uri;
 import android.net.wifi.WifiInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.ArrayMap;
 import android.view.accessibility.AccessibilityEvent;
+import android.webkit.WebResourceResponse;
 import android.widget.Toast;
 
 import androidx.browser.customtabs.CustomTabsCallback;
@@ -109,12 +121,17 @@ import androidx.test.filters.SmallTest;
 import androidx.test.uiautomator.UiDevice;
 import androidx.test.uiautomator.UiObject;
 import androidx.test.uiautomator.UiSelector;
+import androidx.webkit.ProxyConfig;
+import androidx.webkit.ProxyController;
+import androidx.webkit.WebViewFeature;
 
+import com.android.captiveportallogin.DownloadService.DownloadRequest;
 import com.android.testutils.SkipPresubmit;
 import com.android.testutils.TestNetworkTracker;
 import com.android.testutils.com.android.testutils.SetFeatureFlagsRule;
 import com.android.testutils.com.android.testutils.SetFeatureFlagsRule.FeatureFlag;
 
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -128,14 +145,21 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.ServerSocket;
+import java.net.URL;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -149,6 +173,8 @@ public class CaptivePortalLoginActivityTest {
     private static final String TEST_WIFIINFO_SSID = "Test Other SSID";
     private static final String TEST_URL_QUERY = "testquery";
     private static final long TEST_TIMEOUT_MS = 10_000L;
+    // Time during which a request that should not be sent is awaited
+    private static final long NO_REQUEST_TIMEOUT_MS = 500L;
     private static final LinkAddress TEST_LINKADDR = new LinkAddress(
             InetAddresses.parseNumericAddress("2001:db8::8"), 64);
     private static final String TEST_USERAGENT = "Test/42.0 Unit-test";
@@ -158,6 +184,11 @@ public class CaptivePortalLoginActivityTest {
     private static final String TEST_WIFI_CONFIG_TYPE = "application/x-wifi-config";
     private static final String TEST_DOWNLOAD_SERVICE_COMPONENT_CLASS_NAME =
             DownloadService.class.getName();
+    private static final String TEST_DOWNLOAD_QUERY = "dl";
+    private static final String TEST_DOWNLOAD_FILENAME = "testfile.png";
+    private static final String TEST_DOWNLOAD_MIMETYPE = "image/png";
+    // File returned by the mock file chooser
+    private static final Uri TEST_DOWNLOAD_FILE = Uri.parse("content://mockdata");
     private ActivityScenario<InstrumentedCaptivePortalLoginActivity> mActivityScenario;
     private Network mNetwork = new Network(TEST_NETID);
     private TestNetworkTracker mTestNetworkTracker;
@@ -168,8 +199,12 @@ public class CaptivePortalLoginActivityTest {
     private static DevicePolicyManager sMockDevicePolicyManager;
     private static DownloadService.DownloadServiceBinder sDownloadServiceBinder;
     private static CustomTabsClient sMockCustomTabsClient;
+    // Used instead of the proxy controller of WebView if set
+    private static ProxyController sMockProxyController;
     private static ArrayMap<String, Boolean> sFeatureFlags = new ArrayMap<>();
     private static boolean sIsMultiNetworkingSupported;
+    // Whether the activity accepts captive portal APIs served over HTTP, like the test servers
+    private static boolean sAllowCleartextCaptivePortalApi;
     @Rule
     public final SetFeatureFlagsRule mSetFeatureFlagsRule =
             new SetFeatureFlagsRule((name, enabled) -> {
@@ -189,6 +224,13 @@ public class CaptivePortalLoginActivityTest {
         private final CompletableFuture<CustomTabsServiceConnection> mCustomTabsServiceBound =
                 new CompletableFuture<>();
         private final ConditionVariable mDlServiceunbindCv = new ConditionVariable(false);
+        // Activity results are delivered, and the download service connected, once these futures
+        // complete. Tests complete them on the main thread to force the order of both events.
+        private CompletableFuture<Void> mActivityResultGate =
+                CompletableFuture.completedFuture(null);
+        private final CompletableFuture<Void> mActivityResultDelivered = new CompletableFuture<>();
+        private CompletableFuture<Void> mDownloadServiceConnectGate =
+                CompletableFuture.completedFuture(null);
 
         @Override
         public Object getSystemService(String name) {
@@ -207,6 +249,12 @@ public class CaptivePortalLoginActivityTest {
             return makeWifiInfo();
         }
 
+        @Override
+        ProxyController getProxyController() {
+            return sMockProxyController != null
+                    ? sMockProxyController : super.getProxyController();
+        }
+
         @Override
         public ComponentName startForegroundService(Intent service) {
             assertTrue("Multiple foreground services were started during the test",
@@ -235,8 +283,9 @@ public class CaptivePortalLoginActivityTest {
                             TEST_DOWNLOAD_SERVICE_COMPONENT_CLASS_NAME)) {
                 assertTrue("Download foreground service was bound multiple times during the test",
                         mDownloadServiceBound.complete(conn));
-                getMainThreadHandler().post(() -> conn.onServiceConnected(
-                        getInstrumentation().getComponentName(), sDownloadServiceBinder));
+                mDownloadServiceConnectGate.thenRun(() -> getMainThreadHandler().post(
+                        () -> conn.onServiceConnected(getInstrumentation().getComponentName(),
+                                sDownloadServiceBinder)));
             } else if (service.getAction().equals(ACTION_CUSTOM_TABS_CONNECTION)) {
                 assertTrue("CustomTabs foreground service was bound multiple times during the test",
                         mCustomTabsServiceBound.complete((CustomTabsServiceConnection) conn));
@@ -254,14 +303,22 @@ public class CaptivePortalLoginActivityTest {
         }
 
         @Override
-        public void startActivity(Intent intent) {
+        protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+            mActivityResultGate.thenRun(() -> {
+                super.onActivityResult(requestCode, resultCode, data);
+                mActivityResultDelivered.complete(null);
+            });
+        }
+
+        @Override
+        void startBrowserActivity(Intent intent) {
             if (Intent.ACTION_VIEW.equals(intent.getAction())
                     && intent.getData() != null
                     && intent.getData().getAuthority().startsWith(TEST_PORTAL_HOSTNAME)) {
                 mOpenInBrowserIntent.complete(intent);
                 return;
             }
-            super.startActivity(intent);
+            super.startBrowserActivity(intent);
         }
 
         @Override
@@ -285,6 +342,11 @@ public class CaptivePortalLoginActivityTest {
             if (sFeatureFlags.get(name) == null) return false;
             return sFeatureFlags.get(name);
         }
+
+        @Override
+        boolean isCaptivePortalApiSecureUrl(URL url) {
+            return sAllowCleartextCaptivePortalApi || super.isCaptivePortalApiSecureUrl(url);
+        }
     }
 
     /** Class to replace CaptivePortal to prevent mock object is updated and replaced by parcel. */
@@ -354,7 +416,12 @@ public class CaptivePortalLoginActivityTest {
         sConnectivityManager = spy(context.getSystemService(ConnectivityManager.class));
         sMockDevicePolicyManager = mock(DevicePolicyManager.class);
         sDownloadServiceBinder = mock(DownloadService.DownloadServiceBinder.class);
+        // Return a download ID of 0 for each request by default.
+        doAnswer(inv -> new int[((List<?>) inv.getArgument(2)).size()])
+                .when(sDownloadServiceBinder).requestDownloads(any(), any(), any());
         sMockCustomTabsClient = mock(CustomTabsClient.class);
+        sMockProxyController = null;
+        sAllowCleartextCaptivePortalApi = false;
 
         MockitoAnnotations.initMocks(this);
         // Use a real (but test) network for the application. The application will pass this
@@ -416,6 +483,15 @@ public class CaptivePortalLoginActivityTest {
                         .putExtra(EXTRA_NETWORK, mNetwork)
                         .putExtra(EXTRA_CAPTIVE_PORTAL_USER_AGENT, TEST_USERAGENT)
                         .putExtra(EXTRA_CAPTIVE_PORTAL, new MockCaptivePortal()));
+        // The activity queries the state of the network in the background when created: wait
+        // until it is set up with the results.
+        final AtomicReference<CompletableFuture<Void>> startupComplete = new AtomicReference<>();
+        mActivityScenario.onActivity(activity -> startupComplete.set(activity.mStartupComplete));
+        try {
+            startupComplete.get().get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new AssertionError("Timed out waiting for the activity to start up", e);
+        }
         mActivityScenario.onActivity(activity -> {
             getInstrumentation().getUiAutomation().adoptShellPermissionIdentity(
                     android.Manifest.permission.POST_NOTIFICATIONS);
@@ -456,8 +532,6 @@ public class CaptivePortalLoginActivityTest {
     }
 
     private void configNonVpnNetwork() {
-        final Network[] networks = new Network[] {new Network(mNetwork)};
-        doReturn(networks).when(sConnectivityManager).getAllNetworks();
         final NetworkCapabilities nonVpnCapabilities;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             // SSID and NetworkCapabilities builder was added in R
@@ -473,34 +547,113 @@ public class CaptivePortalLoginActivityTest {
                 mNetwork);
     }
 
-    private void configVpnNetwork() {
-        final Network network1 = new Network(TEST_NETID + 1);
-        final Network network2 = new Network(TEST_NETID + 2);
-        final Network[] networks = new Network[] {network1, network2};
-        doReturn(networks).when(sConnectivityManager).getAllNetworks();
-        final NetworkCapabilities underlyingCapabilities = new NetworkCapabilities()
-                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI);
-        final NetworkCapabilities vpnCapabilities = new NetworkCapabilities(underlyingCapabilities)
-                .addTransportType(NetworkCapabilities.TRANSPORT_VPN);
-        doReturn(underlyingCapabilities).when(sConnectivityManager).getNetworkCapabilities(
-                network1);
-        doReturn(vpnCapabilities).when(sConnectivityManager).getNetworkCapabilities(network2);
+    private void refreshAlwaysOnVpnLockdown() {
+        mActivityScenario.onActivity(a -> a.mNetworkTracker.refreshAlwaysOnVpnLockdown());
+    }
+
+    private void notifyDevicePolicyChanged() {
+        mActivityScenario.onActivity(a -> a.mNetworkTracker.mDevicePolicyReceiver.onReceive(a,
+                new Intent(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED)));
+    }
+
+    private boolean isAlwaysOnVpnEnabled() {
+        final AtomicBoolean enabled = new AtomicBoolean();
+        mActivityScenario.onActivity(a -> enabled.set(a.isAlwaysOnVpnEnabled()));
+        return enabled.get();
+    }
+
+    private String getVpnMsgOrLinkToBrowser() {
+        final AtomicReference<String> msg = new AtomicReference<>();
+        mActivityScenario.onActivity(a ->
+                msg.set(a.getWebViewClient().getVpnMsgOrLinkToBrowser()));
+        return msg.get();
+    }
+
+    /** Get the callback registered by the activity to track VPNs. */
+    private NetworkCallback getVpnNetworkCallback() {
+        final ArgumentCaptor<NetworkRequest> requestCaptor =
+                ArgumentCaptor.forClass(NetworkRequest.class);
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        verify(sConnectivityManager, timeout(TEST_TIMEOUT_MS).atLeastOnce())
+                .registerNetworkCallback(requestCaptor.capture(), callbackCaptor.capture());
+        final List<NetworkRequest> requests = requestCaptor.getAllValues();
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+                return callbackCaptor.getAllValues().get(i);
+            }
+        }
+        throw new AssertionError("No VPN callback registered");
+    }
+
+    private void notifyVpnConnected(boolean connected) {
+        final Network vpnNetwork = new Network(TEST_NETID + 2);
+        if (connected) {
+            getVpnNetworkCallback().onAvailable(vpnNetwork);
+        } else {
+            getVpnNetworkCallback().onLost(vpnNetwork);
+        }
     }
 
     @Test
     public void testHasVpnNetwork() throws Exception {
+        configNonVpnNetwork();
         initActivity(TEST_URL);
         // Initialize intent capturing after launching the activity to avoid capturing extra
         // intents.
         Intents.init();
 
+        // The activity only listens to networks with the transports of the portal network, and
+        // to VPNs.
+        final ArgumentCaptor<NetworkRequest> requestCaptor =
+                ArgumentCaptor.forClass(NetworkRequest.class);
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        verify(sConnectivityManager, times(2)).registerNetworkCallback(
+                requestCaptor.capture(), callbackCaptor.capture());
+        final NetworkRequest portalRequest = requestCaptor.getAllValues().get(0);
+        assertTrue(portalRequest.hasTransport(NetworkCapabilities.TRANSPORT_WIFI));
+        assertFalse(portalRequest.hasTransport(NetworkCapabilities.TRANSPORT_VPN));
+        final NetworkRequest vpnRequest = requestCaptor.getAllValues().get(1);
+        assertTrue(vpnRequest.hasTransport(NetworkCapabilities.TRANSPORT_VPN));
+        assertFalse(vpnRequest.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN));
+        assertFalse(vpnRequest.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED));
+        final NetworkCallback vpnCallback = callbackCaptor.getAllValues().get(1);
+
         // Test non-vpn case.
-        configNonVpnNetwork();
         mActivityScenario.onActivity(activity -> assertFalse(activity.hasVpnNetwork()));
 
         // Test vpn case.
-        configVpnNetwork();
+        final Network vpnNetwork = new Network(TEST_NETID + 2);
+        vpnCallback.onAvailable(vpnNetwork);
+        mActivityScenario.onActivity(activity -> assertTrue(activity.hasVpnNetwork()));
+
+        vpnCallback.onLost(vpnNetwork);
+        mActivityScenario.onActivity(activity -> assertFalse(activity.hasVpnNetwork()));
+    }
+
+    @Test @SdkSuppress(minSdkVersion = Build.VERSION_CODES.R)
+    public void testHasVpnNetwork_connectedBeforeStartup() throws Exception {
+        // NetworkCapabilities builder was added in R
+        final Network vpnNetwork = new Network(TEST_NETID + 2);
+        configNonVpnNetwork();
+        doReturn(new Network[] { mNetwork, vpnNetwork }).when(sConnectivityManager)
+                .getAllNetworks();
+        doReturn(new NetworkCapabilities.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_VPN)
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build()).when(sConnectivityManager).getNetworkCapabilities(vpnNetwork);
+        initActivity(TEST_URL);
+        // Initialize intent capturing after launching the activity to avoid capturing extra
+        // intents.
+        Intents.init();
+
+        // The VPN is known as soon as the page is loaded, before any callback.
         mActivityScenario.onActivity(activity -> assertTrue(activity.hasVpnNetwork()));
+
+        // Test the VPN disconnecting.
+        getVpnNetworkCallback().onLost(vpnNetwork);
+        mActivityScenario.onActivity(activity -> assertFalse(activity.hasVpnNetwork()));
     }
 
     @Test
@@ -510,14 +663,22 @@ public class CaptivePortalLoginActivityTest {
         // intents.
         Intents.init();
 
+        // The state is cached, and only queried again when it may have changed.
         doReturn(false).when(sMockDevicePolicyManager).isAlwaysOnVpnLockdownEnabled(any());
+        refreshAlwaysOnVpnLockdown();
         mActivityScenario.onActivity(activity -> assertFalse(activity.isAlwaysOnVpnEnabled()));
 
+        // A device policy change refreshes the state in the background.
         doReturn(true).when(sMockDevicePolicyManager).isAlwaysOnVpnLockdownEnabled(any());
-        mActivityScenario.onActivity(activity -> assertTrue(activity.isAlwaysOnVpnEnabled()));
+        notifyDevicePolicyChanged();
+        assertTrue(isEventually(() -> isAlwaysOnVpnEnabled(), TEST_TIMEOUT_MS));
+
+        doReturn(false).when(sMockDevicePolicyManager).isAlwaysOnVpnLockdownEnabled(any());
+        notifyDevicePolicyChanged();
+        assertTrue(isEventually(() -> !isAlwaysOnVpnEnabled(), TEST_TIMEOUT_MS));
     }
 
-    private void runVpnMsgOrLinkToBrowser(boolean useVpnMatcher) {
+    private void runVpnMsgOrLinkToBrowser(boolean useVpnMatcher) throws Exception {
         initActivity(TEST_URL);
         // Initialize intent capturing after launching the activity to avoid capturing extra
         // intents.
@@ -526,22 +687,23 @@ public class CaptivePortalLoginActivityTest {
         // Test non-vpn case.
         configNonVpnNetwork();
         doReturn(false).when(sMockDevicePolicyManager).isAlwaysOnVpnLockdownEnabled(any());
+        notifyVpnConnected(false);
         final String linkMatcher = ".*<a[^>]+href.*";
         mActivityScenario.onActivity(act ->
                 assertTrue(act.getWebViewClient().getVpnMsgOrLinkToBrowser().matches(linkMatcher)));
 
         // Test has vpn case.
-        configVpnNetwork();
+        notifyVpnConnected(true);
         final String vpnMatcher = ".*<div.*vpnwarning.*";
         mActivityScenario.onActivity(act ->
                 assertTrue(act.getWebViewClient().getVpnMsgOrLinkToBrowser().matches(vpnMatcher)));
 
-        // Test always-on vpn case.
+        // Test always-on vpn case. The lockdown state is refreshed in the background.
         configNonVpnNetwork();
         doReturn(true).when(sMockDevicePolicyManager).isAlwaysOnVpnLockdownEnabled(any());
-        mActivityScenario.onActivity(act ->
-                assertTrue(act.getWebViewClient().getVpnMsgOrLinkToBrowser().matches(
-                        (useVpnMatcher ? vpnMatcher : linkMatcher))));
+        notifyVpnConnected(false);
+        assertTrue(isEventually(() -> getVpnMsgOrLinkToBrowser().matches(
+                (useVpnMatcher ? vpnMatcher : linkMatcher)), TEST_TIMEOUT_MS));
     }
 
     @Test @SdkSuppress(maxSdkVersion = Build.VERSION_CODES.Q)
@@ -561,6 +723,132 @@ public class CaptivePortalLoginActivityTest {
         runVpnMsgOrLinkToBrowser(true /* useVpnMatcher */);
     }
 
+    @Test
+    public void testErrorPageTemplateCache() throws Exception {
+        initActivity(TEST_URL);
+        // Initialize intent capturing after launching the activity to avoid capturing extra
+        // intents.
+        Intents.init();
+
+        mActivityScenario.onActivity(a -> {
+            final CaptivePortalLoginActivity.MyWebViewClient client = a.getWebViewClient();
+            final String page = client.makeSslErrorPage();
+            assertTrue(page.contains("cert_link"));
+            assertEquals(1, client.mErrorPageTemplates.size());
+            final CaptivePortalLoginActivity.ErrorPageTemplate template =
+                    client.mErrorPageTemplates.valueAt(0);
+
+            // Further errors reuse the template.
+            assertEquals(page, client.makeSslErrorPage());
+            assertSame(template, client.mErrorPageTemplates.valueAt(0));
+
+            // The template depends on the configuration, so it is built again when it changes.
+            a.onConfigurationChanged(a.getResources().getConfiguration());
+            assertEquals(0, client.mErrorPageTemplates.size());
+            assertEquals(page, client.makeSslErrorPage());
+            assertNotSame(template, client.mErrorPageTemplates.valueAt(0));
+        });
+    }
+
+    @Test
+    public void testInternalAssetServer() throws Exception {
+        final InternalAssetServer server = new InternalAssetServer(
+                getInstrumentation().getContext().getAssets());
+        final WebResourceResponse response =
+                server.serve(InternalAssetServer.PRELOADED_ASSETS[0]);
+        assertNotNull(response);
+        assertEquals("image/png", response.getMimeType());
+        assertEquals(200, response.getStatusCode());
+        assertEquals("max-age=31536000, immutable",
+                response.getResponseHeaders().get("Cache-Control"));
+        assertTrue(response.getData().available() > 0);
+
+        // Each response reads the contents from the start, with its own stream.
+        final WebResourceResponse secondResponse =
+                server.serve(InternalAssetServer.PRELOADED_ASSETS[0]);
+        assertNotSame(response.getData(), secondResponse.getData());
+        assertEquals(response.getData().available(), secondResponse.getData().available());
+
+        assertNull(server.serve("unknown_asset.png"));
+    }
+
+    private static String getProxyRuleUrl(ProxyConfig config) {
+        assertEquals(1, config.getProxyRules().size());
+        return config.getProxyRules().get(0).getUrl();
+    }
+
+    @Test
+    public void testMakeWebViewProxyConfig() throws Exception {
+        assertEquals(ProxyConfig.DIRECT,
+                getProxyRuleUrl(CaptivePortalLoginActivity.makeWebViewProxyConfig(null)));
+
+        final ProxyConfig ipv4Config = CaptivePortalLoginActivity.makeWebViewProxyConfig(
+                ProxyInfo.buildDirectProxy("192.0.2.1", 3128, List.of("example.com")));
+        assertEquals("192.0.2.1:3128", getProxyRuleUrl(ipv4Config));
+        assertEquals(List.of("example.com"), ipv4Config.getBypassRules());
+
+        assertEquals("proxy.example.com:8080", getProxyRuleUrl(
+                CaptivePortalLoginActivity.makeWebViewProxyConfig(
+                        ProxyInfo.buildDirectProxy("proxy.example.com", 8080))));
+
+        // IPv6 literals are bracketed, so that the port is not parsed as part of the address.
+        assertEquals("[2001:db8::1]:8080", getProxyRuleUrl(
+                CaptivePortalLoginActivity.makeWebViewProxyConfig(
+                        ProxyInfo.buildDirectProxy("2001:db8::1", 8080))));
+
+        // PAC proxies cannot be passed to WebView.
+        assertNull(CaptivePortalLoginActivity.makeWebViewProxyConfig(
+                ProxyInfo.buildPacProxy(Uri.parse("http://192.0.2.1/proxy.pac"))));
+    }
+
+    @Test
+    public void testWebViewProxy_overrideClearedBeforeFallback() throws Exception {
+        assumeTrue(WebViewFeature.isFeatureSupported(WebViewFeature.PROXY_OVERRIDE));
+        final HttpServer server = new HttpServer();
+        server.setResponseBody(TEST_URL_QUERY, "Test portal");
+        server.start();
+        sMockProxyController = mock(ProxyController.class);
+        doAnswer(inv -> {
+            inv.<Executor>getArgument(1).execute(inv.getArgument(2));
+            return null;
+        }).when(sMockProxyController).setProxyOverride(any(), any(), any());
+        // Clearing completes when the test runs the listener.
+        final LinkedBlockingQueue<Runnable> clearListeners = new LinkedBlockingQueue<>();
+        doAnswer(inv -> {
+            final Executor executor = inv.getArgument(0);
+            final Runnable listener = inv.getArgument(1);
+            clearListeners.add(() -> executor.execute(listener));
+            return null;
+        }).when(sMockProxyController).clearProxyOverride(any(), any());
+
+        // Without proxy, the portal is loaded with an override for direct connections.
+        doReturn(null).when(sConnectivityManager).getDefaultProxy();
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+        assertEquals(NanoHTTPD.Method.GET,
+                server.mRequestMethods.poll(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        verify(sMockProxyController).setProxyOverride(any(), any(), any());
+
+        // The override applies to the whole process, so is cleared when the activity is destroyed.
+        mActivityScenario.close();
+        final Runnable destroyClearListener =
+                clearListeners.poll(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(destroyClearListener);
+        destroyClearListener.run();
+
+        // PAC proxies use the fallback, which only loads the portal once the override is cleared.
+        doReturn(ProxyInfo.buildPacProxy(Uri.parse("http://192.0.2.1/proxy.pac")))
+                .when(sConnectivityManager).getDefaultProxy();
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+        final Runnable clearListener = clearListeners.poll(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(clearListener);
+        assertNull(server.mRequestMethods.poll(NO_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        clearListener.run();
+        assertEquals(NanoHTTPD.Method.GET,
+                server.mRequestMethods.poll(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        verify(sMockProxyController, times(1)).setProxyOverride(any(), any(), any());
+        server.stop();
+    }
+
     private void notifyCapabilitiesChanged(final NetworkCapabilities nc) {
         mActivityScenario.onActivity(a -> a.handleCapabilitiesChanged(mNetwork, nc));
         getInstrumentation().waitForIdleSync();
@@ -706,17 +994,68 @@ public class CaptivePortalLoginActivityTest {
     }
 
     @Test
-    public void testDownload() throws Exception {
+    public void testDownload_fileSelectedAfterServiceConnected() throws Exception {
+        // Hold the file chooser result until the download service is connected
+        final CompletableFuture<Void> activityResultGate = new CompletableFuture<>();
+        final HttpServer server = clickDownloadWithFilePicker(
+                a -> a.mActivityResultGate = activityResultGate);
+
+        // The download is started while the file chooser is open
+        verify(sDownloadServiceBinder, timeout(TEST_TIMEOUT_MS))
+                .requestDownloads(any(), any(), any());
+        final DownloadRequest request = verifyDownloadRequested();
+        assertDownloadRequest(server, request);
+        assertNull(request.mOutFile);
+
+        // The file is passed to the service once received
+        verify(sDownloadServiceBinder, never()).setDownloadDestination(anyInt(), any());
+        mActivityScenario.onActivity(a -> activityResultGate.complete(null));
+        verify(sDownloadServiceBinder, timeout(TEST_TIMEOUT_MS))
+                .setDownloadDestination(anyInt(), eq(TEST_DOWNLOAD_FILE));
+
+        server.stop();
+    }
+
+    @Test
+    public void testDownload_fileSelectedBeforeServiceConnected() throws Exception {
+        // Hold the download service connection until the file chooser result is received
+        final CompletableFuture<Void> serviceConnectGate = new CompletableFuture<>();
+        final HttpServer server = clickDownloadWithFilePicker(
+                a -> a.mDownloadServiceConnectGate = serviceConnectGate);
+        final CompletableFuture<Void> activityResultDelivered = new CompletableFuture<>();
+        mActivityScenario.onActivity(a ->
+                a.mActivityResultDelivered.thenRun(() -> activityResultDelivered.complete(null)));
+        activityResultDelivered.get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // The download is started with the received file once the service is connected
+        verify(sDownloadServiceBinder, never()).requestDownloads(any(), any(), any());
+        mActivityScenario.onActivity(a -> serviceConnectGate.complete(null));
+        verify(sDownloadServiceBinder, timeout(TEST_TIMEOUT_MS))
+                .requestDownloads(any(), any(), any());
+        final DownloadRequest request = verifyDownloadRequested();
+        assertDownloadRequest(server, request);
+        assertEquals(TEST_DOWNLOAD_FILE, request.mOutFile);
+        verify(sDownloadServiceBinder, never()).setDownloadDestination(anyInt(), any());
+
+        server.stop();
+    }
+
+    /**
+     * Click a download link on a test portal page, and verify that the user is asked to pick
+     * the file to download to. The file chooser returns {@link #TEST_DOWNLOAD_FILE}.
+     * @param beforeClick Called on the activity before clicking the link.
+     * @return The test server, to be stopped by the caller.
+     */
+    private HttpServer clickDownloadWithFilePicker(
+            Consumer<InstrumentedCaptivePortalLoginActivity> beforeClick) throws Exception {
         // Setup the server with a single link on the portal page, leading to a download
         final HttpServer server = new HttpServer();
         final String linkIdDownload = "download";
-        final String downloadQuery = "dl";
-        final String filename = "testfile.png";
-        final String mimetype = "image/png";
         server.setResponseBody(TEST_URL_QUERY,
-                "<a id='" + linkIdDownload + "' href='?" + downloadQuery + "'>Download</a>");
-        server.setResponse(downloadQuery, "This is a test file", mimetype, Collections.singletonMap(
-                "Content-Disposition", "attachment; filename=\"" + filename + "\""));
+                "<a id='" + linkIdDownload + "' href='?" + TEST_DOWNLOAD_QUERY + "'>Download</a>");
+        server.setResponse(TEST_DOWNLOAD_QUERY, "This is a test file", TEST_DOWNLOAD_MIMETYPE,
+                Collections.singletonMap("Content-Disposition",
+                        "attachment; filename=\"" + TEST_DOWNLOAD_FILENAME + "\""));
         server.start();
 
         ActivityScenario.launch(RequestDismissKeyguardActivity.class);
@@ -725,17 +1064,13 @@ public class CaptivePortalLoginActivityTest {
         // intents.
         Intents.init();
 
-        // Create a mock file to be returned when mocking the file chooser
-        final Intent mockFileResponse = new Intent();
-        final Uri mockFile = Uri.parse("content://mockdata");
-        mockFileResponse.setData(mockFile);
-
-        // Mock file chooser and DownloadService intents
+        // Mock the file chooser
         intending(hasAction(ACTION_CREATE_DOCUMENT)).respondWith(
-                new ActivityResult(RESULT_OK, mockFileResponse));
+                new ActivityResult(RESULT_OK, new Intent().setData(TEST_DOWNLOAD_FILE)));
         // No intent fired yet
         assertEquals(0, Intents.getIntents().size());
 
+        mActivityScenario.onActivity(beforeClick::accept);
         onWebView().withElement(findElement(Locator.ID, linkIdDownload))
                 .perform(webClick());
 
@@ -745,20 +1080,81 @@ public class CaptivePortalLoginActivityTest {
 
         final Intent fileIntent = Intents.getIntents().get(0);
         assertEquals(ACTION_CREATE_DOCUMENT, fileIntent.getAction());
-        assertEquals(mimetype, fileIntent.getType());
-        assertEquals(filename, fileIntent.getStringExtra(Intent.EXTRA_TITLE));
+        assertEquals(TEST_DOWNLOAD_MIMETYPE, fileIntent.getType());
+        assertEquals(TEST_DOWNLOAD_FILENAME, fileIntent.getStringExtra(Intent.EXTRA_TITLE));
+        return server;
+    }
 
-        // The download intent should be fired after the create file result is received
-        final CompletableFuture<Intent> dlIntentFuture = new CompletableFuture<>();
-        mActivityScenario.onActivity(a ->
-                a.mForegroundServiceStart.thenAccept(dlIntentFuture::complete));
+    private void assertDownloadRequest(HttpServer server, DownloadRequest request) {
+        assertEquals(server.makeUrl(TEST_DOWNLOAD_QUERY), request.mUrl);
+        assertEquals(TEST_DOWNLOAD_FILENAME, request.mFilename);
+        assertEquals(TEST_DOWNLOAD_MIMETYPE, request.mMimeType);
+    }
+
+    @Test
+    @FeatureFlag(name = CAPTIVE_PORTAL_DOWNLOAD_TO_MEDIASTORE, enabled = true)
+    public void testDownload_toMediaStore() throws Exception {
+        final DownloadRequest request = clickDownloadWithoutFilePicker("testfile.png",
+                "image/png");
+        assertTrue(request.mToMediaStore);
+        assertFalse(request.mInstallPackage);
+    }
+
+    @Test
+    @FeatureFlag(name = CAPTIVE_PORTAL_DOWNLOAD_APK_INSTALL, enabled = true)
+    public void testDownload_apkInstall() throws Exception {
+        final DownloadRequest request = clickDownloadWithoutFilePicker("testapp.apk",
+                "application/vnd.android.package-archive");
+        assertTrue(request.mInstallPackage);
+        // No copy of the package is kept
+        assertFalse(request.mToMediaStore);
+        assertNull(request.mOutFile);
+    }
+
+    /**
+     * Click a download link on a test portal page, and verify that the download is requested
+     * without asking the user to pick a file.
+     */
+    private DownloadRequest clickDownloadWithoutFilePicker(String filename, String mimetype)
+            throws Exception {
+        final HttpServer server = new HttpServer();
+        final String linkIdDownload = "download";
+        final String downloadQuery = "dl";
+        server.setResponseBody(TEST_URL_QUERY,
+                "<a id='" + linkIdDownload + "' href='?" + downloadQuery + "'>Download</a>");
+        server.setResponse(downloadQuery, "This is a test file", mimetype, Collections.singletonMap(
+                "Content-Disposition", "attachment; filename=\"" + filename + "\""));
+        server.start();
+
+        ActivityScenario.launch(RequestDismissKeyguardActivity.class);
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+        Intents.init();
 
-        final String expectedUrl = server.makeUrl(downloadQuery);
-        verify(sDownloadServiceBinder, times(1)).requestDownload(eq(mNetwork),
-                any() /* userAgent */, eq(expectedUrl), eq(filename),
-                eq(mockFile), any() /* context */, eq(mimetype));
+        onWebView().withElement(findElement(Locator.ID, linkIdDownload))
+                .perform(webClick());
+
+        verify(sDownloadServiceBinder, timeout(TEST_TIMEOUT_MS))
+                .requestDownloads(any(), any(), any());
+        final DownloadRequest request = verifyDownloadRequested();
+        assertEquals(server.makeUrl(downloadQuery), request.mUrl);
+        assertEquals(filename, request.mFilename);
+        assertEquals(mimetype, request.mMimeType);
+        assertEquals(0, Intents.getIntents().size());
 
         server.stop();
+        return request;
+    }
+
+    /**
+     * Verify that a single download was requested to the download service, and return it.
+     */
+    @SuppressWarnings("unchecked")
+    private DownloadRequest verifyDownloadRequested() {
+        final ArgumentCaptor<List<DownloadRequest>> captor = ArgumentCaptor.forClass(List.class);
+        verify(sDownloadServiceBinder, times(1)).requestDownloads(eq(mNetwork),
+                any() /* userAgent */, captor.capture());
+        assertEquals(1, captor.getValue().size());
+        return captor.getValue().get(0);
     }
 
     @Test
@@ -856,6 +1252,9 @@ public class CaptivePortalLoginActivityTest {
         private final ServerSocket mSocket;
         // Responses per URL query
         private final HashMap<String, MockResponse> mResponses = new HashMap<>();
+        // Methods of the requests received by the server
+        private final LinkedBlockingQueue<NanoHTTPD.Method> mRequestMethods =
+                new LinkedBlockingQueue<>();
 
         private static final class MockResponse {
             private final String mBody;
@@ -907,6 +1306,7 @@ public class CaptivePortalLoginActivityTest {
 
         @Override
         public Response serve(IHTTPSession session) {
+            mRequestMethods.add(session.getMethod());
             final MockResponse mockResponse = mResponses.get(session.getQueryParameterString());
             if (mockResponse == null) {
                 // Default response is a 404
@@ -925,6 +1325,351 @@ public class CaptivePortalLoginActivityTest {
         }
     }
 
+    /** Stand-in for the captive portal API (RFC 8908) of a network. */
+    private static class CaptivePortalApiServer extends NanoHTTPD {
+        private final ServerSocket mSocket;
+        private volatile String mJson;
+        private volatile String mETag;
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+
+        CaptivePortalApiServer() throws IOException {
+            this(new ServerSocket());
+        }
+
+        private CaptivePortalApiServer(ServerSocket socket) {
+            // 0 as port for picking a port automatically
+            super(TEST_PORTAL_HOSTNAME, 0);
+            mSocket = socket;
+        }
+
+        @Override
+        public ServerSocketFactory getServerSocketFactory() {
+            return () -> mSocket;
+        }
+
+        private String makeUrl() {
+            return "http://" + TEST_PORTAL_HOSTNAME + ":" + mSocket.getLocalPort() + "/api";
+        }
+
+        private void setState(String json, String etag) {
+            mJson = json;
+            mETag = etag;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            mRequestCount.incrementAndGet();
+            // NanoHTTPD lowercases header names
+            if (mETag.equals(session.getHeaders().get("if-none-match"))) {
+                return newFixedLengthResponse(Response.Status.NOT_MODIFIED,
+                        CaptivePortalApiClient.API_CONTENT_TYPE, "");
+            }
+            final Response response = newFixedLengthResponse(Response.Status.OK,
+                    CaptivePortalApiClient.API_CONTENT_TYPE, mJson);
+            response.addHeader("ETag", mETag);
+            return response;
+        }
+    }
+
+    @Test
+    public void testCaptivePortalApiClient() throws Exception {
+        final CaptivePortalApiServer server = new CaptivePortalApiServer();
+        server.setState("{\"captive\": true, "
+                + "\"user-portal-url\": \"https://portal.example.com/login\", "
+                + "\"seconds-remaining\": 300}", "\"v1\"");
+        server.start();
+        final CompletableFuture<Boolean> portalOpen = new CompletableFuture<>();
+        final CaptivePortalApiClient client = new CaptivePortalApiClient(mNetwork,
+                new URL(server.makeUrl()), TEST_USERAGENT, new Handler(Looper.getMainLooper()),
+                Runnable::run /* executor */, () -> portalOpen.complete(true));
+
+        final CaptivePortalApiClient.PortalState state =
+                client.fetch(CaptivePortalApiClient.DEFAULT_TIMEOUT_MS);
+        assertNotNull(state);
+        assertTrue(state.mCaptive);
+        assertEquals("https://portal.example.com/login", state.mUserPortalUrl);
+        assertEquals(300, state.mSecondsRemaining);
+        assertEquals(-1, state.mBytesRemaining);
+
+        // The state is fetched with a conditional request: unchanged states are not sent again.
+        assertSame(state, client.fetch(CaptivePortalApiClient.DEFAULT_TIMEOUT_MS));
+        assertEquals(1, client.getNotModifiedCount());
+        assertFalse(portalOpen.isDone());
+
+        server.setState("{\"captive\": false}", "\"v2\"");
+        client.requestRefresh();
+        assertTrue(portalOpen.get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(client.getState().mCaptive);
+        client.cancel();
+        server.stop();
+    }
+
+    /** Stand-in for the server answering the validation probes of a network. */
+    private static class ProbeServer extends NanoHTTPD {
+        private final ServerSocket mSocket;
+        private volatile boolean mValidated = true;
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        // Requests are only answered while this is open, so that probes can be kept in flight
+        private final ConditionVariable mResponseAllowed = new ConditionVariable(true);
+
+        ProbeServer() throws IOException {
+            this(new ServerSocket());
+        }
+
+        private ProbeServer(ServerSocket socket) {
+            // 0 as port for picking a port automatically
+            super(TEST_PORTAL_HOSTNAME, 0);
+            mSocket = socket;
+        }
+
+        @Override
+        public ServerSocketFactory getServerSocketFactory() {
+            return () -> mSocket;
+        }
+
+        private URL makeUrl() throws IOException {
+            return new URL("http://" + TEST_PORTAL_HOSTNAME + ":" + mSocket.getLocalPort()
+                    + "/generate_204");
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            mRequestCount.incrementAndGet();
+            // The response depends on the state of the network when the probe was received
+            final boolean validated = mValidated;
+            mResponseAllowed.block(TEST_TIMEOUT_MS);
+            if (validated) {
+                return newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "");
+            }
+            // Networks behind a portal redirect probes to the login page
+            final Response response = newFixedLengthResponse(Response.Status.REDIRECT,
+                    MIME_HTML, "");
+            response.addHeader("Location", "http://" + TEST_PORTAL_HOSTNAME + "/login");
+            return response;
+        }
+    }
+
+    private ValidationProber makeValidationProber(ProbeServer server,
+            CompletableFuture<Boolean> validated) throws IOException {
+        return new ValidationProber(mNetwork, server.makeUrl(), TEST_USERAGENT,
+                null /* probeSpec */, new Handler(Looper.getMainLooper()),
+                CaptivePortalLoginActivity.sBackgroundExecutor, () -> validated.complete(true));
+    }
+
+    @Test
+    public void testValidationProber() throws Exception {
+        final ProbeServer server = new ProbeServer();
+        server.start();
+        final CompletableFuture<Boolean> validated = new CompletableFuture<>();
+        final ValidationProber prober = makeValidationProber(server, validated);
+        try {
+            // A redirect means that the network is still behind the portal.
+            server.mValidated = false;
+            assertFalse(prober.probe());
+
+            server.mValidated = true;
+            assertTrue(prober.probe());
+
+            prober.requestProbe();
+            assertTrue(validated.get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(3, server.mRequestCount.get());
+        } finally {
+            prober.cancel();
+            NetworkConnectionPool.getInstance().evict(mNetwork);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testValidationProber_coalescesRequestsWhileInFlight() throws Exception {
+        final ProbeServer server = new ProbeServer();
+        server.mValidated = false;
+        server.mResponseAllowed.close();
+        server.start();
+        final CompletableFuture<Boolean> validated = new CompletableFuture<>();
+        final ValidationProber prober = makeValidationProber(server, validated);
+        try {
+            prober.requestProbe();
+            assertTrue(isEventually(() -> server.mRequestCount.get() == 1, TEST_TIMEOUT_MS));
+
+            // Requests made while a probe is in flight result in a single probe after it.
+            prober.requestProbe();
+            prober.requestProbe();
+            prober.requestProbe();
+            server.mValidated = true;
+            server.mResponseAllowed.open();
+            assertTrue(validated.get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(2, server.mRequestCount.get());
+        } finally {
+            prober.cancel();
+            NetworkConnectionPool.getInstance().evict(mNetwork);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testValidationProber_cancel() throws Exception {
+        final ProbeServer server = new ProbeServer();
+        server.start();
+        final CompletableFuture<Boolean> validated = new CompletableFuture<>();
+        final ValidationProber prober = makeValidationProber(server, validated);
+        try {
+            // A probe that has not been sent yet is dropped.
+            prober.requestProbe();
+            prober.cancel();
+            Thread.sleep(ValidationProber.PROBE_DELAY_MS * 2);
+            assertEquals(0, server.mRequestCount.get());
+
+            // Further requests are ignored.
+            prober.requestProbe();
+            Thread.sleep(ValidationProber.PROBE_DELAY_MS * 2);
+            assertEquals(0, server.mRequestCount.get());
+            assertFalse(validated.isDone());
+        } finally {
+            NetworkConnectionPool.getInstance().evict(mNetwork);
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testValidationProber_cancelWhileInFlight() throws Exception {
+        final ProbeServer server = new ProbeServer();
+        server.mResponseAllowed.close();
+        server.start();
+        final CompletableFuture<Boolean> validated = new CompletableFuture<>();
+        final ValidationProber prober = makeValidationProber(server, validated);
+        try {
+            prober.requestProbe();
+            assertTrue(isEventually(() -> server.mRequestCount.get() == 1, TEST_TIMEOUT_MS));
+
+            // The result of a probe completing after cancel() is ignored.
+            prober.cancel();
+            server.mResponseAllowed.open();
+            Thread.sleep(ValidationProber.PROBE_DELAY_MS * 2);
+            assertFalse(validated.isDone());
+        } finally {
+            NetworkConnectionPool.getInstance().evict(mNetwork);
+            server.stop();
+        }
+    }
+
+    private void setUpCaptivePortalApi(CaptivePortalApiServer server) {
+        final LinkProperties linkProperties = new LinkProperties();
+        linkProperties.setCaptivePortalApiUrl(Uri.parse(server.makeUrl()));
+        doReturn(linkProperties).when(sConnectivityManager).getLinkProperties(mNetwork);
+    }
+
+    @Test
+    @FeatureFlag(name = CAPTIVE_PORTAL_API_CLIENT, enabled = true)
+    public void testCaptivePortalApi_dismissedAtStartup() throws Exception {
+        sAllowCleartextCaptivePortalApi = true;
+        final CaptivePortalApiServer server = new CaptivePortalApiServer();
+        server.setState("{\"captive\": false}", "\"v1\"");
+        server.start();
+        setUpCaptivePortalApi(server);
+
+        final Context ctx = getInstrumentation().getContext();
+        mActivityScenario = ActivityScenario.launch(
+                new Intent(ctx, InstrumentedCaptivePortalLoginActivity.class)
+                        .setAction(ACTION_CAPTIVE_PORTAL_SIGN_IN)
+                        .putExtra(EXTRA_CAPTIVE_PORTAL_URL, TEST_URL)
+                        .putExtra(EXTRA_NETWORK, mNetwork)
+                        .putExtra(EXTRA_CAPTIVE_PORTAL_USER_AGENT, TEST_USERAGENT)
+                        .putExtra(EXTRA_CAPTIVE_PORTAL, new MockCaptivePortal()));
+        // The API reports that the network is not captive: the activity exits without
+        // showing the portal.
+        waitForDestroyedState();
+        assertEquals(DESTROYED, mActivityScenario.getState());
+        assertTrue(server.mRequestCount.get() > 0);
+        server.stop();
+    }
+
+    @Test
+    @FeatureFlag(name = CAPTIVE_PORTAL_API_CLIENT, enabled = true)
+    public void testCaptivePortalApi_loadsUserPortalUrl() throws Exception {
+        sAllowCleartextCaptivePortalApi = true;
+        final HttpServer server = new HttpServer();
+        server.setResponseBody(TEST_URL_QUERY, "<p id='probe_page'>Probe redirect</p>");
+        server.setResponseBody("userportal", "<p id='user_portal_page'>Login page</p>");
+        server.start();
+        final CaptivePortalApiServer apiServer = new CaptivePortalApiServer();
+        apiServer.setState("{\"captive\": true, \"user-portal-url\": "
+                + JSONObject.quote(server.makeUrl("userportal")) + "}", "\"v1\"");
+        apiServer.start();
+        setUpCaptivePortalApi(apiServer);
+
+        initActivity(server.makeUrl(TEST_URL_QUERY));
+        // The login page reported by the API is loaded instead of the portal URL of the probe
+        onWebView().withElement(findElement(Locator.ID, "user_portal_page"));
+        verifyNotDone();
+
+        apiServer.stop();
+        server.stop();
+    }
+
+    @Test
+    @FeatureFlag(name = CAPTIVE_PORTAL_API_CLIENT, enabled = true)
+    public void testCaptivePortalApi_cleartextIgnored() throws Exception {
+        final CaptivePortalApiServer server = new CaptivePortalApiServer();
+        server.setState("{\"captive\": false}", "\"v1\"");
+        server.start();
+        setUpCaptivePortalApi(server);
+
+        initActivity(TEST_URL);
+        // RFC 8908 requires the API to be served over HTTPS: it is not used.
+        verifyNotDone();
+        assertEquals(0, server.mRequestCount.get());
+        server.stop();
+    }
+
+    @Test
+    public void testGetSessionExpiry() {
+        // The session expiry is only known once the API reports that the network is open
+        final CaptivePortalApiClient.PortalState captive = new CaptivePortalApiClient.PortalState(
+                true /* captive */, null /* userPortalUrl */, 600 /* secondsRemaining */,
+                -1 /* bytesRemaining */, 1000L /* receivedTimeMs */);
+        assertEquals(-1L, ReloginPrewarm.getSessionExpiryElapsedMs(captive, null));
+
+        final CaptivePortalApiClient.PortalState open = new CaptivePortalApiClient.PortalState(
+                false /* captive */, null /* userPortalUrl */, 600 /* secondsRemaining */,
+                -1 /* bytesRemaining */, 1000L /* receivedTimeMs */);
+        assertEquals(601_000L, ReloginPrewarm.getSessionExpiryElapsedMs(open, null));
+    }
+
+    @Test
+    public void testReloginPrewarm() throws Exception {
+        final Context context = getInstrumentation().getContext();
+        final HttpServer server = new HttpServer();
+        server.setResponseBody(TEST_URL_QUERY, "Portal");
+        server.start();
+        final NetworkConnectionPool pool = NetworkConnectionPool.getInstance();
+        final int reusedBefore = pool.getReusedCount();
+        final URL probeUrl = new URL(TEST_URL);
+        try {
+            // Nothing is prewarmed without a previous login on the network
+            ReloginPrewarm.prewarm(context, mNetwork, probeUrl);
+            assertNull(server.mRequestMethods.poll(NO_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            ReloginPrewarm.recordLogin(context, mNetwork, new URL(server.makeUrl(TEST_URL_QUERY)));
+            // The portal host is prewarmed separately if the activity loads it first
+            ReloginPrewarm.prewarm(context, mNetwork, new URL(server.makeUrl("")));
+            assertNull(server.mRequestMethods.poll(NO_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // When the activity starts with a URL redirecting to the portal, the portal is
+            // connected to with a request that does not transfer the page
+            ReloginPrewarm.prewarm(context, mNetwork, probeUrl);
+            assertEquals(NanoHTTPD.Method.HEAD, server.mRequestMethods.poll(TEST_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS));
+            // The warm connection is available to load the portal after the redirect
+            pool.acquire(mNetwork.getPrivateDnsBypassingCopy());
+            assertEquals(reusedBefore + 1, pool.getReusedCount());
+        } finally {
+            pool.evict(mNetwork);
+            context.deleteSharedPreferences(ReloginPrewarm.PREFS_NAME);
+            server.stop();
+        }
+    }
+
     private HttpServer prepareTestDirectlyOpen(String linkIdDownload, String downloadQuery,
             String filename, String mimetype) throws Exception {
         // Setup the server with a single link on the portal page, leading to a download
@@ -976,6 +1721,12 @@ public class CaptivePortalLoginActivityTest {
         return messageFuture;
     }
 
+    private void waitForDirectlyOpenCleanup() throws Exception {
+        final AtomicReference<CompletableFuture<Void>> cleanup = new AtomicReference<>();
+        mActivityScenario.onActivity(a -> cleanup.set(a.mDirectlyOpenCleanup));
+        cleanup.get().get(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
     @Test
     public void testDirectlyOpen_onCreateDeleteFile() throws Exception {
         final String linkIdDownload = "download";
@@ -985,6 +1736,7 @@ public class CaptivePortalLoginActivityTest {
         final File downloadPath = new File(getInstrumentation().getContext().getFilesDir(),
                 CaptivePortalLoginActivity.FILE_PROVIDER_DOWNLOAD_PATH);
 
+        waitForDirectlyOpenCleanup();
         assertNull(downloadPath.listFiles());
 
         onWebView().withElement(findElement(Locator.ID, linkIdDownload)).perform(webClick());
@@ -994,7 +1746,8 @@ public class CaptivePortalLoginActivityTest {
         assertNotNull(downloadPath.listFiles());
 
         mActivityScenario.recreate();
-        // OnCreate should clean the previous created files.
+        // OnCreate should clean the previous created files in the background.
+        waitForDirectlyOpenCleanup();
         assertNull(downloadPath.listFiles());
         server.stop();
     }
@@ -1049,23 +1802,53 @@ public class CaptivePortalLoginActivityTest {
         final UiObject spinner = getUiSpinner();
         // Verify no spinner first.
         assertFalse(spinner.exists());
-        doReturn(requestId).when(sDownloadServiceBinder)
-                .requestDownload(any(), any(), any(), any(), any(), any(), eq(mimeType));
+        doReturn(new int[] { requestId }).when(sDownloadServiceBinder)
+                .requestDownloads(any(), any(), any());
         onWebView().withElement(findElement(Locator.ID, linkIdDownload)).perform(webClick());
         // Expect to see the spinner
         assertTrue(spinner.waitForExists(TEST_TIMEOUT_MS));
-        final ArgumentCaptor<Uri> outfileCaptor = ArgumentCaptor.forClass(Uri.class);
-        verify(sDownloadServiceBinder).requestDownload(any(), any(),
-                eq(server.makeUrl(downloadQuery)),
-                eq(filename),
-                outfileCaptor.capture(), any(), eq(mimeType));
+        final DownloadRequest request = verifyDownloadRequested();
+        assertEquals(server.makeUrl(downloadQuery), request.mUrl);
+        assertEquals(filename, request.mFilename);
+        assertEquals(mimeType, request.mMimeType);
 
         // Cancel pending task.
         mActivityScenario.onActivity(a -> a.cancelPendingTask());
         verify(sDownloadServiceBinder).cancelTask(anyInt());
         // Callback with target task should hide the spinner.
         mActivityScenario.onActivity(a -> a.mProgressCallback.onDownloadComplete(
-                outfileCaptor.getValue(), mimeType, requestId, false));
+                request.mOutFile, mimeType, requestId, false));
+        assertTrue(spinner.waitUntilGone(TEST_TIMEOUT_MS));
+
+        server.stop();
+    }
+
+    @Test
+    public void testDirectlyOpen_concurrentTasks() throws Exception {
+        final String linkIdDownload = "download";
+        final String mimeType = TEST_WIFI_CONFIG_TYPE;
+        final Uri mockFile = Uri.parse("content://mockdata");
+        final int downloadId1 = 123;
+        final int downloadId2 = 124;
+        final HttpServer server = prepareTestDirectlyOpen(linkIdDownload, "dl",
+                "test.wificonfig", mimeType);
+        doReturn(new int[] { downloadId1 }, new int[] { downloadId2 })
+                .when(sDownloadServiceBinder).requestDownloads(any(), any(), any());
+
+        final UiObject spinner = getUiSpinner();
+        // The second directly open download is not rejected while the first one is in progress
+        onWebView().withElement(findElement(Locator.ID, linkIdDownload)).perform(webClick());
+        assertTrue(spinner.waitForExists(TEST_TIMEOUT_MS));
+        onWebView().withElement(findElement(Locator.ID, linkIdDownload)).perform(webClick());
+        verify(sDownloadServiceBinder, timeout(TEST_TIMEOUT_MS).times(2))
+                .requestDownloads(any(), any(), any());
+
+        // The spinner is shown until both tasks are completed
+        mActivityScenario.onActivity(a -> a.mProgressCallback.onDownloadComplete(
+                mockFile, mimeType, downloadId2, false));
+        assertTrue(spinner.exists());
+        mActivityScenario.onActivity(a -> a.mProgressCallback.onDownloadComplete(
+                mockFile, mimeType, downloadId1, false));
         assertTrue(spinner.waitUntilGone(TEST_TIMEOUT_MS));
 
         server.stop();
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.content.Intent
+import android.net.ConnectivityManager
+import android.net.ConnectivityManager.NetworkCallback
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.TRANSPORT_VPN
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.Uri
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.filters.SmallTest
+import androidx.test.platform.app.InstrumentationRegistry.getInstrumentation
+import com.android.captiveportallogin.DefaultNetworkBrowserLauncher.DEFAULT_NETWORK_TIMEOUT_MS
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.verify
+
+private const val TEST_TIMEOUT_MS = 10_000L
+private const val TEST_NETID = 1234
+private const val TEST_URL = "http://portal.example.com/"
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DefaultNetworkBrowserLauncherTest {
+    private val cm = mock(ConnectivityManager::class.java)
+    private val portalNetwork = Network(TEST_NETID)
+    private val otherNetwork = Network(TEST_NETID + 1)
+    private val vpnNetwork = Network(TEST_NETID + 2)
+    private val intent = Intent(Intent.ACTION_VIEW, Uri.parse(TEST_URL))
+    private val launchedIntents = LinkedBlockingQueue<Intent>()
+
+    /**
+     * Start the launcher on the main thread, with a default network callback that is fired with
+     * the specified network when registered if it is not null, as when a network is default.
+     * @return the registered default network callback.
+     */
+    private fun launchWhenDefault(
+        defaultNetwork: Network? = null,
+        defaultCaps: NetworkCapabilities? = null
+    ): NetworkCallback {
+        val callbacks = LinkedBlockingQueue<NetworkCallback>()
+        doAnswer {
+            val callback = it.getArgument<NetworkCallback>(0)
+            callbacks.add(callback)
+            if (defaultNetwork != null) {
+                it.getArgument<Handler>(1).post {
+                    callback.onCapabilitiesChanged(defaultNetwork, defaultCaps!!)
+                }
+            }
+            null
+        }.`when`(cm).registerDefaultNetworkCallback(any(), any())
+        getInstrumentation().runOnMainSync {
+            DefaultNetworkBrowserLauncher.launchWhenDefault(cm, portalNetwork, intent) {
+                // Launches on other threads are not recorded, so tests time out waiting for them.
+                if (Looper.myLooper() == Looper.getMainLooper()) launchedIntents.add(it)
+            }
+        }
+        return assertNotNull(callbacks.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+    }
+
+    private fun makeCapabilities(transport: Int, underlyingNetworks: List<Network>? = null) =
+            NetworkCapabilities.Builder()
+                    .addTransportType(transport)
+                    .setUnderlyingNetworks(underlyingNetworks)
+                    .build()
+
+    /** Verify that the launched browser is not launched again, and the callback unregistered. */
+    private fun assertNotLaunchedAgain(callback: NetworkCallback) {
+        verify(cm).unregisterNetworkCallback(callback)
+        // The timeout does not launch the browser again.
+        assertNull(launchedIntents.poll(DEFAULT_NETWORK_TIMEOUT_MS * 2, MILLISECONDS))
+    }
+
+    @Test
+    fun testLaunchWhenDefault_alreadyDefault() {
+        val startTimeMs = SystemClock.elapsedRealtime()
+        val callback = launchWhenDefault(portalNetwork, makeCapabilities(TRANSPORT_WIFI))
+        assertSame(intent, launchedIntents.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+        // The browser is launched as soon as the callback fires, without waiting for the timeout.
+        assertTrue(SystemClock.elapsedRealtime() - startTimeMs < DEFAULT_NETWORK_TIMEOUT_MS)
+        assertNotLaunchedAgain(callback)
+    }
+
+    @Test @SdkSuppress(minSdkVersion = Build.VERSION_CODES.S)
+    fun testLaunchWhenDefault_waitsForVpnOverPortalNetwork() {
+        val callback = launchWhenDefault()
+        getInstrumentation().runOnMainSync {
+            // A VPN over another network is not enough: the browser would not reach the portal.
+            callback.onCapabilitiesChanged(vpnNetwork,
+                    makeCapabilities(TRANSPORT_VPN, listOf(otherNetwork)))
+            assertEquals(0, launchedIntents.size)
+
+            callback.onCapabilitiesChanged(vpnNetwork,
+                    makeCapabilities(TRANSPORT_VPN, listOf(portalNetwork)))
+            assertEquals(1, launchedIntents.size)
+        }
+        assertSame(intent, launchedIntents.poll())
+        assertNotLaunchedAgain(callback)
+    }
+
+    @Test
+    fun testLaunchWhenDefault_timeout() {
+        val startTimeMs = SystemClock.elapsedRealtime()
+        val callback = launchWhenDefault(otherNetwork, makeCapabilities(TRANSPORT_WIFI))
+        assertSame(intent, launchedIntents.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+        // The browser is launched anyway once the timeout expires.
+        assertTrue(SystemClock.elapsedRealtime() - startTimeMs >= DEFAULT_NETWORK_TIMEOUT_MS)
+        assertNotLaunchedAgain(callback)
+    }
+}
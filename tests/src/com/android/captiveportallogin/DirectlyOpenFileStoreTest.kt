@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import androidx.test.platform.app.InstrumentationRegistry.getInstrumentation
+import com.android.captiveportallogin.CaptivePortalLoginActivity.FILE_PROVIDER_DOWNLOAD_PATH
+import java.io.File
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TEST_TIMEOUT_MS = 10_000L
+// Large enough for any cleanup pass of the tests to complete
+private const val LARGE_TIME_BUDGET_MS = 60_000L
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DirectlyOpenFileStoreTest {
+    private val directExecutor = Executor { it.run() }
+    private lateinit var filesDir: File
+    private lateinit var downloadDir: File
+
+    @Before
+    fun setUp() {
+        filesDir = File(getInstrumentation().context.cacheDir, "directly_open_store_test")
+        filesDir.deleteRecursively()
+        downloadDir = File(filesDir, FILE_PROVIDER_DOWNLOAD_PATH)
+    }
+
+    @After
+    fun tearDown() {
+        filesDir.deleteRecursively()
+    }
+
+    private fun makeStore(timeBudgetMs: Long = LARGE_TIME_BUDGET_MS) =
+            DirectlyOpenFileStore(filesDir, directExecutor, timeBudgetMs)
+
+    private fun DirectlyOpenFileStore.createFile(session: String, requestId: Int) =
+            File(createDownloadDirectory(session, requestId), "test.file").also {
+                assertTrue(it.createNewFile())
+            }
+
+    @Test
+    fun testOpenSession_deletesFilesOfPreviousSessions() {
+        val previousStore = makeStore()
+        previousStore.openSession("previous").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        val previousFile = previousStore.createFile("previous", 1)
+
+        // A new process reads the sessions to delete from the index.
+        val store = makeStore()
+        store.openSession("current").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        assertFalse(previousFile.exists())
+        assertFalse(File(downloadDir, "previous").exists())
+
+        val currentFile = store.createFile("current", 1)
+        assertTrue(currentFile.exists())
+    }
+
+    @Test
+    fun testCleanUp_keepsFilesOfOpenSessions() {
+        val store = makeStore()
+        store.openSession("first").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        store.openSession("second").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        val firstFile = store.createFile("first", 1)
+        val secondFile = store.createFile("second", 1)
+
+        // Opening a session does not delete the files of other sessions open in the process.
+        store.openSession("third").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        assertTrue(firstFile.exists())
+        assertTrue(secondFile.exists())
+
+        store.closeSession("first")
+        assertTrue(store.cleanUp())
+        assertFalse(firstFile.exists())
+        assertTrue(secondFile.exists())
+    }
+
+    @Test
+    fun testCleanUp_timeBudget() {
+        val previousStore = makeStore()
+        previousStore.openSession("previous").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        val previousFile = previousStore.createFile("previous", 1)
+
+        // Nothing can be deleted without time budget: the session stays in the index.
+        assertFalse(makeStore(timeBudgetMs = 0L).cleanUp())
+        assertTrue(previousFile.exists())
+
+        assertTrue(makeStore().cleanUp())
+        assertFalse(previousFile.exists())
+        assertFalse(downloadDir.exists())
+    }
+
+    @Test
+    fun testCleanUp_withoutIndex() {
+        // Files downloaded by versions that did not record them are all considered stale.
+        val leftover = File(downloadDir, "leftover")
+        assertTrue(leftover.mkdirs())
+        assertTrue(makeStore().cleanUp())
+        assertFalse(leftover.exists())
+
+        // Once there is an index, directories that it does not contain are not walked.
+        val store = makeStore()
+        store.openSession("recorded").get(TEST_TIMEOUT_MS, MILLISECONDS)
+        store.createFile("recorded", 1)
+        val unrecorded = File(downloadDir, "unrecorded")
+        assertTrue(unrecorded.mkdirs())
+        store.closeSession("recorded")
+        assertTrue(makeStore().cleanUp())
+        assertFalse(File(downloadDir, "recorded").exists())
+        assertTrue(unrecorded.exists())
+    }
+}
@@ -17,16 +17,25 @@
 package com.android.captiveportallogin
 
 import android.app.Activity
+import android.app.Notification
+import android.app.NotificationManager
+import android.app.PendingIntent
 import android.content.ComponentName
+import android.content.ContentProvider
+import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
 import android.content.ServiceConnection
+import android.content.pm.PackageInstaller
 import android.content.res.Configuration
+import android.database.Cursor
 import android.net.Network
 import android.net.Uri
 import android.os.Bundle
 import android.os.IBinder
+import android.os.Looper
 import android.os.Parcel
+import android.os.ParcelFileDescriptor
 import android.os.Parcelable
 import android.os.SystemClock
 import android.util.Log
@@ -43,7 +52,10 @@ import androidx.test.uiautomator.UiObject
 import androidx.test.uiautomator.UiScrollable
 import androidx.test.uiautomator.UiSelector
 import androidx.test.uiautomator.Until
+import com.android.captiveportallogin.DownloadService.BLOB_CHUNK_ABORTED
+import com.android.captiveportallogin.DownloadService.BLOB_CHUNK_WRITTEN
 import com.android.captiveportallogin.DownloadService.DOWNLOAD_ABORTED_REASON_FILE_TOO_LARGE
+import com.android.captiveportallogin.DownloadService.DownloadRequest
 import com.android.captiveportallogin.DownloadService.DownloadServiceBinder
 import com.android.captiveportallogin.DownloadService.ProgressCallback
 import java.io.ByteArrayInputStream
@@ -55,7 +67,11 @@ import java.net.HttpURLConnection
 import java.net.URL
 import java.net.URLConnection
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.BlockingQueue
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.TimeUnit.MILLISECONDS
 import kotlin.math.min
@@ -66,6 +82,7 @@ import kotlin.test.assertNotEquals
 import kotlin.test.assertTrue
 import kotlin.test.fail
 import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
 import org.junit.Assume.assumeFalse
 import org.junit.Before
 import org.junit.Rule
@@ -73,8 +90,11 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.mockito.Mockito.doReturn
 import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
 import org.mockito.Mockito.timeout
+import org.mockito.Mockito.times
 import org.mockito.Mockito.verify
+import org.mockito.Mockito.verifyNoMoreInteractions
 
 private val TEST_FILESIZE = 1_000_000 // 1MB
 private val TEST_USERAGENT = "Test UserAgent"
@@ -105,6 +125,18 @@ private val NOTIFICATION_SCROLL_POLL_MS = 100L
 
 private val TEST_WIFI_CONFIG_TYPE = "application/x-wifi-config"
 
+// Destination of downloads that the test reads through a pipe, registered in the test manifest
+private val PIPE_DESTINATION_URI =
+        Uri.parse("content://com.android.captiveportallogin.tests.pipeprovider/destination")
+// Amount of data read from a pipe destination at once, and delay between reads. Reading slowly
+// keeps the download publishing for long enough for the test to act while it does.
+private val PIPE_READ_SIZE = 8192
+private val PIPE_READ_DELAY_MS = 20L
+
+// Number of tasks to enqueue at once, and maximum time it should take
+private val MANY_TASKS_COUNT = 1000
+private val MANY_TASKS_MAX_ENQUEUE_TIME_MS = 1000L
+
 private val TAG = DownloadServiceTest::class.simpleName
 
 private val random = Random(SystemClock.elapsedRealtimeNanos())
@@ -121,6 +153,10 @@ class DownloadServiceTest {
     private val resources by lazy { context.resources }
     private val device by lazy { UiDevice.getInstance(getInstrumentation()) }
 
+    // DownloadService only keeps weak references to callbacks: keep them referenced for the
+    // duration of the test.
+    private val callbacks = CopyOnWriteArrayList<ProgressCallback>()
+
     // Test network that can be parceled in intents while mocking the connection
     class TestNetwork(private val privateDnsBypass: Boolean = false) :
         Network(43, privateDnsBypass) {
@@ -176,6 +212,20 @@ class DownloadServiceTest {
         private var position = 0
 
         private val nextAvailableQueue = SynchronousQueue<Int>()
+        private val closedLatch = CountDownLatch(1)
+
+        /**
+         * Wait until the stream is closed, which DownloadService does once the download is
+         * completed, to keep the connection alive.
+         */
+        fun awaitClosed() {
+            assertTrue(closedLatch.await(TEST_TIMEOUT_MS, MILLISECONDS),
+                    "Timed out waiting for TestInputStream to be closed")
+        }
+
+        override fun close() {
+            closedLatch.countDown()
+        }
 
         /**
          * Set how many bytes are available now without blocking.
@@ -324,7 +374,7 @@ class DownloadServiceTest {
 
         // Allow the first download to finish
         inputStream1.setAvailable(TEST_FILESIZE)
-        verify(connection, timeout(TEST_TIMEOUT_MS)).disconnect()
+        inputStream1.awaitClosed()
 
         FileInputStream(testFile1).use {
             assertSameContents(it, TestInputStream(TEST_FILESIZE))
@@ -341,7 +391,7 @@ class DownloadServiceTest {
 
         // Allow the second download to finish
         inputStream2.setAvailable(TEST_FILESIZE)
-        verify(connection, timeout(TEST_TIMEOUT_MS).times(2)).disconnect()
+        inputStream2.awaitClosed()
 
         FileInputStream(testFile2).use {
             assertSameContents(it, TestInputStream(TEST_FILESIZE))
@@ -354,7 +404,11 @@ class DownloadServiceTest {
         directlyOpenCompleteFuture: CompletableFuture<Boolean> = CompletableFuture<Boolean>(),
         downloadCompleteFuture: CompletableFuture<Boolean> = CompletableFuture<Boolean>(),
         downloadAbortedFuture: CompletableFuture<Boolean> = CompletableFuture<Boolean>(),
-        expectReason: Int = -1
+        expectReason: Int = -1,
+        progressUpdates: MutableList<ProgressUpdate>? = null,
+        successLatch: CountDownLatch? = null,
+        completedIds: BlockingQueue<Int>? = null,
+        saveProgressIds: BlockingQueue<Int>? = null
     ): ServiceConnection {
         // Test callback to receive download completed callback.
         return object : ServiceConnection {
@@ -372,15 +426,115 @@ class DownloadServiceTest {
                         } else {
                             downloadCompleteFuture.complete(success)
                         }
+                        if (success) successLatch?.countDown()
+                        if (success) completedIds?.add(downloadId)
                     }
 
                     override fun onDownloadAborted(downloadId: Int, reason: Int) {
                         if (expectReason == reason) downloadAbortedFuture.complete(true)
                     }
+
+                    override fun onDownloadSaveProgress(
+                        downloadId: Int,
+                        bytesSaved: Long,
+                        totalBytes: Long
+                    ) {
+                        saveProgressIds?.add(downloadId)
+                    }
+
+                    override fun onDownloadProgress(
+                        downloadId: Int,
+                        bytesRead: Long,
+                        contentLength: Long,
+                        bytesPerSecond: Long
+                    ) {
+                        progressUpdates?.add(ProgressUpdate(
+                            downloadId,
+                            Looper.myLooper() == Looper.getMainLooper(),
+                            bytesRead,
+                            contentLength
+                        ))
+                    }
                 }
 
-                (binder as DownloadServiceBinder).setProgressCallback(callback)
+                callbacks.add(callback)
+                (binder as DownloadServiceBinder).registerProgressCallback(
+                    context.mainExecutor,
+                    callback
+                )
+            }
+        }
+    }
+
+    data class ProgressUpdate(
+        val downloadId: Int,
+        val onMainThread: Boolean,
+        val bytesRead: Long,
+        val contentLength: Long
+    )
+
+    @Test
+    fun testDownloadProgressCallback() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+        val progressUpdates = CopyOnWriteArrayList<ProgressUpdate>()
+        val testServiceConn = makeDownloadCompleteCallback(
+                downloadCompleteFuture = downloadCompleteFuture,
+                progressUpdates = progressUpdates
+        )
+
+        try {
+            val binder = bindService(testServiceConn)
+            startDownloadTask(binder, testFile, TEST_TEXT_FILE_TYPE)
+            // Make data available in many small steps, each resulting in multiple reads
+            val steps = 100
+            for (i in 1..steps) {
+                inputStream.setAvailable(TEST_FILESIZE / steps * i)
             }
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            // The final progress update is posted to the main thread before completion
+            getInstrumentation().waitForIdleSync()
+
+            assertTrue(progressUpdates.isNotEmpty(), "No progress update received")
+            assertTrue(progressUpdates.all { it.onMainThread },
+                    "Progress updates must be delivered on the main thread")
+            assertTrue(progressUpdates.all { it.contentLength == TEST_FILESIZE.toLong() })
+            // Updates are coalesced: there must be fewer updates than data steps
+            assertTrue(progressUpdates.size < steps,
+                    "Progress updates were not coalesced: ${progressUpdates.size} updates")
+            assertEquals(TEST_FILESIZE.toLong(), progressUpdates.last().bytesRead)
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testSlowProgressCallbackDoesNotStallDownload() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+        val testServiceConn = makeDownloadCompleteCallback(
+                downloadCompleteFuture = downloadCompleteFuture
+        )
+        // A callback whose executor never runs anything, simulating a stuck listener
+        val stuckCallback = mock(ProgressCallback::class.java)
+        callbacks.add(stuckCallback)
+
+        try {
+            val binder = bindService(testServiceConn)
+            binder.registerProgressCallback({ _ -> }, stuckCallback)
+            startDownloadTask(binder, testFile, TEST_TEXT_FILE_TYPE)
+            inputStream.setAvailable(TEST_FILESIZE)
+            // The other callback is still notified, and the stuck one is never called
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            verifyNoMoreInteractions(stuckCallback)
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
         }
     }
 
@@ -427,9 +581,12 @@ class DownloadServiceTest {
             val binder = bindService(testServiceConn)
             // Start directly open task first then follow with a generic one
             val directlydlId = startDownloadTask(binder, outCfgFile, TEST_WIFI_CONFIG_TYPE)
+            inputStream1.setAvailable(TEST_FILESIZE / 100)
+            // Directly open tasks run concurrently with other downloads: only start the generic
+            // one once the directly open task is reading its own stream.
+            doReturn(TestInputStream(TEST_FILESIZE)).`when`(connection).inputStream
             startDownloadTask(binder, outTextFile, TEST_TEXT_FILE_TYPE)
 
-            inputStream1.setAvailable(TEST_FILESIZE / 100)
             // Cancel directly open task. The directly open task should result in a failed download
             // complete. The cancel intent should not affect the other download task.
             binder.cancelTask(directlydlId)
@@ -441,6 +598,37 @@ class DownloadServiceTest {
         }
     }
 
+    @Test
+    fun testDirectlyOpenMimeType_concurrentTasks() {
+        val directlyOpenSize = 1000
+        val inputStream1 = TestInputStream()
+        val inputStream2 = TestInputStream()
+        doReturn(inputStream1, inputStream2).`when`(connection).inputStream
+        doReturn(directlyOpenSize.toLong()).`when`(connection).contentLengthLong
+        val outCfgFile1 = createTestDirectlyOpenFile()
+        val outCfgFile2 = createTestDirectlyOpenFile()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback())
+            startDownloadTask(binder, outCfgFile1, TEST_WIFI_CONFIG_TYPE)
+            startDownloadTask(binder, outCfgFile2, TEST_WIFI_CONFIG_TYPE)
+
+            // Both tasks start before any data is available, so neither waits for the other
+            verify(connection, timeout(TEST_TIMEOUT_MS).times(2)).inputStream
+            inputStream2.setAvailable(directlyOpenSize)
+            inputStream1.setAvailable(directlyOpenSize)
+
+            inputStream1.awaitClosed()
+            inputStream2.awaitClosed()
+            assertEquals(directlyOpenSize.toLong(), outCfgFile1.length())
+            assertEquals(directlyOpenSize.toLong(), outCfgFile2.length())
+        } finally {
+            mServiceRule.unbindService()
+            outCfgFile1.delete()
+            outCfgFile2.delete()
+        }
+    }
+
     private fun createTestDirectlyOpenFile() = createTestFile(extension = ".wificonfig")
 
     private fun bindService(serviceConn: ServiceConnection): DownloadServiceBinder {
@@ -453,22 +641,590 @@ class DownloadServiceTest {
         return binder
     }
 
+    /**
+     * Make a test download URL that was not used before, so the download is not served from the
+     * cache of DownloadService.
+     */
+    private fun makeUniqueTestUrl() = "$TEST_URL?id=${random.nextLong()}"
+
     private fun startDownloadTask(
         binder: DownloadServiceBinder,
         file: File,
-        mimeType: String
+        mimeType: String,
+        url: String = makeUniqueTestUrl()
     ): Int {
         return binder.requestDownload(
                 TestNetwork(),
                 TEST_USERAGENT,
-                TEST_URL,
+                url,
                 file.name,
                 makeFileUri(file),
-                context,
                mimeType
         )
     }
 
+    @Test
+    fun testRequestDownloads() {
+        val contents1 = "Test file contents 1"
+        val contents2 = "Test file contents 2"
+        doReturn(ByteArrayInputStream(contents1.toByteArray(StandardCharsets.UTF_8)),
+                ByteArrayInputStream(contents2.toByteArray(StandardCharsets.UTF_8)))
+                .`when`(connection).inputStream
+        doReturn(-1L).`when`(connection).contentLengthLong
+        val testFile1 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val testFile2 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+
+        val completedLatch = CountDownLatch(2)
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(successLatch = completedLatch))
+            val ids = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest(makeUniqueTestUrl(), testFile1.name, TEST_TEXT_FILE_TYPE,
+                            makeFileUri(testFile1)),
+                    DownloadRequest(makeUniqueTestUrl(), testFile2.name, TEST_TEXT_FILE_TYPE,
+                            makeFileUri(testFile2))
+            ))
+            assertEquals(2, ids.size)
+            assertEquals(ids[0] + 1, ids[1], "Batch download IDs should be consecutive")
+
+            // Both downloads complete, in order
+            assertTrue(completedLatch.await(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertEquals(contents1, testFile1.readText(StandardCharsets.UTF_8))
+            assertEquals(contents2, testFile2.readText(StandardCharsets.UTF_8))
+        } finally {
+            mServiceRule.unbindService()
+            testFile1.delete()
+            testFile2.delete()
+        }
+    }
+
+    @Test
+    fun testSequentialDownloadsReuseConnection() {
+        doReturn(TestInputStream(TEST_FILESIZE), TestInputStream(TEST_FILESIZE))
+                .`when`(connection).inputStream
+        val testFile1 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val testFile2 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val completedLatch = CountDownLatch(2)
+        val pool = NetworkConnectionPool.getInstance()
+        val reusedBefore = pool.reusedCount
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(successLatch = completedLatch))
+            startDownloadTask(binder, testFile1, TEST_TEXT_FILE_TYPE)
+            startDownloadTask(binder, testFile2, TEST_TEXT_FILE_TYPE)
+
+            assertTrue(completedLatch.await(TEST_TIMEOUT_MS, MILLISECONDS))
+            // Fully read connections are kept alive, and the second download reuses the network
+            // instance holding them.
+            verify(connection, never()).disconnect()
+            assertTrue(pool.reusedCount > reusedBefore)
+        } finally {
+            mServiceRule.unbindService()
+            testFile1.delete()
+            testFile2.delete()
+        }
+    }
+
+    @Test
+    fun testDownloadReusesPrewarmedConnection() {
+        doReturn(ByteArrayInputStream(ByteArray(0)), TestInputStream(TEST_FILESIZE))
+                .`when`(connection).inputStream
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val completedLatch = CountDownLatch(1)
+        val pool = NetworkConnectionPool.getInstance()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(successLatch = completedLatch))
+            // The activity prewarms the portal network before any download is started
+            CaptivePortalLoginActivity.prewarmNetwork(TestNetwork().privateDnsBypassingCopy,
+                    URL(TEST_URL))
+            verify(connection).requestMethod = "HEAD"
+            val reusedBefore = pool.reusedCount
+            startDownloadTask(binder, testFile, TEST_TEXT_FILE_TYPE)
+
+            assertTrue(completedLatch.await(TEST_TIMEOUT_MS, MILLISECONDS))
+            // The download is made on the network instance holding the prewarmed connection
+            verify(connection, never()).disconnect()
+            assertEquals(reusedBefore + 1, pool.reusedCount)
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testSpeculativeDownload() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile = createTestFile()
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    downloadCompleteFuture = downloadCompleteFuture))
+            // Start the download before the destination is known, as when the file picker is open
+            val id = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest(makeUniqueTestUrl(), testFile.name, TEST_TEXT_FILE_TYPE,
+                            null /* outFile */)))[0]
+            inputStream.setAvailable(TEST_FILESIZE / 2)
+
+            // Data spooled so far is copied to the destination, followed by the rest of the data
+            assertTrue(binder.setDownloadDestination(id, makeFileUri(testFile)))
+            inputStream.setAvailable(TEST_FILESIZE)
+
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            FileInputStream(testFile).use {
+                assertSameContents(it, TestInputStream(TEST_FILESIZE))
+            }
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testSpeculativeDownload_cancelled() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    downloadCompleteFuture = downloadCompleteFuture))
+            val id = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest(makeUniqueTestUrl(), "testfile.png", TEST_TEXT_FILE_TYPE,
+                            null /* outFile */)))[0]
+            inputStream.setAvailable(TEST_FILESIZE / 2)
+
+            // The file picker was dismissed
+            binder.cancelTask(id)
+            inputStream.setAvailable(TEST_FILESIZE)
+
+            assertFalse(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertFalse(binder.setDownloadDestination(id, Uri.parse("content://mockdata")))
+        } finally {
+            mServiceRule.unbindService()
+        }
+    }
+
+    @Test
+    fun testSpeculativeDownload_sameUrlFetchedOnce() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile1 = createTestFile()
+        val testFile2 = createTestFile()
+        val progressUpdates = CopyOnWriteArrayList<ProgressUpdate>()
+        val completedIds = LinkedBlockingQueue<Int>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    progressUpdates = progressUpdates, completedIds = completedIds))
+            val url = makeUniqueTestUrl()
+            val ids = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest(url, testFile1.name, TEST_TEXT_FILE_TYPE, null /* outFile */),
+                    DownloadRequest(url, testFile2.name, TEST_TEXT_FILE_TYPE, null /* outFile */)))
+            inputStream.setAvailable(TEST_FILESIZE / 2)
+
+            // Both downloads progress while the body is being fetched: one of them fetches it,
+            // and the other reads it as it is received.
+            val deadline = SystemClock.elapsedRealtime() + TEST_TIMEOUT_MS
+            while (progressUpdates.map { it.downloadId }.toSet() != ids.toSet()) {
+                assertTrue(SystemClock.elapsedRealtime() < deadline,
+                        "Timed out waiting for the progress of both downloads")
+                Thread.sleep(10)
+            }
+            inputStream.setAvailable(TEST_FILESIZE)
+
+            assertTrue(binder.setDownloadDestination(ids[0], makeFileUri(testFile1)))
+            assertTrue(binder.setDownloadDestination(ids[1], makeFileUri(testFile2)))
+            assertEquals(ids.toSet(), setOf(completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS),
+                    completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS)))
+            FileInputStream(testFile1).use {
+                assertSameContents(it, TestInputStream(TEST_FILESIZE))
+            }
+            FileInputStream(testFile2).use {
+                assertSameContents(it, TestInputStream(TEST_FILESIZE))
+            }
+            verify(connection, times(1)).inputStream
+        } finally {
+            mServiceRule.unbindService()
+            testFile1.delete()
+            testFile2.delete()
+        }
+    }
+
+    @Test
+    fun testSpeculativeDownload_doesNotBlockQueue() {
+        doReturn(TestInputStream(TEST_FILESIZE), TestInputStream(TEST_FILESIZE))
+                .`when`(connection).inputStream
+        val testFile1 = createTestFile()
+        val testFile2 = createTestFile()
+        val completedIds = LinkedBlockingQueue<Int>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(completedIds = completedIds))
+            val speculativeId = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest(makeUniqueTestUrl(), testFile1.name, TEST_TEXT_FILE_TYPE,
+                            null /* outFile */)))[0]
+            val queuedId = startDownloadTask(binder, testFile2, TEST_TEXT_FILE_TYPE)
+
+            // The speculative download is fully spooled and waits for its destination, while
+            // the download queued after it completes.
+            assertEquals(queuedId, completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertTrue(binder.setDownloadDestination(speculativeId, makeFileUri(testFile1)))
+            assertEquals(speculativeId, completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+            FileInputStream(testFile1).use {
+                assertSameContents(it, TestInputStream(TEST_FILESIZE))
+            }
+        } finally {
+            mServiceRule.unbindService()
+            testFile1.delete()
+            testFile2.delete()
+        }
+    }
+
+    @Test
+    fun testPublishFromSpool() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile = createTestFile()
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        val binder = bindService(makeDownloadCompleteCallback(
+                downloadCompleteFuture = downloadCompleteFuture))
+        try {
+            binder.setPublishFromSpool(true)
+            startDownloadTask(binder, testFile, TEST_TEXT_FILE_TYPE)
+            inputStream.setAvailable(TEST_FILESIZE / 2)
+            inputStream.setAvailable(TEST_FILESIZE)
+
+            // The download only completes once the spool is published to the destination
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            FileInputStream(testFile).use {
+                assertSameContents(it, TestInputStream(TEST_FILESIZE))
+            }
+        } finally {
+            binder.setPublishFromSpool(false)
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    /**
+     * Start a download published from spool to [PIPE_DESTINATION_URI], and return once its
+     * transfer is complete and its spool is being published.
+     */
+    private fun startPublishingToPipe(
+        binder: DownloadServiceBinder,
+        saveProgressIds: BlockingQueue<Int>
+    ): PublishingDownload {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        binder.setPublishFromSpool(true)
+        val id = binder.requestDownload(TestNetwork(), TEST_USERAGENT, makeUniqueTestUrl(),
+                "testfile.txt", PIPE_DESTINATION_URI, TEST_TEXT_FILE_TYPE)
+        inputStream.setAvailable(TEST_FILESIZE)
+        val pipe = PipeDestinationProvider.sPipes.poll(TEST_TIMEOUT_MS, MILLISECONDS)
+                ?: fail("The destination was not opened")
+        val download = PublishingDownload(id, ParcelFileDescriptor.AutoCloseInputStream(pipe))
+        // The destination is slower than the network: read it until the service reports that it
+        // is saving the transferred download.
+        while (saveProgressIds.poll(PIPE_READ_DELAY_MS, MILLISECONDS) != id) {
+            assertTrue(download.readSlowly(), "Publishing completed before the test could act")
+        }
+        return download
+    }
+
+    private class PublishingDownload(val id: Int, val destination: InputStream) {
+        private val buffer = ByteArray(PIPE_READ_SIZE)
+        var publishedBytes = 0
+            private set
+
+        /**
+         * Read the next bytes published to the destination, after a delay.
+         * @return false if the destination was closed.
+         */
+        fun readSlowly(): Boolean {
+            Thread.sleep(PIPE_READ_DELAY_MS)
+            val read = destination.read(buffer)
+            if (read < 0) return false
+            publishedBytes += read
+            return true
+        }
+    }
+
+    private fun isServiceInForeground() = context.getSystemService(NotificationManager::class.java)
+            .activeNotifications.any {
+                (it.notification.flags and Notification.FLAG_FOREGROUND_SERVICE) != 0
+            }
+
+    @Test
+    fun testPublishFromSpool_cancelledFromNotification() {
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+        val saveProgressIds = LinkedBlockingQueue<Int>()
+
+        val binder = bindService(makeDownloadCompleteCallback(
+                downloadCompleteFuture = downloadCompleteFuture, saveProgressIds = saveProgressIds))
+        try {
+            val download = startPublishingToPipe(binder, saveProgressIds)
+            // Tap the cancel action of the notification, which is still shown while publishing
+            val cancelIntent = PendingIntent.getService(context, 0 /* requestCode */,
+                    Intent(context, DownloadService::class.java)
+                            .setIdentifier(download.id.toString()),
+                    PendingIntent.FLAG_NO_CREATE or PendingIntent.FLAG_IMMUTABLE)
+            assertNotNull(cancelIntent)
+            cancelIntent.send()
+
+            // The publisher stops and closes the destination before the whole download was
+            // published.
+            download.destination.use {
+                while (download.readSlowly()) {}
+            }
+            assertTrue(download.publishedBytes < TEST_FILESIZE,
+                    "The download was published before being cancelled")
+            assertFalse(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+        } finally {
+            binder.setPublishFromSpool(false)
+            mServiceRule.unbindService()
+        }
+    }
+
+    @Test
+    fun testPublishFromSpool_foregroundUntilPublished() {
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+        val saveProgressIds = LinkedBlockingQueue<Int>()
+
+        val binder = bindService(makeDownloadCompleteCallback(
+                downloadCompleteFuture = downloadCompleteFuture, saveProgressIds = saveProgressIds))
+        try {
+            val download = startPublishingToPipe(binder, saveProgressIds)
+            download.destination.use {
+                // The transfer is complete, but the service stays in the foreground while the
+                // download is published. The pipe may buffer the end of the download, so this is
+                // only checked until half of it was read.
+                while (download.publishedBytes < TEST_FILESIZE / 2) {
+                    assertTrue(isServiceInForeground(), "Service left the foreground while " +
+                            "publishing, after ${download.publishedBytes} bytes")
+                    assertTrue(download.readSlowly())
+                }
+                while (download.readSlowly()) {}
+            }
+            assertEquals(TEST_FILESIZE, download.publishedBytes)
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+
+            // The service leaves the foreground once publishing is done.
+            val deadline = SystemClock.elapsedRealtime() + TEST_TIMEOUT_MS
+            while (isServiceInForeground()) {
+                assertTrue(SystemClock.elapsedRealtime() < deadline,
+                        "Service still in the foreground after publishing")
+                Thread.sleep(PIPE_READ_DELAY_MS)
+            }
+        } finally {
+            binder.setPublishFromSpool(false)
+            mServiceRule.unbindService()
+        }
+    }
+
+    @Test
+    fun testDataUrlDownload() {
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    downloadCompleteFuture = downloadCompleteFuture))
+            // "Test file contents", base64-encoded
+            binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest("data:text/plain;base64,VGVzdCBmaWxlIGNvbnRlbnRz",
+                            testFile.name, TEST_TEXT_FILE_TYPE, makeFileUri(testFile))))
+
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertEquals("Test file contents", testFile.readText(StandardCharsets.UTF_8))
+            // The contents are decoded from the URL, without using the network
+            verify(connection, never()).inputStream
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testDataUrlDownload_percentEncoded() {
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    downloadCompleteFuture = downloadCompleteFuture))
+            // Percent-encoded octets are decoded, other characters are written as UTF-8, and
+            // invalid escapes are kept as-is
+            binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest("data:text/plain,Test%20file%E2%9C%93 caf\u00e9 100%",
+                            testFile.name, TEST_TEXT_FILE_TYPE, makeFileUri(testFile))))
+
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertEquals("Test file\u2713 caf\u00e9 100%",
+                    testFile.readText(StandardCharsets.UTF_8))
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testBlobUrlDownload() {
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val downloadCompleteFuture = CompletableFuture<Boolean>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(
+                    downloadCompleteFuture = downloadCompleteFuture))
+            val id = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest("blob:https://portal.example.com/0123-4567", testFile.name,
+                            TEST_TEXT_FILE_TYPE, makeFileUri(testFile))))[0]
+            // The contents of the blob are passed in chunks by the caller
+            assertEquals(BLOB_CHUNK_WRITTEN,
+                    binder.writeBlobChunk(id, "Test file ".toByteArray(StandardCharsets.UTF_8)))
+            assertEquals(BLOB_CHUNK_WRITTEN,
+                    binder.writeBlobChunk(id, "contents".toByteArray(StandardCharsets.UTF_8)))
+            binder.endBlob(id, true /* success */)
+
+            assertTrue(downloadCompleteFuture.get(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertEquals("Test file contents", testFile.readText(StandardCharsets.UTF_8))
+            verify(connection, never()).inputStream
+            // The download is complete, so no more chunks can be written
+            assertEquals(BLOB_CHUNK_ABORTED, binder.writeBlobChunk(id, ByteArray(1)))
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testBlobUrlDownload_doesNotWaitForQueue() {
+        // The queued download blocks until data is made available
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val queuedFile = createTestFile()
+        val blobFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val completedIds = LinkedBlockingQueue<Int>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(completedIds = completedIds))
+            val queuedId = startDownloadTask(binder, queuedFile, TEST_TEXT_FILE_TYPE)
+            val blobId = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, listOf(
+                    DownloadRequest("blob:https://portal.example.com/0123-4567", blobFile.name,
+                            TEST_TEXT_FILE_TYPE, makeFileUri(blobFile))))[0]
+            assertEquals(BLOB_CHUNK_WRITTEN,
+                    binder.writeBlobChunk(blobId, "Blob".toByteArray(StandardCharsets.UTF_8)))
+            binder.endBlob(blobId, true /* success */)
+
+            // The blob is read while the queued download is still in progress
+            assertEquals(blobId, completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+            assertEquals("Blob", blobFile.readText(StandardCharsets.UTF_8))
+            inputStream.setAvailable(TEST_FILESIZE)
+            assertEquals(queuedId, completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS))
+        } finally {
+            mServiceRule.unbindService()
+            queuedFile.delete()
+            blobFile.delete()
+        }
+    }
+
+    @Test
+    fun testEnqueueManyTasks() {
+        val inputStream = TestInputStream()
+        doReturn(inputStream).`when`(connection).inputStream
+        val testFile = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val fileUri = makeFileUri(testFile)
+        val requests = List(MANY_TASKS_COUNT) {
+            DownloadRequest(makeUniqueTestUrl(), testFile.name, TEST_TEXT_FILE_TYPE, fileUri)
+        }
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback())
+            // Start a download that blocks until data is available, so other tasks stay queued
+            val activeId = startDownloadTask(binder, testFile, TEST_TEXT_FILE_TYPE)
+            verify(connection, timeout(TEST_TIMEOUT_MS)).inputStream
+
+            val start = SystemClock.elapsedRealtime()
+            val ids = binder.requestDownloads(TestNetwork(), TEST_USERAGENT, requests)
+            val elapsedMs = SystemClock.elapsedRealtime() - start
+            assertEquals(MANY_TASKS_COUNT, ids.size)
+            assertTrue(elapsedMs < MANY_TASKS_MAX_ENQUEUE_TIME_MS,
+                    "Enqueueing $MANY_TASKS_COUNT tasks took ${elapsedMs}ms")
+
+            // Queued tasks do not create notification resources, like their cancel PendingIntent
+            val cancelIntent = Intent(context, DownloadService::class.java)
+                    .setIdentifier(ids.last().toString())
+            assertNull(PendingIntent.getService(context, 0 /* requestCode */, cancelIntent,
+                    PendingIntent.FLAG_NO_CREATE or PendingIntent.FLAG_IMMUTABLE))
+
+            // Queued tasks are removed without affecting the active one, which is then cancelled
+            ids.forEach { binder.cancelTask(it) }
+            binder.cancelTask(activeId)
+            inputStream.setAvailable(TEST_FILESIZE)
+            verify(connection, timeout(TEST_TIMEOUT_MS)).disconnect()
+        } finally {
+            mServiceRule.unbindService()
+            testFile.delete()
+        }
+    }
+
+    @Test
+    fun testDuplicateDownloadServedFromCache() {
+        doReturn("public, max-age=60").`when`(connection).getHeaderField("Cache-Control")
+        downloadSameUrlTwice()
+        // The body was only fetched once over the network
+        verify(connection, times(1)).inputStream
+    }
+
+    @Test
+    fun testDuplicateDownload_notCacheable() {
+        doReturn("max-age=60").`when`(connection).getHeaderField("Cache-Control")
+        // Responses setting cookies are specific to the user
+        doReturn("session=1234").`when`(connection).getHeaderField("Set-Cookie")
+        downloadSameUrlTwice()
+        verify(connection, times(2)).inputStream
+    }
+
+    @Test
+    fun testDuplicateDownload_noExplicitFreshness() {
+        downloadSameUrlTwice()
+        verify(connection, times(2)).inputStream
+    }
+
+    /**
+     * Download the same URL twice, as when a download link is tapped twice, and verify that both
+     * downloads complete with the same contents.
+     */
+    private fun downloadSameUrlTwice() {
+        val fileContents = "Test file contents"
+        doReturn(ByteArrayInputStream(fileContents.toByteArray(StandardCharsets.UTF_8)),
+                ByteArrayInputStream(fileContents.toByteArray(StandardCharsets.UTF_8)))
+                .`when`(connection).inputStream
+        doReturn(-1L).`when`(connection).contentLengthLong
+        val testFile1 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val testFile2 = createTestFile(extension = ".$TEST_TEXT_FILE_EXTENSION")
+        val completedIds = LinkedBlockingQueue<Int>()
+
+        try {
+            val binder = bindService(makeDownloadCompleteCallback(completedIds = completedIds))
+            val url = makeUniqueTestUrl()
+            val ids = setOf(startDownloadTask(binder, testFile1, TEST_TEXT_FILE_TYPE, url),
+                    startDownloadTask(binder, testFile2, TEST_TEXT_FILE_TYPE, url))
+
+            assertEquals(ids, setOf(completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS),
+                    completedIds.poll(TEST_TIMEOUT_MS, MILLISECONDS)))
+            assertEquals(fileContents, testFile1.readText(StandardCharsets.UTF_8))
+            assertEquals(fileContents, testFile2.readText(StandardCharsets.UTF_8))
+        } finally {
+            mServiceRule.unbindService()
+            testFile1.delete()
+            testFile2.delete()
+        }
+    }
+
     @Test
     fun testTapDoneNotification() {
         assumeCanDisplayNotifications()
@@ -493,6 +1249,23 @@ class DownloadServiceTest {
         assertTrue(device.wait(Until.hasObject(By.text(fileContents)), TEST_TIMEOUT_MS))
     }
 
+    @Test
+    fun testInstallStatusNotifiedAfterServiceStopped() {
+        assumeCanDisplayNotifications()
+        // Create the notification channels, then stop the service
+        bindService(makeDownloadCompleteCallback())
+        mServiceRule.unbindService()
+        openNotificationShade()
+
+        val displayName = "tmp${random.nextInt(100_000_000)}.apk"
+        context.sendBroadcast(DownloadService.makeInstallStatusIntent(context, displayName, 1)
+                .putExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE))
+
+        // The status is handled by the receiver declared in the manifest
+        findNotification(UiSelector().text(
+                resources.getString(R.string.error_downloading_paramfile, displayName)))
+    }
+
     private fun openNotificationShade() {
         device.wakeUp()
         device.openNotification()
@@ -554,6 +1327,45 @@ class DownloadServiceTest {
         assertEquals(-1, s2.read(buffer2, 0, 1), "Stream 2 is longer than stream 1")
     }
 
+    /**
+     * Provider of [PIPE_DESTINATION_URI], opened as a pipe whose read end is passed to the test,
+     * so that the test controls how fast downloads are written to it.
+     *
+     * The provider is registered in the test manifest.
+     */
+    class PipeDestinationProvider : ContentProvider() {
+        companion object {
+            // Read ends of the pipes opened by the service
+            internal val sPipes = LinkedBlockingQueue<ParcelFileDescriptor>()
+        }
+
+        override fun onCreate() = true
+
+        override fun openFile(uri: Uri, mode: String): ParcelFileDescriptor {
+            val (readEnd, writeEnd) = ParcelFileDescriptor.createPipe()
+            sPipes.add(readEnd)
+            return writeEnd
+        }
+
+        override fun query(
+            uri: Uri,
+            projection: Array<String>?,
+            selection: String?,
+            selectionArgs: Array<String>?,
+            sortOrder: String?
+        ): Cursor? = null
+
+        override fun getType(uri: Uri): String? = null
+        override fun insert(uri: Uri, values: ContentValues?): Uri? = null
+        override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?) = 0
+        override fun update(
+            uri: Uri,
+            values: ContentValues?,
+            selection: String?,
+            selectionArgs: Array<String>?
+        ) = 0
+    }
+
     /**
      * Activity that reads a file specified as [Uri] in its start [Intent], and displays the file
      * contents on screen by reading the file as UTF-8 text.
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.captiveportallogin
+
+import android.os.Handler
+import android.os.Looper
+import android.os.Message
+import android.os.SystemClock
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SmallTest
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TEST_WINDOW_MS = 500L
+
+/**
+ * Handler keeping the posted runnables until the test runs them, so that windows end when the
+ * test decides instead of after a real delay.
+ */
+private class TestHandler : Handler(Looper.getMainLooper()) {
+    val pending = mutableListOf<Runnable>()
+    val delays = mutableListOf<Long>()
+
+    override fun sendMessageAtTime(msg: Message, uptimeMillis: Long): Boolean {
+        pending.add(msg.callback)
+        delays.add(uptimeMillis - SystemClock.uptimeMillis())
+        return true
+    }
+
+    /** Run the runnables posted so far, as if their delay had elapsed. */
+    fun endWindow() {
+        val toRun = pending.toList()
+        pending.clear()
+        toRun.forEach { it.run() }
+    }
+}
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ReevaluationSchedulerTest {
+    private val handler = TestHandler()
+    private var reevaluationCount = 0
+    private val scheduler = ReevaluationScheduler({ reevaluationCount++ }, handler, TEST_WINDOW_MS)
+
+    @Test
+    fun testRequest_leadingCall() {
+        scheduler.request()
+        // The first request runs immediately, and starts a window.
+        assertEquals(1, reevaluationCount)
+        assertEquals(1, handler.pending.size)
+        assertTrue(handler.delays[0] in 0..TEST_WINDOW_MS)
+
+        // Without any other request, the window ends without reevaluation.
+        handler.endWindow()
+        assertEquals(1, reevaluationCount)
+        assertEquals(0, handler.pending.size)
+
+        // The next request runs immediately again.
+        scheduler.request()
+        assertEquals(2, reevaluationCount)
+        assertEquals(0, scheduler.savedCount)
+    }
+
+    @Test
+    fun testRequest_singleTrailingCallAfterBurst() {
+        repeat(5) { scheduler.request() }
+        assertEquals(1, reevaluationCount)
+
+        // The requests made during the window are merged into a single reevaluation at its end,
+        // which starts a new window.
+        handler.endWindow()
+        assertEquals(2, reevaluationCount)
+        assertEquals(1, handler.pending.size)
+        // Of the 4 requests made during the window, 3 were saved.
+        assertEquals(3, scheduler.savedCount)
+
+        handler.endWindow()
+        assertEquals(2, reevaluationCount)
+        assertEquals(0, handler.pending.size)
+    }
+
+    @Test
+    fun testCancel() {
+        scheduler.request()
+        scheduler.request()
+        assertEquals(1, reevaluationCount)
+
+        // The pending trailing reevaluation is dropped, and later requests are ignored.
+        scheduler.cancel()
+        handler.endWindow()
+        scheduler.request()
+        assertEquals(1, reevaluationCount)
+        assertEquals(0, handler.pending.size)
+    }
+}